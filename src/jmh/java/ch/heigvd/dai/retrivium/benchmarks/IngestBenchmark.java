@@ -0,0 +1,67 @@
+package ch.heigvd.dai.retrivium.benchmarks;
+
+import ch.heigvd.dai.retrivium.index.ShardedIndex;
+import ch.heigvd.dai.retrivium.index.SharedIndex;
+import ch.heigvd.dai.retrivium.utils.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Time to index a whole corpus from disk, at several corpus sizes */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IngestBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int numDocs;
+
+    @Param({"200"})
+    public int avgWords;
+
+    private Path dir;
+    private File[] files;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("retrivium-ingest-");
+        new SyntheticCorpus(SyntheticCorpus.SEED).writeDocuments(dir, numDocs, avgWords);
+        files = dir.toFile().listFiles();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticCorpus.delete(dir);
+    }
+
+    /** Full rebuild, as done when the server starts without a persisted index */
+    @Benchmark
+    public ShardedIndex rebuild() {
+        return new SharedIndex(dir.toFile()).rebuild();
+    }
+
+    /** Reading alone, without tokenizing */
+    @Benchmark
+    public void readFiles(Blackhole blackhole) throws IOException {
+        for (File file : files) {
+            blackhole.consume(FileUtils.readFile(file));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ch.heigvd.dai.retrivium.benchmarks;
+
+import ch.heigvd.dai.retrivium.utils.ProtocolInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Parsing of the protocol, without any network : request lines and raw content */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+    private static final int NUM_LINES = 10_000;
+    private static final int CONTENT_SIZE = 1 << 20;
+
+    private byte[] requests;
+    private byte[] content;
+
+    @Setup
+    public void setup() {
+        SyntheticCorpus corpus = new SyntheticCorpus(SyntheticCorpus.SEED);
+        List<String> queries = corpus.queries(NUM_LINES, 4);
+
+        StringBuilder lines = new StringBuilder();
+        for (String query : queries) {
+            lines.append("QUERY 10 ").append(query).append('\n');
+        }
+        requests = lines.toString().getBytes(StandardCharsets.UTF_8);
+        content = corpus.text(CONTENT_SIZE / 4).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Splitting a stream of pipelined requests into lines, per line */
+    @Benchmark
+    @OperationsPerInvocation(NUM_LINES)
+    public void readLines(Blackhole blackhole) throws IOException {
+        ProtocolInputStream in = new ProtocolInputStream(new ByteArrayInputStream(requests));
+        String line;
+        while ((line = in.readLine()) != null) {
+            blackhole.consume(line);
+        }
+    }
+
+    /** Same as {@link ProtocolBenchmark#readLines}, without decoding the lines, as the server */
+    @Benchmark
+    @OperationsPerInvocation(NUM_LINES)
+    public void readRawLines(Blackhole blackhole) throws IOException {
+        ProtocolInputStream in = new ProtocolInputStream(new ByteArrayInputStream(requests));
+        int length;
+        while ((length = in.readRawLine()) >= 0) {
+            blackhole.consume(length);
+            blackhole.consume(in.getRawLine());
+        }
+    }
+
+    /** Copying the content that follows an UPLOAD header */
+    @Benchmark
+    public void copyContent() throws IOException {
+        ProtocolInputStream in = new ProtocolInputStream(new ByteArrayInputStream(content));
+        in.copyTo(content.length, OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,92 @@
+package ch.heigvd.dai.retrivium.benchmarks;
+
+import ch.heigvd.dai.retrivium.index.QueryCache;
+import ch.heigvd.dai.retrivium.index.ScoredDocument;
+import ch.heigvd.dai.retrivium.index.ShardedIndex;
+import ch.heigvd.dai.retrivium.index.SharedIndex;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Top-k query latency across query lengths, values of k and numbers of shards. Queries cycle
+ * through a fixed set, so that frequent and rare terms are mixed the same way on every run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+    /** Distinct queries per run, few enough to all stay in the query cache */
+    private static final int NUM_QUERIES = 512;
+
+    @Param({"10000"})
+    public int numDocs;
+
+    @Param({"1", "3", "8"})
+    public int queryWords;
+
+    @Param({"1", "10", "100"})
+    public int k;
+
+    @Param({"1", "4"})
+    public int shards;
+
+    private Path dir;
+    private SharedIndex index;
+    private ShardedIndex current;
+    private List<String> queries;
+    private List<List<String>> queryTerms;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("retrivium-search-");
+        SyntheticCorpus corpus = new SyntheticCorpus(SyntheticCorpus.SEED);
+        corpus.writeDocuments(dir, numDocs, 200);
+
+        index = new SharedIndex(dir.toFile(), shards);
+        current = index.rebuild();
+        queries = corpus.queries(NUM_QUERIES, queryWords);
+        queryTerms = new ArrayList<>();
+        for (String query : queries) {
+            queryTerms.add(QueryCache.normalize(index.tokenize(query)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticCorpus.delete(dir);
+    }
+
+    /** Scoring alone, on terms already tokenized */
+    @Benchmark
+    public List<ScoredDocument> search() {
+        next = (next + 1) % NUM_QUERIES;
+        return current.search(queryTerms.get(next), k);
+    }
+
+    /** What QUERY does : tokenizing, then looking the ranking up in the query cache */
+    @Benchmark
+    public List<ScoredDocument> cachedSearch() {
+        next = (next + 1) % NUM_QUERIES;
+        return index.search(queries.get(next), k);
+    }
+}
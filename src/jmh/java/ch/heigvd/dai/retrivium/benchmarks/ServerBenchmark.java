@@ -0,0 +1,172 @@
+package ch.heigvd.dai.retrivium.benchmarks;
+
+import ch.heigvd.dai.retrivium.server.Engine;
+import ch.heigvd.dai.retrivium.server.TcpServer;
+import ch.heigvd.dai.retrivium.utils.ProtocolInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end request round trips against a {@link TcpServer} over loopback, with each engine. Every
+ * benchmark thread has its own connection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+    private static final int NUM_QUERIES = 512;
+    private static final int FILE_SIZE = 1 << 20;
+    private static final String LARGE_DOC = "large.txt";
+
+    /** Server shared by every benchmark thread */
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"BLOCKING", "NIO"})
+        public Engine engine;
+
+        private Path dir;
+        private PrintStream stdout;
+        private int port;
+        private List<String> queries;
+        private byte[] upload;
+
+        @Setup
+        public void setup() throws IOException, InterruptedException {
+            dir = Files.createTempDirectory("retrivium-server-");
+            SyntheticCorpus corpus = new SyntheticCorpus(SyntheticCorpus.SEED);
+            corpus.writeDocuments(dir, 1000, 200);
+            Files.writeString(dir.resolve(LARGE_DOC), corpus.text(FILE_SIZE / 4));
+            queries = corpus.queries(NUM_QUERIES, 3);
+            upload = corpus.text(FILE_SIZE / 4).getBytes(StandardCharsets.UTF_8);
+
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+
+            // The server logs every request, which would be measured as well
+            stdout = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+            TcpServer server = new TcpServer(port, dir.toFile(), null, 1, engine, '\n');
+            Thread thread = new Thread(server::launch, "benchmark-server");
+            thread.setDaemon(true);
+            thread.start();
+            awaitServer();
+        }
+
+        /** Waits for the server to index the corpus and accept connections */
+        private void awaitServer() throws IOException, InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+            while (true) {
+                try {
+                    new Socket("localhost", port).close();
+                    return;
+                } catch (IOException e) {
+                    if (System.nanoTime() > deadline) {
+                        throw e;
+                    }
+                    Thread.sleep(50);
+                }
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            System.setOut(stdout);
+            SyntheticCorpus.delete(dir);
+        }
+    }
+
+    /** Connection of one benchmark thread */
+    @State(Scope.Thread)
+    public static class Client {
+        private Socket socket;
+        private ProtocolInputStream in;
+        private OutputStream out;
+        private int next;
+
+        @Setup
+        public void setup(Server server) throws IOException {
+            socket = new Socket("localhost", server.port);
+            socket.setTcpNoDelay(true);
+            in = new ProtocolInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+
+        /**
+         * Sends a request and returns the header of the response
+         *
+         * @param request line without line feed
+         * @param content raw content following the request, null if there is none
+         * @return first line of the response
+         * @throws IOException if the connection fails
+         */
+        String send(String request, byte[] content) throws IOException {
+            out.write((request + '\n').getBytes(StandardCharsets.UTF_8));
+            if (content != null) {
+                out.write(content);
+            }
+            out.flush();
+
+            String response = in.readLine();
+            if (response == null) {
+                throw new IOException("Server closed the connection");
+            }
+            return response;
+        }
+    }
+
+    @Benchmark
+    public String query(Server server, Client client) throws IOException {
+        client.next = (client.next + 1) % NUM_QUERIES;
+        return client.send("QUERY 10 " + server.queries.get(client.next), null);
+    }
+
+    @Benchmark
+    public String list(Client client) throws IOException {
+        return client.send("LIST", null);
+    }
+
+    /** Download of a 1 MiB document */
+    @Benchmark
+    public long show(Client client) throws IOException {
+        String response = client.send("SHOW " + LARGE_DOC, null);
+        long size = Long.parseLong(response.substring(response.indexOf(' ') + 1));
+        client.in.copyTo(size, OutputStream.nullOutputStream());
+        return size;
+    }
+
+    /** Upload of a 1 MiB document, replacing the previous one */
+    @Benchmark
+    public String upload(Server server, Client client) throws IOException {
+        return client.send("UPLOAD uploaded.txt " + server.upload.length, server.upload);
+    }
+}
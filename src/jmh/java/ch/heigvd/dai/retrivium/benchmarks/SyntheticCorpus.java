@@ -0,0 +1,144 @@
+package ch.heigvd.dai.retrivium.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Deterministic generator of documents and queries for the benchmarks.
+ *
+ * <p>Words are drawn from a fixed vocabulary following a Zipf distribution, like words of a natural
+ * language : a few words occur in most documents, most words occur in a few. The same seed always
+ * gives the same corpus, so results stay comparable from one commit to another.
+ */
+public class SyntheticCorpus {
+    /** Seed used by every benchmark */
+    public static final long SEED = 0x5EED_B25L;
+
+    private static final int VOCABULARY_SIZE = 50_000;
+
+    /** Words per line of a generated document */
+    private static final int WORDS_PER_LINE = 12;
+
+    private final String[] vocabulary;
+    private final double[] cumulative;
+    private final Random random;
+
+    /**
+     * Constructs {@code SyntheticCorpus}
+     *
+     * @param seed of the random generator
+     */
+    public SyntheticCorpus(long seed) {
+        this.vocabulary = new String[VOCABULARY_SIZE];
+        this.cumulative = new double[VOCABULARY_SIZE];
+        this.random = new Random(seed);
+
+        double total = 0;
+        for (int rank = 0; rank < VOCABULARY_SIZE; rank++) {
+            vocabulary[rank] = wordOf(rank);
+            total += 1.0 / (rank + 1);
+            cumulative[rank] = total;
+        }
+        for (int rank = 0; rank < VOCABULARY_SIZE; rank++) {
+            cumulative[rank] /= total;
+        }
+    }
+
+    /**
+     * Spells a rank with letters only, so that every tokenizer keeps it as a single term
+     *
+     * @param rank of the word
+     * @return word of at least three letters
+     */
+    private static String wordOf(int rank) {
+        StringBuilder word = new StringBuilder();
+        int n = rank;
+        do {
+            word.append((char) ('a' + n % 26));
+            n /= 26;
+        } while (n > 0 || word.length() < 3);
+        return word.toString();
+    }
+
+    /**
+     * @return next word of the distribution
+     */
+    public String word() {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        return vocabulary[rank >= 0 ? rank : Math.min(-rank - 1, VOCABULARY_SIZE - 1)];
+    }
+
+    /**
+     * @param numWords number of words
+     * @return text made of {@code numWords} words
+     */
+    public String text(int numWords) {
+        StringBuilder text = new StringBuilder(numWords * 8);
+        for (int i = 0; i < numWords; i++) {
+            text.append(word()).append(i % WORDS_PER_LINE == WORDS_PER_LINE - 1 ? '\n' : ' ');
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param numQueries number of queries
+     * @param numWords number of words per query
+     * @return queries, each one as a text
+     */
+    public List<String> queries(int numQueries, int numWords) {
+        ArrayList<String> queries = new ArrayList<>(numQueries);
+        for (int i = 0; i < numQueries; i++) {
+            queries.add(text(numWords).strip());
+        }
+        return queries;
+    }
+
+    /**
+     * Writes documents whose lengths vary uniformly between half and one and a half times the
+     * average length
+     *
+     * @param dir directory to write to, created if needed
+     * @param numDocs number of documents
+     * @param avgWords average number of words per document
+     * @return the directory
+     */
+    public File writeDocuments(Path dir, int numDocs, int avgWords) {
+        try {
+            Files.createDirectories(dir);
+            for (int i = 0; i < numDocs; i++) {
+                int numWords = avgWords / 2 + random.nextInt(avgWords + 1);
+                Files.writeString(dir.resolve(String.format("doc-%06d.txt", i)), text(numWords));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return dir.toFile();
+    }
+
+    /**
+     * Removes a directory written by {@link SyntheticCorpus#writeDocuments}
+     *
+     * @param dir directory to remove
+     */
+    public static void delete(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
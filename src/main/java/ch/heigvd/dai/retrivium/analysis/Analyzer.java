@@ -0,0 +1,178 @@
+package ch.heigvd.dai.retrivium.analysis;
+
+import ch.heigvd.dai.bm25.BM25;
+import ch.heigvd.dai.retrivium.index.DocumentTerms;
+import ch.heigvd.dai.retrivium.index.Tokenizer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Tokenizer} made of a chain of steps, described by a spec such as {@code
+ * lowercase,stop,stem} :
+ *
+ * <ul>
+ *   <li>{@code standard} splits text on everything but letters and digits, it is the first step
+ *       unless another splitter is given
+ *   <li>{@code bm25} splits text with the tokenizer of the BM25 library instead, must come first
+ *   <li>{@code lowercase} lowercases terms, see {@link LowerCaseFilter}
+ *   <li>{@code stop} drops common English words, see {@link StopWordFilter}
+ *   <li>{@code stem} reduces English words to their stem, see {@link PorterStemFilter}
+ *   <li>{@code ngram:<n>} or {@code ngram:<min>-<max>} splits terms into their character n-grams,
+ *       see {@link NGramFilter}
+ * </ul>
+ *
+ * Text is scanned straight from the given {@link CharSequence}, usually a {@link
+ * java.nio.CharBuffer} of a file being read, into a single reused buffer that goes through the
+ * filters. A bag of terms looks them up by content, so a term only becomes a string the first time
+ * it occurs in a document.
+ */
+public class Analyzer implements Tokenizer {
+    /**
+     * Spec of the analyzer used unless another one is chosen, the tokenizer of the BM25 library
+     * alone, so that rankings stay the same as they were before analyzers could be chosen
+     */
+    public static final String DEFAULT_SPEC = "bm25";
+
+    /**
+     * Longer terms split by {@code standard} are dropped, they are not words but rather encoded
+     * data. Terms of the library tokenizer are kept whatever their length, as they always were.
+     */
+    public static final int MAX_TERM_LENGTH = 255;
+
+    private final String spec;
+    private final BM25 library;
+    private final List<TermFilter> filters;
+
+    private Analyzer(String spec, BM25 library, List<TermFilter> filters) {
+        this.spec = spec;
+        this.library = library;
+        this.filters = filters;
+    }
+
+    /**
+     * Builds an analyzer from its spec, see {@link Analyzer}
+     *
+     * @param spec steps separated by commas
+     * @return the analyzer
+     * @throws IllegalArgumentException if a step is unknown or misplaced
+     */
+    public static Analyzer parse(String spec) {
+        ArrayList<String> steps = new ArrayList<>();
+        ArrayList<TermFilter> filters = new ArrayList<>();
+        BM25 library = null;
+
+        for (String step : spec.split(",")) {
+            step = step.strip();
+            String name = step.contains(":") ? step.substring(0, step.indexOf(':')) : step;
+            String argument = step.contains(":") ? step.substring(step.indexOf(':') + 1) : null;
+            if (argument != null && !name.equals("ngram")) {
+                throw new IllegalArgumentException("Unexpected argument : " + step);
+            }
+
+            switch (name) {
+                case "standard", "bm25" -> {
+                    if (!steps.isEmpty()) {
+                        throw new IllegalArgumentException(name + " must be the first step");
+                    }
+                    library = name.equals("bm25") ? new BM25() : null;
+                }
+                case "lowercase" -> filters.add(new LowerCaseFilter());
+                case "stop" -> filters.add(new StopWordFilter(StopWordFilter.ENGLISH));
+                case "stem" -> filters.add(new PorterStemFilter());
+                case "ngram" -> {
+                    NGramFilter ngrams = parseNGrams(argument);
+                    filters.add(ngrams);
+                    step = "ngram:" + ngrams.getMinLength() + "-" + ngrams.getMaxLength();
+                }
+                default -> throw new IllegalArgumentException("Unknown analysis step : " + step);
+            }
+            steps.add(step);
+        }
+
+        if (library == null && !steps.getFirst().equals("standard")) {
+            steps.addFirst("standard");
+        }
+        return new Analyzer(String.join(",", steps), library, List.copyOf(filters));
+    }
+
+    private static NGramFilter parseNGrams(String argument) {
+        if (argument == null) {
+            throw new IllegalArgumentException("Missing n-gram length : ngram:<n>");
+        }
+        try {
+            String[] lengths = argument.split("-", 2);
+            int min = Integer.parseInt(lengths[0]);
+            int max = lengths.length == 2 ? Integer.parseInt(lengths[1]) : min;
+            return new NGramFilter(min, max);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid n-gram length : " + argument);
+        }
+    }
+
+    /**
+     * @return canonical spec of the analyzer, the same for analyzers producing the same terms
+     */
+    public String getSpec() {
+        return spec;
+    }
+
+    /**
+     * Splits text into terms and passes them through the filters
+     *
+     * @param text to analyze, only read during the call
+     * @param sink receives the resulting terms, in order
+     */
+    public void analyze(CharSequence text, TermSink sink) {
+        TermSink chain = sink;
+        for (int i = filters.size() - 1; i >= 0; i--) {
+            chain = filters.get(i).wrap(chain);
+        }
+
+        StringBuilder term = new StringBuilder();
+        if (library != null) {
+            for (String token : library.tokenize(text.toString())) {
+                term.setLength(0);
+                chain.accept(term.append(token));
+            }
+            return;
+        }
+
+        int i = 0;
+        while (i < text.length()) {
+            int c = Character.codePointAt(text, i);
+            if (Character.isLetterOrDigit(c)) {
+                term.appendCodePoint(c);
+            } else if (!term.isEmpty()) {
+                emit(term, chain);
+                term.setLength(0);
+            }
+            i += Character.charCount(c);
+        }
+        if (!term.isEmpty()) {
+            emit(term, chain);
+        }
+    }
+
+    private static void emit(StringBuilder term, TermSink chain) {
+        if (term.length() <= MAX_TERM_LENGTH) {
+            chain.accept(term);
+        }
+    }
+
+    @Override
+    public List<String> tokenize(String text) {
+        ArrayList<String> terms = new ArrayList<>();
+        analyze(text, term -> terms.add(term.toString()));
+        return terms;
+    }
+
+    @Override
+    public void tokenize(CharSequence text, DocumentTerms terms) {
+        analyze(text, terms::add);
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
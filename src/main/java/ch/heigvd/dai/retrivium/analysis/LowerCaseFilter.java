@@ -0,0 +1,20 @@
+package ch.heigvd.dai.retrivium.analysis;
+
+/** Lowercases terms in place */
+public class LowerCaseFilter implements TermFilter {
+
+    @Override
+    public TermSink wrap(TermSink next) {
+        return term -> {
+            for (int i = 0; i < term.length(); i++) {
+                char c = term.charAt(i);
+                // Letters outside of the BMP are left as they are, they seldom have a case
+                char lower = Character.toLowerCase(c);
+                if (lower != c) {
+                    term.setCharAt(i, lower);
+                }
+            }
+            next.accept(term);
+        };
+    }
+}
@@ -0,0 +1,67 @@
+package ch.heigvd.dai.retrivium.analysis;
+
+/**
+ * Splits terms into their character n-grams, so that documents match queries on parts of words and
+ * despite small spelling differences. A term is replaced by every sequence of {@code minLength} to
+ * {@code maxLength} consecutive chars it holds, terms shorter than {@code minLength} are let
+ * through as they are.
+ */
+public class NGramFilter implements TermFilter {
+    private final int minLength;
+    private final int maxLength;
+
+    /**
+     * Constructs {@code NGramFilter}
+     *
+     * @param minLength length of the shortest n-grams, at least one
+     * @param maxLength length of the longest n-grams, at least {@code minLength}
+     */
+    public NGramFilter(int minLength, int maxLength) {
+        if (minLength < 1 || maxLength < minLength) {
+            throw new IllegalArgumentException(
+                    "Invalid n-gram lengths : " + minLength + "-" + maxLength);
+        }
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return length of the shortest n-grams
+     */
+    public int getMinLength() {
+        return minLength;
+    }
+
+    /**
+     * @return length of the longest n-grams
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    @Override
+    public TermSink wrap(TermSink next) {
+        StringBuilder gram = new StringBuilder();
+        return term -> {
+            if (term.length() < minLength) {
+                next.accept(term);
+                return;
+            }
+            for (int start = 0; start + minLength <= term.length(); start++) {
+                // An n-gram never starts or ends in the middle of a surrogate pair
+                if (Character.isLowSurrogate(term.charAt(start))) {
+                    continue;
+                }
+                int longest = Math.min(maxLength, term.length() - start);
+                for (int length = minLength; length <= longest; length++) {
+                    if (Character.isHighSurrogate(term.charAt(start + length - 1))) {
+                        continue;
+                    }
+                    gram.setLength(0);
+                    gram.append(term, start, start + length);
+                    next.accept(gram);
+                }
+            }
+        };
+    }
+}
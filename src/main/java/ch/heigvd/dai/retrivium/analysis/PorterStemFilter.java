@@ -0,0 +1,297 @@
+package ch.heigvd.dai.retrivium.analysis;
+
+/**
+ * Reduces English words to their stem with the algorithm of Martin Porter, so that inflected forms
+ * of a word ("connected", "connecting", "connections") become the same term.
+ *
+ * <p>Only terms made of lowercase ASCII letters are stemmed, the others are let through as they
+ * are. The filter should therefore follow a {@link LowerCaseFilter}.
+ */
+public class PorterStemFilter implements TermFilter {
+
+    @Override
+    public TermSink wrap(TermSink next) {
+        Stemmer stemmer = new Stemmer();
+        return term -> {
+            stemmer.stem(term);
+            next.accept(term);
+        };
+    }
+
+    /** State of the stemming of one term, the term is modified in place */
+    private static final class Stemmer {
+        private StringBuilder b;
+
+        /** Offset of the last char of the stem */
+        private int k;
+
+        /** Offset of the last char before the suffix matched by {@link Stemmer#ends(String)} */
+        private int j;
+
+        private void stem(StringBuilder term) {
+            // Words of one or two letters are left alone
+            if (term.length() <= 2) {
+                return;
+            }
+            for (int i = 0; i < term.length(); i++) {
+                char c = term.charAt(i);
+                if (c < 'a' || c > 'z') {
+                    return;
+                }
+            }
+
+            b = term;
+            k = term.length() - 1;
+            step1ab();
+            if (k > 0) {
+                step1c();
+                step2();
+                step3();
+                step4();
+                step5();
+            }
+            term.setLength(k + 1);
+            b = null;
+        }
+
+        /** True if the char at {@code i} is a consonant */
+        private boolean cons(int i) {
+            return switch (b.charAt(i)) {
+                case 'a', 'e', 'i', 'o', 'u' -> false;
+                case 'y' -> i == 0 || !cons(i - 1);
+                default -> true;
+            };
+        }
+
+        /**
+         * Measures the number of consonant sequences before {@code j} : with {@code c} a sequence
+         * of consonants and {@code v} a sequence of vowels, a stem {@code [c](vc){m}[v]} measures
+         * {@code m}
+         */
+        private int m() {
+            int n = 0;
+            int i = 0;
+            while (true) {
+                if (i > j) {
+                    return n;
+                }
+                if (!cons(i)) {
+                    break;
+                }
+                i++;
+            }
+            i++;
+            while (true) {
+                while (true) {
+                    if (i > j) {
+                        return n;
+                    }
+                    if (cons(i)) {
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                n++;
+                while (true) {
+                    if (i > j) {
+                        return n;
+                    }
+                    if (!cons(i)) {
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+            }
+        }
+
+        /** True if the stem before {@code j} contains a vowel */
+        private boolean vowelInStem() {
+            for (int i = 0; i <= j; i++) {
+                if (!cons(i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** True if {@code i} and the char before it are the same consonant */
+        private boolean doubleC(int i) {
+            return i >= 1 && b.charAt(i) == b.charAt(i - 1) && cons(i);
+        }
+
+        /**
+         * True if {@code i-2, i-1, i} is consonant - vowel - consonant and the last consonant is
+         * not w, x or y. Used to restore an e on short words : cav(e), lov(e), hop(e), crim(e)
+         */
+        private boolean cvc(int i) {
+            if (i < 2 || !cons(i) || cons(i - 1) || !cons(i - 2)) {
+                return false;
+            }
+            char c = b.charAt(i);
+            return c != 'w' && c != 'x' && c != 'y';
+        }
+
+        /** True if the stem ends with {@code s}, then sets {@code j} before it */
+        private boolean ends(String s) {
+            int length = s.length();
+            if (length > k + 1) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (b.charAt(k - length + 1 + i) != s.charAt(i)) {
+                    return false;
+                }
+            }
+            j = k - length;
+            return true;
+        }
+
+        /** Replaces the chars after {@code j} by {@code s} */
+        private void setTo(String s) {
+            b.replace(j + 1, k + 1, s);
+            k = j + s.length();
+        }
+
+        /** Replaces the suffix by {@code s} if the rest of the stem measures more than zero */
+        private void replace(String s) {
+            if (m() > 0) {
+                setTo(s);
+            }
+        }
+
+        /**
+         * Removes plurals and -ed or -ing : caresses to caress, ponies to poni, cats to cat, feed
+         * stays feed, agreed to agree, plastered to plaster, motoring to motor, sized to size
+         */
+        private void step1ab() {
+            if (b.charAt(k) == 's') {
+                if (ends("sses")) {
+                    k -= 2;
+                } else if (ends("ies")) {
+                    setTo("i");
+                } else if (b.charAt(k - 1) != 's') {
+                    k--;
+                }
+            }
+            if (ends("eed")) {
+                if (m() > 0) {
+                    k--;
+                }
+            } else if ((ends("ed") || ends("ing")) && vowelInStem()) {
+                k = j;
+                if (ends("at")) {
+                    setTo("ate");
+                } else if (ends("bl")) {
+                    setTo("ble");
+                } else if (ends("iz")) {
+                    setTo("ize");
+                } else if (doubleC(k)) {
+                    char c = b.charAt(k);
+                    if (c != 'l' && c != 's' && c != 'z') {
+                        k--;
+                    }
+                } else {
+                    j = k;
+                    if (m() == 1 && cvc(k)) {
+                        setTo("e");
+                    }
+                }
+            }
+        }
+
+        /** Turns a terminal y into i when there is another vowel in the stem */
+        private void step1c() {
+            if (ends("y") && vowelInStem()) {
+                b.setCharAt(k, 'i');
+            }
+        }
+
+        /** Maps double suffixes to single ones : -ization to -ize, -ational to -ate, ... */
+        private void step2() {
+            switch (b.charAt(k - 1)) {
+                case 'a' -> replaceFirst("ational", "ate", "tional", "tion");
+                case 'c' -> replaceFirst("enci", "ence", "anci", "ance");
+                case 'e' -> replaceFirst("izer", "ize");
+                case 'l' ->
+                        replaceFirst(
+                                "bli", "ble", "alli", "al", "entli", "ent", "eli", "e", "ousli",
+                                "ous");
+                case 'o' -> replaceFirst("ization", "ize", "ation", "ate", "ator", "ate");
+                case 's' ->
+                        replaceFirst(
+                                "alism", "al", "iveness", "ive", "fulness", "ful", "ousness",
+                                "ous");
+                case 't' -> replaceFirst("aliti", "al", "iviti", "ive", "biliti", "ble");
+                case 'g' -> replaceFirst("logi", "log");
+                default -> {}
+            }
+        }
+
+        /** Handles -ic-, -full, -ness, ... */
+        private void step3() {
+            switch (b.charAt(k)) {
+                case 'e' -> replaceFirst("icate", "ic", "ative", "", "alize", "al");
+                case 'i' -> replaceFirst("iciti", "ic");
+                case 'l' -> replaceFirst("ical", "ic", "ful", "");
+                case 's' -> replaceFirst("ness", "");
+                default -> {}
+            }
+        }
+
+        /** Removes -ant, -ence, ... from stems that measure more than one */
+        private void step4() {
+            boolean matched =
+                    switch (b.charAt(k - 1)) {
+                        case 'a' -> ends("al");
+                        case 'c' -> ends("ance") || ends("ence");
+                        case 'e' -> ends("er");
+                        case 'i' -> ends("ic");
+                        case 'l' -> ends("able") || ends("ible");
+                        case 'n' -> ends("ant") || ends("ement") || ends("ment") || ends("ent");
+                        case 'o' ->
+                                ends("ion") && j >= 0 && (b.charAt(j) == 's' || b.charAt(j) == 't')
+                                        || ends("ou");
+                        case 's' -> ends("ism");
+                        case 't' -> ends("ate") || ends("iti");
+                        case 'u' -> ends("ous");
+                        case 'v' -> ends("ive");
+                        case 'z' -> ends("ize");
+                        default -> false;
+                    };
+            if (matched && m() > 1) {
+                k = j;
+            }
+        }
+
+        /** Removes a final -e and turns -ll into -l on stems that measure more than one */
+        private void step5() {
+            j = k;
+            if (b.charAt(k) == 'e') {
+                int measure = m();
+                if (measure > 1 || measure == 1 && !cvc(k - 1)) {
+                    k--;
+                }
+            }
+            if (b.charAt(k) == 'l' && doubleC(k) && m() > 1) {
+                k--;
+            }
+        }
+
+        /**
+         * Replaces the first suffix the stem ends with, if the rest of the stem measures more than
+         * zero. Only the first matching suffix is considered.
+         *
+         * @param rules pairs of suffix and replacement
+         */
+        private void replaceFirst(String... rules) {
+            for (int i = 0; i < rules.length; i += 2) {
+                if (ends(rules[i])) {
+                    replace(rules[i + 1]);
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package ch.heigvd.dai.retrivium.analysis;
+
+import java.util.List;
+
+/**
+ * Drops stop words : words so frequent that they carry next to no information for ranking, while
+ * their postings are the longest of the index
+ */
+public class StopWordFilter implements TermFilter {
+    /** Common English words, lowercase */
+    public static final List<String> ENGLISH =
+            List.of(
+                    "a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "if", "in",
+                    "into", "is", "it", "no", "not", "of", "on", "or", "such", "that", "the",
+                    "their", "then", "there", "these", "they", "this", "to", "was", "will", "with");
+
+    /** Open addressing table of the stop words, never modified once built so it needs no lock */
+    private final String[] table;
+
+    /**
+     * Constructs {@code StopWordFilter}
+     *
+     * @param stopWords words to drop, matched exactly
+     */
+    public StopWordFilter(List<String> stopWords) {
+        this.table = new String[Integer.highestOneBit(Math.max(1, stopWords.size())) * 4];
+        for (String word : stopWords) {
+            table[slotOf(word)] = word;
+        }
+    }
+
+    @Override
+    public TermSink wrap(TermSink next) {
+        return term -> {
+            if (table[slotOf(term)] == null) {
+                next.accept(term);
+            }
+        };
+    }
+
+    /**
+     * @param term to look up
+     * @return slot holding the term if it is a stop word, otherwise the empty slot it would go to
+     */
+    private int slotOf(CharSequence term) {
+        int hash = 0;
+        for (int i = 0; i < term.length(); i++) {
+            hash = 31 * hash + term.charAt(i);
+        }
+        int mask = table.length - 1;
+        for (int slot = ((hash * 0x9E3779B9) >>> 16) & mask; ; slot = (slot + 1) & mask) {
+            if (table[slot] == null || table[slot].contentEquals(term)) {
+                return slot;
+            }
+        }
+    }
+}
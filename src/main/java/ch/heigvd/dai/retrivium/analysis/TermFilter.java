@@ -0,0 +1,18 @@
+package ch.heigvd.dai.retrivium.analysis;
+
+/**
+ * Step of the chain of an {@link Analyzer} : transforms the terms going through it, drops them or
+ * turns them into several terms. Implementations must be safe to call concurrently.
+ */
+@FunctionalInterface
+public interface TermFilter {
+
+    /**
+     * Puts this filter in front of the next step of the chain
+     *
+     * @param next receives the terms let through by this filter
+     * @return sink applying this filter, used for a single analysis at a time, so it may hold state
+     *     of its own
+     */
+    TermSink wrap(TermSink next);
+}
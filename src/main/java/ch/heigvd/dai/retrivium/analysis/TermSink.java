@@ -0,0 +1,11 @@
+package ch.heigvd.dai.retrivium.analysis;
+
+/** Receives the terms produced by an {@link Analyzer}, one at a time */
+@FunctionalInterface
+public interface TermSink {
+
+    /**
+     * @param term buffer holding the term, only valid during the call and free to be modified
+     */
+    void accept(StringBuilder term);
+}
@@ -8,8 +8,17 @@ package ch.heigvd.dai.retrivium.client;
 public enum ClientMessage {
     LIST,
     QUERY,
+    MQUERY,
+    PAGE,
     SHOW,
     UPLOAD,
+    STATS,
+
+    /** Statistics of the terms of a query, asked by a router before it fans the query out */
+    TERMS,
+
+    /** Scored ranking against the statistics of a whole partitioned corpus, asked by a router */
+    SCORED,
     HELP,
     QUIT
 }
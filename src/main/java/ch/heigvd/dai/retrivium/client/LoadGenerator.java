@@ -0,0 +1,268 @@
+package ch.heigvd.dai.retrivium.client;
+
+import ch.heigvd.dai.retrivium.server.ServerMessage;
+import ch.heigvd.dai.retrivium.utils.LatencyHistogram;
+import ch.heigvd.dai.retrivium.utils.ProtocolInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Closed-loop load generator : every connection sends a request of a {@link Workload}, waits for
+ * the whole response, then sends the next one. Connections run on virtual threads, so thousands of
+ * them are cheap.
+ *
+ * <p>With a target rate, requests are sent on a fixed schedule spread over the connections, and
+ * latencies are measured from the time a request was scheduled rather than actually sent. A slow
+ * response then also counts for the requests it delayed, instead of hiding them.
+ */
+public class LoadGenerator {
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final double rate;
+    private final Duration warmup;
+    private final Duration duration;
+
+    /**
+     * Constructs {@code LoadGenerator}
+     *
+     * @param host of the server
+     * @param port of the server
+     * @param connections number of concurrent connections
+     * @param rate requests per second over all connections, 0 to send as fast as possible
+     * @param warmup time during which requests are sent but not measured
+     * @param duration time during which requests are measured, after the warmup
+     */
+    public LoadGenerator(
+            String host,
+            int port,
+            int connections,
+            double rate,
+            Duration warmup,
+            Duration duration) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.rate = rate;
+        this.warmup = warmup;
+        this.duration = duration;
+    }
+
+    /** Measurements of one connection, or of all of them once added up */
+    private static class Stats {
+        private final EnumMap<ClientMessage, LatencyHistogram> latencies =
+                new EnumMap<>(ClientMessage.class);
+        private long errors;
+
+        void record(ClientMessage verb, long latencyMicros) {
+            latencies.computeIfAbsent(verb, v -> new LatencyHistogram()).record(latencyMicros);
+        }
+
+        void add(Stats other) {
+            for (Map.Entry<ClientMessage, LatencyHistogram> entry : other.latencies.entrySet()) {
+                latencies
+                        .computeIfAbsent(entry.getKey(), v -> new LatencyHistogram())
+                        .add(entry.getValue());
+            }
+            errors += other.errors;
+        }
+    }
+
+    /**
+     * Replays the workload on every connection until the duration is over, then prints the
+     * throughput and the latency percentiles
+     *
+     * @param workload requests to replay
+     * @throws InterruptedException if interrupted while waiting for the connections
+     */
+    public void run(Workload workload) throws InterruptedException {
+        long start = System.nanoTime();
+        long recordFrom = start + warmup.toNanos();
+        long deadline = recordFrom + duration.toNanos();
+
+        System.out.printf(
+                "[Bench] %d connections to %s:%d, %s, %d s of warmup then %d s measured%n",
+                connections,
+                host,
+                port,
+                rate > 0 ? String.format("%.0f requests/s", rate) : "as fast as possible",
+                warmup.toSeconds(),
+                duration.toSeconds());
+
+        List<Future<Stats>> futures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < connections; i++) {
+                int id = i;
+                futures.add(
+                        executor.submit(
+                                () -> runConnection(id, workload, start, recordFrom, deadline)));
+            }
+        }
+
+        Stats total = new Stats();
+        for (Future<Stats> future : futures) {
+            try {
+                total.add(future.get());
+            } catch (ExecutionException e) {
+                System.out.println("[Bench] Connection failed : " + e.getCause());
+                total.errors++;
+            }
+        }
+        report(total);
+    }
+
+    /**
+     * Sends requests over one connection until the deadline
+     *
+     * @param id number of the connection, used to spread the connections over the workload and over
+     *     the schedule
+     * @param workload requests to replay
+     * @param start time the run started
+     * @param recordFrom time the warmup ends
+     * @param deadline time the run ends
+     * @return measurements of the connection
+     */
+    private Stats runConnection(
+            int id, Workload workload, long start, long recordFrom, long deadline) {
+        Stats stats = new Stats();
+        List<Workload.Request> requests = workload.getRequests();
+        int cursor = (int) ((long) id * requests.size() / connections);
+
+        long period = rate > 0 ? (long) (connections * 1e9 / rate) : 0;
+        long scheduled = start + period * id / connections;
+
+        try (Socket socket = new Socket(host, port);
+                ProtocolInputStream in = new ProtocolInputStream(socket.getInputStream());
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            socket.setTcpNoDelay(true);
+
+            while (true) {
+                long now = System.nanoTime();
+                long sentAt;
+                if (period > 0) {
+                    if (scheduled >= deadline) {
+                        break;
+                    }
+                    if (scheduled > now) {
+                        Thread.sleep(Duration.ofNanos(scheduled - now));
+                    }
+                    sentAt = scheduled;
+                    scheduled += period;
+                } else {
+                    if (now >= deadline) {
+                        break;
+                    }
+                    sentAt = now;
+                }
+
+                Workload.Request request = requests.get(cursor);
+                cursor = (cursor + 1) % requests.size();
+                boolean valid = send(request, in, out);
+                long latency = System.nanoTime() - sentAt;
+
+                if (sentAt >= recordFrom) {
+                    stats.record(request.verb(), latency / 1000);
+                    if (!valid) {
+                        stats.errors++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[Bench] Connection " + id + " failed : " + e.getMessage());
+            stats.errors++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return stats;
+    }
+
+    /**
+     * Sends one request and reads its whole response
+     *
+     * @param request to send
+     * @param in response stream
+     * @param out request stream
+     * @return false if the server rejected the request, as invalid or because it is overloaded
+     * @throws IOException if the connection fails
+     */
+    private static boolean send(Workload.Request request, ProtocolInputStream in, OutputStream out)
+            throws IOException {
+        out.write((request.line() + '\n').getBytes(StandardCharsets.UTF_8));
+        if (request.content() != null) {
+            out.write(request.content());
+        }
+        out.flush();
+
+        String response = in.readLine();
+        if (response == null) {
+            throw new IOException("Server closed the connection");
+        }
+
+        if (response.startsWith(ServerMessage.CONTENT.name() + " ")) {
+            long size = Long.parseLong(response.substring(response.indexOf(' ') + 1));
+            in.copyTo(size, OutputStream.nullOutputStream());
+        } else if (response.startsWith(ServerMessage.RESULTS.name() + " ")
+                || response.startsWith(ServerMessage.PAGE.name() + " ")
+                || response.startsWith(ServerMessage.STATS.name() + " ")) {
+            int count = Integer.parseInt(response.split(" ")[1]);
+            for (int i = 0; i < count; i++) {
+                if (in.readLine() == null) {
+                    throw new IOException("Server closed the connection");
+                }
+            }
+        }
+        return !response.startsWith(ServerMessage.INVALID.name())
+                && !response.equals(ServerMessage.BUSY.name());
+    }
+
+    /**
+     * Prints throughput and latency percentiles, over all requests and per command
+     *
+     * @param total measurements of every connection
+     */
+    private void report(Stats total) {
+        LatencyHistogram all = new LatencyHistogram();
+        for (LatencyHistogram latencies : total.latencies.values()) {
+            all.add(latencies);
+        }
+
+        System.out.printf(
+                "[Bench] %d requests, %d errors, %.1f requests/s%n",
+                all.getTotalCount(),
+                total.errors,
+                all.getTotalCount() / (duration.toNanos() / 1e9));
+        System.out.println("[Bench] Latencies in microseconds :");
+        System.out.printf(
+                "  %-8s %10s %9s %9s %9s %9s %9s %9s%n",
+                "", "count", "mean", "p50", "p90", "p99", "p99.9", "max");
+        printLatencies("ALL", all);
+        for (Map.Entry<ClientMessage, LatencyHistogram> entry : total.latencies.entrySet()) {
+            printLatencies(entry.getKey().name(), entry.getValue());
+        }
+    }
+
+    private static void printLatencies(String label, LatencyHistogram latencies) {
+        System.out.printf(
+                "  %-8s %10d %9.0f %9d %9d %9d %9d %9d%n",
+                label,
+                latencies.getTotalCount(),
+                latencies.getMean(),
+                latencies.getValueAtPercentile(50),
+                latencies.getValueAtPercentile(90),
+                latencies.getValueAtPercentile(99),
+                latencies.getValueAtPercentile(99.9),
+                latencies.getMax());
+    }
+}
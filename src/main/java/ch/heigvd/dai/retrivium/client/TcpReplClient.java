@@ -1,13 +1,20 @@
 package ch.heigvd.dai.retrivium.client;
 
 import ch.heigvd.dai.retrivium.server.ServerMessage;
-import ch.heigvd.dai.retrivium.utils.FileUtils;
+import ch.heigvd.dai.retrivium.utils.ProtocolInputStream;
 import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 /** TCP client that uses REPL pattern to interact with user */
 public class TcpReplClient {
+    /** Queries per {@code MQUERY} request, the server accepts up to 10 000 */
+    private static final int BATCH_SIZE = 1000;
+
     private final String serverIP;
     private final int port;
     private final char lineFeed;
@@ -31,15 +38,22 @@ public class TcpReplClient {
                 new String[] {
                     "- List all the files currently presented and indexed on the server",
                     "<k> <query> - Find top k relevant files to the given query",
-                    "<filename> - Download file from server",
+                    "<k> <query file> [> <local file>] - Find top k relevant files to every query"
+                            + " of a local file, one per line",
+                    "<offset> <limit> <query> - Find relevant files from the given rank on, with"
+                            + " their scores",
+                    "<filename> [> <local file>] - Download file from server, to the console or to"
+                            + " a local file",
                     "<filename> <file> - Upload file to the server",
+                    "- Display the metrics of the server",
                     "- Close the connection to the server",
                     "- Display this help message"
                 };
         ClientMessage[] cmdMessages =
                 new ClientMessage[] {
-                    ClientMessage.LIST, ClientMessage.QUERY, ClientMessage.SHOW,
-                    ClientMessage.UPLOAD, ClientMessage.QUIT, ClientMessage.HELP
+                    ClientMessage.LIST, ClientMessage.QUERY, ClientMessage.MQUERY,
+                    ClientMessage.PAGE, ClientMessage.SHOW, ClientMessage.UPLOAD,
+                    ClientMessage.STATS, ClientMessage.QUIT, ClientMessage.HELP
                 };
 
         System.out.println("Usage:");
@@ -49,6 +63,110 @@ public class TcpReplClient {
         }
     }
 
+    /**
+     * Sends queries in batches, without waiting for the responses
+     *
+     * @param k number of documents per query
+     * @param queries to send
+     * @param out request stream
+     * @throws IOException if the connection fails
+     */
+    private void sendBatches(int k, List<String> queries, Writer out) throws IOException {
+        for (int from = 0; from < queries.size(); from += BATCH_SIZE) {
+            List<String> batch = queries.subList(from, Math.min(from + BATCH_SIZE, queries.size()));
+            out.write(ClientMessage.MQUERY + " " + k + " " + batch.size() + lineFeed);
+            for (String query : batch) {
+                out.write(query + lineFeed);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Runs queries in batches. Every batch is sent without waiting for the previous one to be
+     * answered : a separate thread writes the batches while the responses are read, so that neither
+     * side ends up blocked on a full socket buffer.
+     *
+     * @param k number of documents per query
+     * @param queries to run
+     * @param target local file where results are saved, console if null
+     * @param in response stream
+     * @param out request stream
+     * @throws IOException if the connection fails
+     * @throws InterruptedException if interrupted while waiting for the batches to be sent
+     */
+    private void runBatches(
+            int k, List<String> queries, File target, ProtocolInputStream in, Writer out)
+            throws IOException, InterruptedException {
+        IOException[] sendFailure = new IOException[1];
+        Thread sender =
+                Thread.ofVirtual()
+                        .start(
+                                () -> {
+                                    try {
+                                        sendBatches(k, queries, out);
+                                    } catch (IOException e) {
+                                        sendFailure[0] = e;
+                                    }
+                                });
+
+        // One line per query : the query, a tab, then the relevant documents
+        PrintStream results =
+                target == null ? System.out : new PrintStream(target, StandardCharsets.UTF_8);
+        int rejected = 0;
+        try {
+            int answered = 0;
+            while (answered < queries.size()) {
+                String header = in.readLine();
+                if (header == null) {
+                    throw new EOFException("Server closed the connection");
+                }
+
+                String[] headerParts = header.split(" ", 2);
+                if (!headerParts[0].equals(ServerMessage.RESULTS.name())) {
+                    System.out.println("Batch has been rejected : " + header);
+                    answered += Math.min(BATCH_SIZE, queries.size() - answered);
+                    continue;
+                }
+
+                int count = Integer.parseInt(headerParts[1]);
+                for (int i = 0; i < count; i++) {
+                    String response = in.readLine();
+                    if (response == null) {
+                        throw new EOFException("Server closed the connection");
+                    }
+
+                    String[] responseParts = response.split(" ", 2);
+                    if (responseParts[0].equals(ServerMessage.BUSY.name())) {
+                        rejected++;
+                    }
+                    String docs =
+                            responseParts[0].equals(ServerMessage.RELEVANT.name())
+                                    ? responseParts[1]
+                                    : "";
+                    results.println(queries.get(answered + i) + "\t" + docs);
+                }
+                answered += count;
+            }
+        } finally {
+            if (target != null) {
+                results.close();
+            }
+            sender.join();
+        }
+
+        if (sendFailure[0] != null) {
+            throw sendFailure[0];
+        }
+        if (rejected > 0) {
+            System.out.println(rejected + " queries have been rejected, the server was busy");
+        }
+        if (target != null) {
+            System.out.println(
+                    "Saved results of " + queries.size() + " queries to " + target.getPath());
+        }
+    }
+
     /**
      * Connects to the server defined by {@link TcpReplClient#serverIP} and {@link
      * TcpReplClient#port}
@@ -60,9 +178,7 @@ public class TcpReplClient {
         System.out.println("[Client] Connecting to " + serverIP + ":" + port + "...");
 
         try (Socket socket = new Socket(serverIP, port);
-                Reader reader =
-                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
-                BufferedReader in = new BufferedReader(reader);
+                ProtocolInputStream in = new ProtocolInputStream(socket.getInputStream());
                 Writer writer =
                         new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
                 BufferedWriter out = new BufferedWriter(writer);
@@ -88,6 +204,16 @@ public class TcpReplClient {
                     continue;
                 }
 
+                // Local file where SHOW saves the document, console if null
+                File showTarget = null;
+                // Local file whose content follows an UPLOAD request
+                File uploadSource = null;
+                long uploadLength = 0;
+                // Queries of a MQUERY, run in batches instead of a single request
+                List<String> batchQueries = null;
+                int batchK = 0;
+                File batchTarget = null;
+
                 try {
                     ClientMessage command = ClientMessage.valueOf(userInputParts[0].toUpperCase());
 
@@ -101,26 +227,55 @@ public class TcpReplClient {
                         case QUERY -> {
                             request = ClientMessage.QUERY + " " + userInputParts[1];
                         }
+                        case PAGE -> {
+                            request = ClientMessage.PAGE + " " + userInputParts[1];
+                        }
+                        case MQUERY -> {
+                            String[] batchParts = userInputParts[1].split(" > ", 2);
+                            String[] args = batchParts[0].split(" ", 2);
+                            batchK = Integer.parseInt(args[0]);
+                            if (batchK <= 0) {
+                                throw new IllegalArgumentException("<k> is not positive");
+                            }
+
+                            batchQueries = new ArrayList<>();
+                            for (String query :
+                                    Files.readAllLines(Path.of(args[1]), StandardCharsets.UTF_8)) {
+                                if (!query.isBlank()) {
+                                    batchQueries.add(query.strip());
+                                }
+                            }
+                            if (batchParts.length == 2) {
+                                batchTarget = new File(batchParts[1]);
+                            }
+                        }
                         case SHOW -> {
-                            request = ClientMessage.SHOW + " " + userInputParts[1];
+                            String[] showParts = userInputParts[1].split(" > ", 2);
+                            request = ClientMessage.SHOW + " " + showParts[0];
+                            if (showParts.length == 2) {
+                                showTarget = new File(showParts[1]);
+                            }
                         }
                         case UPLOAD -> {
-                            String filename = userInputParts[1];
-
-                            String content;
-                            try {
-                                File targetFile = new File(filename);
-                                content = FileUtils.readFile(targetFile);
-                                request =
-                                        ClientMessage.UPLOAD
-                                                + " "
-                                                + targetFile.getName()
-                                                + " "
-                                                + content;
-                            } catch (IOException e) {
-                                System.out.println("[Client] Cannot read a file : " + e);
-                                throw e;
+                            File targetFile = new File(userInputParts[1]);
+                            if (!targetFile.isFile()) {
+                                System.out.println(
+                                        "[Client] Cannot read a file : " + targetFile.getPath());
+                                throw new FileNotFoundException(targetFile.getPath());
                             }
+
+                            // Header only carries the length, raw content follows
+                            uploadSource = targetFile;
+                            uploadLength = targetFile.length();
+                            request =
+                                    ClientMessage.UPLOAD
+                                            + " "
+                                            + targetFile.getName()
+                                            + " "
+                                            + uploadLength;
+                        }
+                        case STATS -> {
+                            request = ClientMessage.STATS.name();
                         }
                         case QUIT -> {
                             socket.close();
@@ -130,6 +285,9 @@ public class TcpReplClient {
                             help();
                             continue;
                         }
+                        case TERMS, SCORED -> {
+                            throw new IllegalArgumentException(command + " is sent by routers");
+                        }
                     }
 
                     if (request != null) {
@@ -138,11 +296,24 @@ public class TcpReplClient {
                         out.flush();
                     }
 
+                    if (uploadSource != null) {
+                        // Exactly the announced length, even if the file changed meanwhile
+                        try (ProtocolInputStream fileIn =
+                                new ProtocolInputStream(new FileInputStream(uploadSource))) {
+                            fileIn.copyTo(uploadLength, socket.getOutputStream());
+                        }
+                    }
+
                 } catch (Exception e) {
                     System.out.println("Invalid command. Please try again.");
                     continue;
                 }
 
+                if (batchQueries != null) {
+                    runBatches(batchK, batchQueries, batchTarget, in, out);
+                    continue;
+                }
+
                 // Read response from server and parse it
                 String serverResponse = in.readLine();
 
@@ -188,17 +359,46 @@ public class TcpReplClient {
                             System.out.println(docName);
                         }
                     }
+                    case PAGE -> {
+                        String[] pageParts = serverResponseParts[1].split(" ");
+                        int count = Integer.parseInt(pageParts[0]);
+                        System.out.println(
+                                "There is "
+                                        + count
+                                        + " relevant documents on this page (score, then"
+                                        + " document):");
+                        for (int i = 0; i < count; i++) {
+                            String document = in.readLine();
+                            if (document == null) {
+                                throw new EOFException("Server closed the connection");
+                            }
+                            System.out.println(document);
+                        }
+                        if (pageParts[1].equals("MORE")) {
+                            System.out.println("More documents follow on the next pages");
+                        }
+                    }
                     case NOTHING_RELEVANT -> {
                         System.out.println("There is no relevant documents to your query");
                     }
                     case CONTENT -> {
-                        String doc = serverResponseParts[1];
-                        System.out.println("Demanded document :");
-                        System.out.println(doc);
-                        // TODO:
-                        // What if document is very long
-                        // so, we should split it to the multiple lines
-                        // and only then display it
+                        // Header only carries the length, raw content follows
+                        long length = Long.parseLong(serverResponseParts[1]);
+                        if (showTarget == null) {
+                            System.out.println("Demanded document :");
+                            in.copyTo(length, System.out);
+                            System.out.println();
+                        } else {
+                            try (OutputStream fileOut =
+                                    new BufferedOutputStream(new FileOutputStream(showTarget))) {
+                                in.copyTo(length, fileOut);
+                            }
+                            System.out.println(
+                                    "Saved demanded document ("
+                                            + length
+                                            + " bytes) to "
+                                            + showTarget.getPath());
+                        }
                     }
                     case FILE_DOESNT_EXIST -> {
                         System.out.println("Server does not has the demanded document");
@@ -206,6 +406,20 @@ public class TcpReplClient {
                     case UPLOADED -> {
                         System.out.println("Uploaded " + serverResponseParts[1]);
                     }
+                    case STATS -> {
+                        int count = Integer.parseInt(serverResponseParts[1]);
+                        System.out.println("Metrics of the server :");
+                        for (int i = 0; i < count; i++) {
+                            String metric = in.readLine();
+                            if (metric == null) {
+                                throw new EOFException("Server closed the connection");
+                            }
+                            System.out.println("  " + metric);
+                        }
+                    }
+                    case BUSY -> {
+                        System.out.println("Server is overloaded. Please try again later.");
+                    }
                     case INVALID -> {
                         if (serverResponseParts.length < 2) {
                             System.out.println("Invalid message. Please try again.");
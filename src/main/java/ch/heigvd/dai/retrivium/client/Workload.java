@@ -0,0 +1,146 @@
+package ch.heigvd.dai.retrivium.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sequence of requests replayed by a {@link LoadGenerator}. A workload file holds one request per
+ * line, written with the verbs of {@link ClientMessage} :
+ *
+ * <pre>
+ * # Lines starting with # and blank lines are ignored
+ * LIST
+ * STATS
+ * QUERY 10 distributed systems
+ * MQUERY 10 local/path/to/queries.txt
+ * SHOW notes.txt
+ * UPLOAD notes.txt local/path/to/notes.txt
+ * </pre>
+ *
+ * <p>The mix of requests is given by the file itself : a request written twice is sent twice as
+ * often. The content of uploaded files and of query files, one query per line, is read once, when
+ * the workload is loaded.
+ */
+public class Workload {
+
+    /**
+     * One request of the workload
+     *
+     * @param verb command of the request
+     * @param line request line as sent to the server, without line feed
+     * @param content raw content sent after the line, null if there is none
+     */
+    public record Request(ClientMessage verb, String line, byte[] content) {}
+
+    private final List<Request> requests;
+
+    private Workload(List<Request> requests) {
+        this.requests = requests;
+    }
+
+    /**
+     * @return requests in the order of the file
+     */
+    public List<Request> getRequests() {
+        return requests;
+    }
+
+    /**
+     * Reads a workload file
+     *
+     * @param file to read
+     * @return the workload
+     * @throws IOException if the file or an uploaded file cannot be read, or a line is not a valid
+     *     request
+     */
+    public static Workload load(File file) throws IOException {
+        ArrayList<Request> requests = new ArrayList<>();
+
+        try (BufferedReader reader =
+                new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                try {
+                    requests.add(parse(line));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(
+                            file.getPath() + ":" + lineNumber + " : " + e.getMessage(), e);
+                }
+            }
+        }
+
+        if (requests.isEmpty()) {
+            throw new IOException(file.getPath() + " holds no request");
+        }
+        return new Workload(requests);
+    }
+
+    /**
+     * @param line non-blank line of a workload file
+     * @return the request
+     * @throws IOException if the file to upload cannot be read
+     */
+    private static Request parse(String line) throws IOException {
+        String[] parts = line.split(" ", 2);
+        ClientMessage verb;
+        try {
+            verb = ClientMessage.valueOf(parts[0]);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown command " + parts[0]);
+        }
+
+        return switch (verb) {
+            case LIST, STATS -> new Request(verb, verb.name(), null);
+            case QUERY, PAGE, SHOW -> {
+                if (parts.length < 2) {
+                    throw new IllegalArgumentException(verb + " needs an argument");
+                }
+                yield new Request(verb, line, null);
+            }
+            case MQUERY -> {
+                String[] batch = parts.length < 2 ? new String[0] : parts[1].split(" ", 2);
+                if (batch.length < 2) {
+                    throw new IllegalArgumentException("MQUERY needs <k> and a local file");
+                }
+                List<String> queries =
+                        Files.readAllLines(new File(batch[1]).toPath(), StandardCharsets.UTF_8);
+                StringBuilder content = new StringBuilder();
+                for (String query : queries) {
+                    content.append(query).append('\n');
+                }
+                yield new Request(
+                        verb,
+                        ClientMessage.MQUERY + " " + batch[0] + " " + queries.size(),
+                        content.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            case UPLOAD -> {
+                // The local path is the last part, the document name may contain spaces
+                int separator = parts.length < 2 ? -1 : parts[1].lastIndexOf(' ');
+                if (separator < 0) {
+                    throw new IllegalArgumentException(
+                            "UPLOAD needs a document name and a local file");
+                }
+                String docName = parts[1].substring(0, separator);
+                byte[] content =
+                        Files.readAllBytes(new File(parts[1].substring(separator + 1)).toPath());
+                yield new Request(
+                        verb, ClientMessage.UPLOAD + " " + docName + " " + content.length, content);
+            }
+            case HELP, QUIT, TERMS, SCORED ->
+                    throw new IllegalArgumentException(verb + " cannot be replayed");
+        };
+    }
+}
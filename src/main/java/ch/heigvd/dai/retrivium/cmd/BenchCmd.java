@@ -0,0 +1,95 @@
+package ch.heigvd.dai.retrivium.cmd;
+
+import ch.heigvd.dai.retrivium.client.LoadGenerator;
+import ch.heigvd.dai.retrivium.client.Workload;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import picocli.CommandLine;
+
+/** PicoCLI class that represents load generator CLI */
+@CommandLine.Command(
+        name = "bench",
+        description = "Replay a workload against a server and report throughput and latencies.")
+public class BenchCmd implements Callable<Integer> {
+
+    @CommandLine.Option(
+            names = {"-H", "--host"},
+            description = "Host to connect to.",
+            required = true)
+    protected String serverIP;
+
+    @CommandLine.Option(
+            names = {"-p", "--port"},
+            description = "Port to use (default: ${DEFAULT-VALUE}).",
+            defaultValue = "6433")
+    protected int port;
+
+    @CommandLine.Option(
+            names = {"-w", "--workload"},
+            description = "File with one request per line, e.g. QUERY 10 distributed systems.",
+            required = true)
+    protected File workloadFile;
+
+    @CommandLine.Option(
+            names = {"-c", "--connections"},
+            description = "Number of concurrent connections (default: ${DEFAULT-VALUE}).",
+            defaultValue = "16")
+    protected int connections;
+
+    @CommandLine.Option(
+            names = {"-r", "--rate"},
+            description =
+                    "Requests per second over all connections, 0 for as fast as possible"
+                            + " (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected double rate;
+
+    @CommandLine.Option(
+            names = {"-d", "--duration"},
+            description =
+                    "Seconds during which latencies are measured (default: ${DEFAULT-VALUE}).",
+            defaultValue = "30")
+    protected int durationSeconds;
+
+    @CommandLine.Option(
+            names = {"--warmup"},
+            description = "Seconds of load before measuring (default: ${DEFAULT-VALUE}).",
+            defaultValue = "5")
+    protected int warmupSeconds;
+
+    @Override
+    public Integer call() {
+        if (connections <= 0 || rate < 0 || durationSeconds <= 0 || warmupSeconds < 0) {
+            System.out.println(
+                    "[Bench] Connections and duration must be positive, rate and warmup must not"
+                            + " be negative");
+            return 1;
+        }
+
+        Workload workload;
+        try {
+            workload = Workload.load(workloadFile);
+        } catch (IOException e) {
+            System.out.println("[Bench] Unable to read workload : " + e.getMessage());
+            return 1;
+        }
+
+        LoadGenerator generator =
+                new LoadGenerator(
+                        serverIP,
+                        port,
+                        connections,
+                        rate,
+                        Duration.ofSeconds(warmupSeconds),
+                        Duration.ofSeconds(durationSeconds));
+        try {
+            generator.run(workload);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+        return 0;
+    }
+}
@@ -2,13 +2,18 @@ package ch.heigvd.dai.retrivium.cmd;
 
 import picocli.CommandLine;
 
-/** Parent PicoCLI cmd for {@link ClientCmd} and {@link ServerCmd} */
+/**
+ * Parent PicoCLI cmd for {@link ClientCmd}, {@link ServerCmd}, {@link RouterCmd} and {@link
+ * BenchCmd}
+ */
 @CommandLine.Command(
         description = "A small TCP-based search engine",
         version = "1.0.0",
         subcommands = {
             ClientCmd.class,
             ServerCmd.class,
+            RouterCmd.class,
+            BenchCmd.class,
         },
         scope = CommandLine.ScopeType.INHERIT,
         mixinStandardHelpOptions = true)
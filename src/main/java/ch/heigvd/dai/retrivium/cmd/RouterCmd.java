@@ -0,0 +1,88 @@
+package ch.heigvd.dai.retrivium.cmd;
+
+import ch.heigvd.dai.retrivium.router.Router;
+import ch.heigvd.dai.retrivium.server.ServerLimits;
+import ch.heigvd.dai.retrivium.utils.Log;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import picocli.CommandLine;
+
+/** PicoCLI class that represents router CLI */
+@CommandLine.Command(
+        name = "router",
+        description = "Start a router that queries a corpus partitioned over several servers")
+public class RouterCmd implements Callable<Integer> {
+
+    @CommandLine.Option(
+            names = {"-p", "--port"},
+            description = "Port to use (default: ${DEFAULT-VALUE}).",
+            defaultValue = "6433")
+    protected int port;
+
+    @CommandLine.Option(
+            names = {"-N", "--node"},
+            description =
+                    "Address <host>:<port> of a server holding a partition, repeated for every"
+                            + " server",
+            required = true)
+    protected List<String> nodes;
+
+    @CommandLine.Option(
+            names = {"--node-timeout"},
+            description =
+                    "Milliseconds a server has to answer, a slower one is left out of the response"
+                            + " (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1000")
+    protected int nodeTimeout;
+
+    @CommandLine.Option(
+            names = {"--pool-size"},
+            description =
+                    "Connections kept open to every server between requests"
+                            + " (default: ${DEFAULT-VALUE}).",
+            defaultValue = "16")
+    protected int poolSize;
+
+    @CommandLine.Option(
+            names = {"-l", "--log-level"},
+            description =
+                    "Least severe messages logged, one of ${COMPLETION-CANDIDATES}, DEBUG logs"
+                            + " every request (default: ${DEFAULT-VALUE}).",
+            defaultValue = "INFO")
+    protected Log.Level logLevel;
+
+    @Override
+    public Integer call() {
+        if (nodeTimeout <= 0 || poolSize < 0) {
+            System.out.println("Node timeout must be positive and pool size not negative");
+            return 1;
+        }
+
+        List<InetSocketAddress> addresses = new ArrayList<>(nodes.size());
+        for (String node : nodes) {
+            try {
+                addresses.add(ServerCmd.parseAddress(node));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Nodes must be given as <host>:<port>");
+                return 1;
+            }
+        }
+
+        System.out.println("Starting router ...");
+        Log.setLevel(logLevel);
+
+        Router router =
+                new Router(
+                        port,
+                        addresses,
+                        Duration.ofMillis(nodeTimeout),
+                        poolSize,
+                        ServerLimits.DEFAULTS);
+        router.launch();
+
+        return 0;
+    }
+}
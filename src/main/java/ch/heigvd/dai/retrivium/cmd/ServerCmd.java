@@ -1,7 +1,13 @@
 package ch.heigvd.dai.retrivium.cmd;
 
+import ch.heigvd.dai.retrivium.analysis.Analyzer;
+import ch.heigvd.dai.retrivium.server.Engine;
+import ch.heigvd.dai.retrivium.server.ServerLimits;
 import ch.heigvd.dai.retrivium.server.TcpServer;
+import ch.heigvd.dai.retrivium.utils.Log;
 import java.io.File;
+import java.net.InetSocketAddress;
+import java.time.Duration;
 import java.util.concurrent.Callable;
 import picocli.CommandLine;
 
@@ -20,13 +26,215 @@ public class ServerCmd implements Callable<Integer> {
             description = "Directory that contains documents that will be used for search")
     protected File dataDir;
 
+    @CommandLine.Option(
+            names = {"-I", "--index-dir"},
+            description =
+                    "Directory where the index is persisted between restarts (default: none, the"
+                            + " index is rebuilt on every start)")
+    protected File indexDir;
+
+    @CommandLine.Option(
+            names = {"-s", "--shards"},
+            description =
+                    "Number of shards the index is split in, queries rank them in parallel"
+                            + " (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1")
+    protected int shards;
+
+    @CommandLine.Option(
+            names = {"-a", "--analyzer"},
+            description =
+                    "Steps turning documents and queries into terms, separated by commas, among"
+                            + " standard, bm25, lowercase, stop, stem and ngram:<min>-<max>"
+                            + " (default: ${DEFAULT-VALUE}).",
+            defaultValue = Analyzer.DEFAULT_SPEC)
+    protected String analyzerSpec;
+
+    @CommandLine.Option(
+            names = {"--merge-cpu"},
+            description =
+                    "Percentage of one CPU used to merge index segments in the background, from 1"
+                            + " to 100 (default: ${DEFAULT-VALUE}).",
+            defaultValue = "25")
+    protected int mergeCpu;
+
+    @CommandLine.Option(
+            names = {"-e", "--engine"},
+            description =
+                    "Network engine, one of ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).",
+            defaultValue = "BLOCKING")
+    protected Engine engine;
+
+    @CommandLine.Option(
+            names = {"-l", "--log-level"},
+            description =
+                    "Least severe messages logged, one of ${COMPLETION-CANDIDATES}, DEBUG logs"
+                            + " every request (default: ${DEFAULT-VALUE}).",
+            defaultValue = "INFO")
+    protected Log.Level logLevel;
+
+    @CommandLine.Option(
+            names = {"-M", "--metrics-file"},
+            description =
+                    "File rewritten periodically with the metrics of the server (default: none,"
+                            + " metrics are only available through STATS and JMX)")
+    protected File metricsFile;
+
+    @CommandLine.Option(
+            names = {"--metrics-interval"},
+            description =
+                    "Seconds between two writes of the metrics file (default: ${DEFAULT-VALUE}).",
+            defaultValue = "60")
+    protected int metricsInterval;
+
+    @CommandLine.Option(
+            names = {"--max-connections"},
+            description =
+                    "Connections served at once, the next ones are answered BUSY"
+                            + " (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1024")
+    protected int maxConnections;
+
+    @CommandLine.Option(
+            names = {"--max-queries"},
+            description =
+                    "Queries executed at once, the next ones are answered BUSY instead of waiting"
+                            + " (default: ${DEFAULT-VALUE}).",
+            defaultValue = "64")
+    protected int maxQueries;
+
+    @CommandLine.Option(
+            names = {"--read-timeout"},
+            description =
+                    "Seconds a client may stay silent in the middle of a request, 0 for no limit"
+                            + " (default: ${DEFAULT-VALUE}).",
+            defaultValue = "30")
+    protected int readTimeout;
+
+    @CommandLine.Option(
+            names = {"--idle-timeout"},
+            description =
+                    "Seconds a client may stay silent between two requests, 0 for no limit"
+                            + " (default: ${DEFAULT-VALUE}).",
+            defaultValue = "300")
+    protected int idleTimeout;
+
+    @CommandLine.Option(
+            names = {"--max-line-length"},
+            description =
+                    "Bytes of a request line, the connection is closed on a longer one"
+                            + " (default: ${DEFAULT-VALUE}).",
+            defaultValue = "65536")
+    protected int maxLineLength;
+
+    @CommandLine.Option(
+            names = {"--max-request-bytes"},
+            description =
+                    "Bytes of the lines following a request, the queries of a batch beyond them are"
+                            + " answered BUSY (default: ${DEFAULT-VALUE}).",
+            defaultValue = "4194304")
+    protected int maxRequestBytes;
+
+    @CommandLine.Option(
+            names = {"--replication-port"},
+            description =
+                    "Port replicas connect to to follow the changes of this server (default: none,"
+                            + " no replica)")
+    protected Integer replicationPort;
+
+    @CommandLine.Option(
+            names = {"--primary"},
+            description =
+                    "Replication address <host>:<port> of a primary to follow, this server becomes"
+                            + " a read-only replica (default: none)")
+    protected String primary;
+
     @Override
     public Integer call() {
+        if (shards <= 0) {
+            System.out.println("Number of shards must be positive");
+            return 1;
+        }
+        if (mergeCpu < 1 || mergeCpu > 100) {
+            System.out.println("Merge CPU percentage must be between 1 and 100");
+            return 1;
+        }
+        if (metricsInterval <= 0) {
+            System.out.println("Interval between metrics writes must be positive");
+            return 1;
+        }
+
+        if (maxConnections <= 0 || maxQueries <= 0 || maxLineLength <= 0 || maxRequestBytes <= 0) {
+            System.out.println("Connection, query, line and request limits must be positive");
+            return 1;
+        }
+        if (readTimeout < 0 || idleTimeout < 0) {
+            System.out.println("Timeouts cannot be negative");
+            return 1;
+        }
+
+        Analyzer analyzer;
+        try {
+            analyzer = Analyzer.parse(analyzerSpec);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid analyzer : " + e.getMessage());
+            return 1;
+        }
+
+        InetSocketAddress primaryAddress = null;
+        if (primary != null) {
+            try {
+                primaryAddress = parseAddress(primary);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Primary must be given as <host>:<port>");
+                return 1;
+            }
+        }
+        if (replicationPort != null && (replicationPort <= 0 || replicationPort > 65535)) {
+            System.out.println("Replication port must be between 1 and 65535");
+            return 1;
+        }
+
         System.out.println("Starting server ...");
+        Log.setLevel(logLevel);
 
-        TcpServer server = new TcpServer(port, dataDir, '\n');
+        ServerLimits limits =
+                new ServerLimits(
+                        maxConnections,
+                        maxQueries,
+                        Duration.ofSeconds(readTimeout),
+                        Duration.ofSeconds(idleTimeout),
+                        maxLineLength,
+                        maxRequestBytes);
+        TcpServer server =
+                new TcpServer(port, dataDir, indexDir, shards, analyzer, engine, limits, '\n');
+        if (metricsFile != null) {
+            server.getMetrics().dumpPeriodically(metricsFile, Duration.ofSeconds(metricsInterval));
+        }
+        server.throttleMerges(mergeCpu);
+        if (replicationPort != null) {
+            server.serveReplicas(replicationPort);
+        }
+        if (primaryAddress != null) {
+            server.followPrimary(primaryAddress);
+        }
         server.launch();
 
         return 0;
     }
+
+    /**
+     * @param address given as {@code <host>:<port>}
+     * @return the address, resolved only when connecting to it
+     * @throws IllegalArgumentException if the address is not of that form
+     */
+    static InetSocketAddress parseAddress(String address) {
+        int separator = address.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Missing port : " + address);
+        }
+        return InetSocketAddress.createUnresolved(
+                address.substring(0, separator),
+                Integer.parseInt(address.substring(separator + 1)));
+    }
 }
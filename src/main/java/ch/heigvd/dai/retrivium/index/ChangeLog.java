@@ -0,0 +1,135 @@
+package ch.heigvd.dai.retrivium.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Append-only log of the documents changed in a {@link SharedIndex}, tailed by replicas to follow
+ * the index of a primary.
+ *
+ * <p>An entry only holds the name of a document and a sequence number : the change itself is read
+ * from the index when the entry is shipped, a document still indexed being sent with its current
+ * content and any other one being removed. Replaying an entry is therefore idempotent, and a
+ * replica that replays the log in order ends up with the same documents as the primary.
+ *
+ * <p>The log keeps a bounded number of entries. A replica further behind, or that followed a log
+ * since restarted with a full rebuild of the index, has to start again from a snapshot of the whole
+ * index. Each run of the log has its own epoch, so that such a replica is told apart.
+ *
+ * <p>Instances are thread-safe.
+ */
+public class ChangeLog {
+    /** Entries kept, the one of sequence number {@code seq} lies at {@code seq % capacity} */
+    private final String[] docNames;
+
+    private long epoch;
+
+    /** Sequence number of the oldest entry kept */
+    private long firstSeq;
+
+    /** Sequence number of the last entry appended, {@code firstSeq - 1} while the log is empty */
+    private long lastSeq;
+
+    /**
+     * Point of a log up to which a replica has applied the changes
+     *
+     * @param epoch of the run of the log
+     * @param seq sequence number of the last entry applied
+     */
+    public record Position(long epoch, long seq) {}
+
+    /**
+     * Changes of a log read by a replica
+     *
+     * @param firstSeq sequence number of the first entry of {@code docNames}
+     * @param docNames names of the changed documents, in the order the changes were made
+     */
+    public record Entries(long firstSeq, List<String> docNames) {
+
+        /**
+         * @return sequence number of the last entry, {@code firstSeq - 1} if there is none
+         */
+        public long lastSeq() {
+            return firstSeq + docNames.size() - 1;
+        }
+    }
+
+    /**
+     * Constructs an empty {@code ChangeLog}
+     *
+     * @param capacity number of entries kept
+     */
+    public ChangeLog(int capacity) {
+        this.docNames = new String[capacity];
+        this.epoch = newEpoch();
+        this.firstSeq = 1;
+        this.lastSeq = 0;
+    }
+
+    private static long newEpoch() {
+        // Zero is kept for replicas that have never followed any log
+        return ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return epoch of the current run and sequence number of the last entry appended, read at once
+     */
+    public synchronized Position position() {
+        return new Position(epoch, lastSeq);
+    }
+
+    /**
+     * Records that a document has been added, replaced or removed
+     *
+     * @param docName name of the document
+     */
+    synchronized void append(String docName) {
+        lastSeq++;
+        docNames[(int) (lastSeq % docNames.length)] = docName;
+        if (lastSeq - firstSeq >= docNames.length) {
+            firstSeq++;
+        }
+        notifyAll();
+    }
+
+    /** Drops every entry and starts a new epoch, once the whole index has been replaced */
+    synchronized void restart() {
+        epoch = newEpoch();
+        firstSeq = lastSeq + 1;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the entries following a position of a replica
+     *
+     * @param epoch followed by the replica
+     * @param afterSeq sequence number of the last entry applied by the replica
+     * @param max maximal number of entries to return
+     * @param timeoutMillis time to wait for an entry, positive
+     * @return entries following {@code afterSeq}, none if nothing happened in time, null if the
+     *     replica has to start again from a snapshot
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized Entries read(long epoch, long afterSeq, int max, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (epoch == this.epoch && afterSeq == lastSeq) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return new Entries(afterSeq + 1, List.of());
+            }
+            wait(remaining);
+        }
+        if (epoch != this.epoch || afterSeq < firstSeq - 1 || afterSeq > lastSeq) {
+            return null;
+        }
+
+        int count = (int) Math.min(max, lastSeq - afterSeq);
+        List<String> names = new ArrayList<>(count);
+        for (long seq = afterSeq + 1; seq <= afterSeq + count; seq++) {
+            names.add(docNames[(int) (seq % docNames.length)]);
+        }
+        return new Entries(afterSeq + 1, names);
+    }
+}
@@ -0,0 +1,194 @@
+package ch.heigvd.dai.retrivium.index;
+
+import ch.heigvd.dai.retrivium.utils.FileUtils;
+import ch.heigvd.dai.retrivium.utils.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Builds a {@link ShardedIndex} from many files in parallel.
+ *
+ * <p>Ingestion runs in three stages :
+ *
+ * <ol>
+ *   <li>files are read on virtual threads, so slow disks do not hold up the CPU-bound stage
+ *   <li>a fixed pool of workers tokenizes the documents, each worker into its own partial index of
+ *       every shard
+ *   <li>the partial indexes of each shard are merged once every document has been processed
+ * </ol>
+ *
+ * At most {@code maxInFlight} documents are read but not yet indexed at any time, so the raw text
+ * held in memory is bounded whatever the size of the corpus. Documents larger than {@link
+ * CorpusIngester#STREAMING_THRESHOLD} are not read upfront, the worker streams them through {@link
+ * Tokenizer#tokenize(File, DocumentTerms)} instead.
+ */
+public class CorpusIngester {
+    /** Size in bytes above which a document is streamed instead of being read at once */
+    public static final long STREAMING_THRESHOLD = 1 << 20;
+
+    private static final RawDocument END = new RawDocument(null, null, null);
+
+    private final Tokenizer tokenizer;
+    private final int workers;
+    private final int maxInFlight;
+
+    /**
+     * Constructs {@code CorpusIngester}
+     *
+     * @param tokenizer splits a document into terms, called concurrently
+     * @param workers number of tokenizing threads
+     * @param maxInFlight maximal number of documents read but not indexed yet
+     */
+    public CorpusIngester(Tokenizer tokenizer, int workers, int maxInFlight) {
+        this.tokenizer = tokenizer;
+        this.workers = workers;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Constructs {@code CorpusIngester} with one worker per core
+     *
+     * @param tokenizer splits a document into terms, called concurrently
+     */
+    public CorpusIngester(Tokenizer tokenizer) {
+        this(
+                tokenizer,
+                Runtime.getRuntime().availableProcessors(),
+                4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Indexes the given files, those that cannot be read are skipped
+     *
+     * @param files to index, their names are used as document names
+     * @param fingerprints filled with the fingerprints of the indexed files, taken before reading
+     * @param numShards number of shards to split the documents in
+     * @return index of all the readable files
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public ShardedIndex ingest(
+            File[] files, Map<String, FileFingerprint> fingerprints, int numShards)
+            throws InterruptedException {
+        BlockingQueue<RawDocument> queue = new ArrayBlockingQueue<>(maxInFlight + workers);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        List<Future<InvertedIndex[]>> partials = new ArrayList<>();
+
+        ExecutorService tokenizers = Executors.newFixedThreadPool(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                partials.add(
+                        tokenizers.submit(
+                                () -> tokenizeAll(queue, inFlight, fingerprints, numShards)));
+            }
+
+            try (ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (File file : files) {
+                    inFlight.acquire();
+                    readers.submit(() -> read(file, queue, inFlight));
+                }
+            }
+
+            for (int i = 0; i < workers; i++) {
+                queue.put(END);
+            }
+
+            ArrayList<InvertedIndex[]> parts = new ArrayList<>();
+            for (Future<InvertedIndex[]> partial : partials) {
+                parts.add(partial.get());
+            }
+
+            // Every shard starts as a single sealed segment
+            SegmentedIndex[] shards = new SegmentedIndex[numShards];
+            for (int shard = 0; shard < numShards; shard++) {
+                ArrayList<InvertedIndex> shardParts = new ArrayList<>();
+                for (InvertedIndex[] part : parts) {
+                    shardParts.add(part[shard]);
+                }
+                shards[shard] = new SegmentedIndex(List.of(InvertedIndex.merge(shardParts)));
+            }
+            return new ShardedIndex(shards);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Indexing worker failed", e.getCause());
+        } finally {
+            // Workers are done by now, unless ingestion failed or was interrupted
+            tokenizers.shutdownNow();
+        }
+    }
+
+    private static void read(File file, BlockingQueue<RawDocument> queue, Semaphore inFlight) {
+        // Fingerprint is taken before reading, so a concurrent change is seen as a new one
+        FileFingerprint fingerprint = FileFingerprint.of(file);
+        if (fingerprint == null) {
+            inFlight.release();
+            return;
+        }
+
+        try {
+            String content =
+                    fingerprint.getSize() > STREAMING_THRESHOLD ? null : FileUtils.readFile(file);
+            queue.put(new RawDocument(file, fingerprint, content));
+        } catch (IOException e) {
+            Log.warn("Cannot read a file %s, skipping", file.getName());
+            inFlight.release();
+        } catch (InterruptedException e) {
+            inFlight.release();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private InvertedIndex[] tokenizeAll(
+            BlockingQueue<RawDocument> queue,
+            Semaphore inFlight,
+            Map<String, FileFingerprint> fingerprints,
+            int numShards)
+            throws InterruptedException {
+        InvertedIndex[] partial = new InvertedIndex[numShards];
+        for (int shard = 0; shard < numShards; shard++) {
+            partial[shard] = new InvertedIndex();
+        }
+        while (true) {
+            RawDocument doc = queue.take();
+            if (doc == END) {
+                return partial;
+            }
+            try {
+                DocumentTerms terms = new DocumentTerms();
+                if (doc.content != null) {
+                    tokenizer.tokenize(doc.content, terms);
+                } else {
+                    tokenizer.tokenize(doc.file, terms);
+                }
+                String docName = doc.file.getName();
+                partial[ShardedIndex.shardOf(docName, numShards)].addDocument(docName, terms);
+                fingerprints.put(docName, doc.fingerprint);
+            } catch (IOException e) {
+                Log.warn("Cannot read a file %s, skipping", doc.file.getName());
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    /** Document read from disk, waiting to be tokenized */
+    private static class RawDocument {
+        private final File file;
+        private final FileFingerprint fingerprint;
+        private final String content;
+
+        private RawDocument(File file, FileFingerprint fingerprint, String content) {
+            this.file = file;
+            this.fingerprint = fingerprint;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ch.heigvd.dai.retrivium.index;
+
+import java.util.List;
+
+/**
+ * Statistics of a corpus that BM25 needs to score a query : number of documents, total length of
+ * the documents and document frequency of every query term.
+ *
+ * <p>When the corpus is split in shards, each {@link InvertedIndex} adds its own counts, so a
+ * document is scored against the whole corpus whichever shard holds it. The same goes for a corpus
+ * partitioned over several servers, whose counts are summed by the router that queries them.
+ */
+public class CorpusStats {
+    private final List<String> terms;
+    private final int[] docFreqs;
+    private int numOfDocs;
+    private long totalLength;
+
+    /**
+     * Constructs {@code CorpusStats} with every count at zero
+     *
+     * @param terms distinct terms of the query
+     */
+    public CorpusStats(List<String> terms) {
+        this.terms = terms;
+        this.docFreqs = new int[terms.size()];
+    }
+
+    /**
+     * @return distinct terms of the query
+     */
+    public List<String> getTerms() {
+        return terms;
+    }
+
+    /**
+     * @return number of documents of the corpus
+     */
+    public int getNumOfDocs() {
+        return numOfDocs;
+    }
+
+    /**
+     * @return sum of the lengths of the documents of the corpus
+     */
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * @param term position of the term in {@link CorpusStats#getTerms()}
+     * @return number of documents of the corpus containing the term
+     */
+    public int getDocFreq(int term) {
+        return docFreqs[term];
+    }
+
+    /**
+     * Adds the documents of a part of the corpus
+     *
+     * @param numOfDocs number of documents of the part
+     * @param totalLength sum of the lengths of these documents
+     */
+    public void addDocuments(int numOfDocs, long totalLength) {
+        this.numOfDocs += numOfDocs;
+        this.totalLength += totalLength;
+    }
+
+    /**
+     * Adds the documents of a part of the corpus that contain a term
+     *
+     * @param term position of the term in {@link CorpusStats#getTerms()}
+     * @param docFreq number of documents of the part containing the term
+     */
+    public void addDocFreq(int term, int docFreq) {
+        docFreqs[term] += docFreq;
+    }
+
+    /**
+     * @return average length of a document, the corpus must not be empty
+     */
+    double avgDocLength() {
+        return (double) totalLength / numOfDocs;
+    }
+
+    /**
+     * @param term position of the term in {@link CorpusStats#getTerms()}
+     * @return inverse document frequency of the term
+     */
+    double idf(int term) {
+        return Math.log(1 + (numOfDocs - docFreqs[term] + 0.5) / (docFreqs[term] + 0.5));
+    }
+}
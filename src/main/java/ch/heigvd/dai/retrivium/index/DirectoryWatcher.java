@@ -0,0 +1,127 @@
+package ch.heigvd.dai.retrivium.index;
+
+import ch.heigvd.dai.retrivium.utils.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background watcher that keeps a {@link SharedIndex} in sync with its directory.
+ *
+ * <p>File system events are collected until the directory has been quiet for the debounce delay (or
+ * until ten delays have passed, so a constantly busy directory still gets indexed), then only the
+ * files that were touched are handed to {@link SharedIndex#refresh(File)}. If the watch service
+ * overflows, the whole directory is compared against the known fingerprints instead.
+ */
+public class DirectoryWatcher implements AutoCloseable {
+    private final SharedIndex index;
+    private final long debounceMillis;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Constructs {@code DirectoryWatcher} and starts watching right away, events are queued until
+     * {@link DirectoryWatcher#start()} is called
+     *
+     * @param index to keep up to date
+     * @param debounceMillis quiet time to wait for before applying changes
+     * @throws IOException if the directory cannot be watched
+     */
+    public DirectoryWatcher(SharedIndex index, long debounceMillis) throws IOException {
+        this.index = index;
+        this.debounceMillis = debounceMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this::watch, "index-watcher");
+        this.thread.setDaemon(true);
+
+        index.getTargetDir()
+                .toPath()
+                .register(
+                        watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    /** Starts applying changes in a background thread */
+    public void start() {
+        thread.start();
+    }
+
+    private void watch() {
+        HashSet<String> pending = new HashSet<>();
+        boolean overflow = false;
+        long firstPendingAt = 0;
+
+        try {
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty() && !overflow) {
+                    key = watchService.take();
+                    firstPendingAt = System.currentTimeMillis();
+                } else {
+                    long waited = System.currentTimeMillis() - firstPendingAt;
+                    long timeout = Math.min(debounceMillis, debounceMillis * 10 - waited);
+                    key = timeout > 0 ? watchService.poll(timeout, TimeUnit.MILLISECONDS) : null;
+                }
+
+                if (key == null) {
+                    apply(pending, overflow);
+                    pending.clear();
+                    overflow = false;
+                    continue;
+                }
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                    } else {
+                        pending.add(((Path) event.context()).getFileName().toString());
+                    }
+                }
+
+                if (!key.reset()) {
+                    Log.warn(
+                            "Stopped watching %s, it is no longer accessible",
+                            index.getTargetDir().getPath());
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Watcher has been closed
+        }
+    }
+
+    private void apply(HashSet<String> pending, boolean overflow) {
+        if (overflow) {
+            Log.info("Too many changes in file system, re-scanning...");
+            index.refreshAll();
+            return;
+        }
+
+        int changed = 0;
+        for (String name : pending) {
+            if (index.refresh(new File(index.getTargetDir(), name))) {
+                changed++;
+            }
+        }
+
+        if (changed > 0) {
+            Log.info("Changes in file system have been detected. Re-indexed %d documents", changed);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        watchService.close();
+    }
+}
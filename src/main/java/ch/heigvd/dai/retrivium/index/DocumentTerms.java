@@ -0,0 +1,152 @@
+package ch.heigvd.dai.retrivium.index;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bag of terms of one document : how many times each term occurs and how many terms there are.
+ *
+ * <p>Terms are looked up by content from any {@link CharSequence}, so a term only becomes a {@link
+ * String} the first time it occurs in the document, counting it again allocates nothing.
+ */
+public class DocumentTerms {
+    /** Open addressing table, position + 1 in {@link DocumentTerms#terms} or 0 when empty */
+    private int[] slots;
+
+    /** Distinct terms, in the order they first occurred */
+    private String[] terms;
+
+    private int[] hashes;
+    private int[] freqs;
+    private int numTerms;
+    private int length;
+
+    /** Constructs empty {@code DocumentTerms} */
+    public DocumentTerms() {
+        this.slots = new int[16];
+        this.terms = new String[8];
+        this.hashes = new int[8];
+        this.freqs = new int[8];
+        this.numTerms = 0;
+        this.length = 0;
+    }
+
+    /**
+     * Counts the given tokens
+     *
+     * @param tokens of a document
+     * @return bag of the tokens
+     */
+    public static DocumentTerms of(List<String> tokens) {
+        DocumentTerms terms = new DocumentTerms();
+        terms.addAll(tokens);
+        return terms;
+    }
+
+    /**
+     * Adds more tokens of the same document
+     *
+     * @param tokens to count
+     */
+    public void addAll(List<String> tokens) {
+        for (String token : tokens) {
+            add(token);
+        }
+    }
+
+    /**
+     * Adds one more term of the same document
+     *
+     * @param term to count, only read during the call
+     */
+    public void add(CharSequence term) {
+        int hash = hash(term);
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0) {
+            int position = slots[slot] - 1;
+            if (hashes[position] == hash && contentEquals(terms[position], term)) {
+                freqs[position]++;
+                length++;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (numTerms == terms.length) {
+            terms = Arrays.copyOf(terms, numTerms * 2);
+            hashes = Arrays.copyOf(hashes, numTerms * 2);
+            freqs = Arrays.copyOf(freqs, numTerms * 2);
+        }
+        terms[numTerms] = term.toString();
+        hashes[numTerms] = hash;
+        freqs[numTerms] = 1;
+        slots[slot] = ++numTerms;
+        length++;
+
+        // Kept at most half full, so that probe sequences stay short
+        if (2 * numTerms > slots.length) {
+            slots = new int[slots.length * 2];
+            mask = slots.length - 1;
+            for (int position = 0; position < numTerms; position++) {
+                slot = hashes[position] & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = position + 1;
+            }
+        }
+    }
+
+    /** Hash of the content of a term, spread so that its low bits are usable */
+    private static int hash(CharSequence term) {
+        int hash = 0;
+        for (int i = 0; i < term.length(); i++) {
+            hash = 31 * hash + term.charAt(i);
+        }
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean contentEquals(String known, CharSequence term) {
+        if (known.length() != term.length()) {
+            return false;
+        }
+        for (int i = 0; i < known.length(); i++) {
+            if (known.charAt(i) != term.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of distinct terms
+     */
+    public int size() {
+        return numTerms;
+    }
+
+    /**
+     * @param i position of a distinct term, from 0 to {@link DocumentTerms#size()} excluded
+     * @return the term
+     */
+    public String getTerm(int i) {
+        return terms[i];
+    }
+
+    /**
+     * @param i position of a distinct term, from 0 to {@link DocumentTerms#size()} excluded
+     * @return number of occurrences of the term
+     */
+    public int getFreq(int i) {
+        return freqs[i];
+    }
+
+    /**
+     * @return total number of terms
+     */
+    public int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,75 @@
+package ch.heigvd.dai.retrivium.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Cheap identity of a file's content based on its modification time and its size, used to find out
+ * whether an indexed file has to be indexed again
+ */
+public class FileFingerprint {
+    private final long lastModified;
+    private final long size;
+
+    /**
+     * Constructs {@code FileFingerprint}
+     *
+     * @param lastModified modification time in milliseconds
+     * @param size size in bytes
+     */
+    public FileFingerprint(long lastModified, long size) {
+        this.lastModified = lastModified;
+        this.size = size;
+    }
+
+    /**
+     * Takes the fingerprint of a file
+     *
+     * @param file to inspect
+     * @return fingerprint of the file, null if it does not exist or is not a regular file
+     */
+    public static FileFingerprint of(File file) {
+        try {
+            BasicFileAttributes attrs =
+                    Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            return new FileFingerprint(attrs.lastModifiedTime().toMillis(), attrs.size());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return modification time in milliseconds
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FileFingerprint other)) {
+            return false;
+        }
+        return lastModified == other.lastModified && size == other.size;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(lastModified) * 31 + Long.hashCode(size);
+    }
+}
@@ -0,0 +1,303 @@
+package ch.heigvd.dai.retrivium.index;
+
+import ch.heigvd.dai.retrivium.analysis.Analyzer;
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persists a {@link ShardedIndex} to a single binary segment file, so that the server does not have
+ * to re-read and re-tokenize the whole corpus on every start.
+ *
+ * <pre>
+ * int magic, int format version
+ * string canonical path of the indexed directory
+ * string spec of the analyzer the terms come from, see {@link Analyzer}
+ * int numFiles, numFiles x (string name, long lastModified, long size)
+ * index sections, one per segment of every shard
+ * int numShards, numShards x (int numSegments, numSegments x (long offset, long length))
+ * long offset of numShards
+ * long CRC32 of everything above
+ * </pre>
+ *
+ * Strings are written as an int length followed by UTF-8 bytes, all numbers are big-endian. Every
+ * {@link SegmentedIndex segment} of a shard is written as it is by {@link
+ * InvertedIndex#writeTo(DataOutput)}, oldest first, and loaded back as a sealed segment, so that
+ * merges go on where they stopped. The table at the end tells where each section starts.
+ *
+ * <p>Every section is opened with its own {@link FileChannel#map}, so the file may be larger than a
+ * single mapping allows, only a section may not. Postings are never copied to the heap unless they
+ * get modified. A new segment is always written next to the old one and then renamed over it, so a
+ * mapped segment is never truncated under the feet of the server.
+ */
+public class IndexStore {
+    private static final int MAGIC = 0x52545649; // "RTVI"
+    private static final int FORMAT_VERSION = 6;
+    private static final String SEGMENT_NAME = "index.seg";
+
+    /** Bytes checksummed per mapping when a segment is loaded */
+    private static final long CHECKSUM_CHUNK = 1 << 30;
+
+    private final File indexDir;
+
+    /**
+     * Constructs {@code IndexStore}
+     *
+     * @param indexDir directory holding the segment, created on first save if needed
+     */
+    public IndexStore(File indexDir) {
+        this.indexDir = indexDir;
+    }
+
+    /**
+     * @return file of the segment
+     */
+    public File getSegmentFile() {
+        return new File(indexDir, SEGMENT_NAME);
+    }
+
+    /**
+     * Writes a segment atomically
+     *
+     * @param index to persist
+     * @param fingerprints of the indexed files
+     * @param targetDir directory the index has been built from
+     * @param analyzer spec of the analyzer the terms of the index come from
+     * @throws IOException if the segment cannot be written, or if a single segment of the index is
+     *     larger than a mapping allows, in which case the previous segment file is kept
+     */
+    public void save(
+            ShardedIndex index,
+            Map<String, FileFingerprint> fingerprints,
+            File targetDir,
+            String analyzer)
+            throws IOException {
+        Files.createDirectories(indexDir.toPath());
+        File tmp = new File(indexDir, SEGMENT_NAME + ".tmp");
+
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+                DataOutputStream out =
+                        new DataOutputStream(
+                                new CheckedOutputStream(
+                                        new BufferedOutputStream(fos, 1 << 16), crc))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, targetDir.getCanonicalPath());
+            writeString(out, analyzer);
+
+            out.writeInt(fingerprints.size());
+            for (var entry : fingerprints.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeLong(entry.getValue().getLastModified());
+                out.writeLong(entry.getValue().getSize());
+            }
+
+            // Offsets are read from the file, the stream counts its bytes in an int
+            FileChannel channel = fos.getChannel();
+            int numShards = index.getNumShards();
+            long[][] sections = new long[numShards][];
+            for (int shard = 0; shard < numShards; shard++) {
+                List<InvertedIndex> segments = index.getShard(shard).getSegments();
+                sections[shard] = new long[segments.size() + 1];
+                out.flush();
+                sections[shard][0] = channel.position();
+                for (int i = 0; i < segments.size(); i++) {
+                    segments.get(i).writeTo(out);
+                    out.flush();
+                    sections[shard][i + 1] = channel.position();
+                    if (sections[shard][i + 1] - sections[shard][i] > Integer.MAX_VALUE) {
+                        throw new IOException(
+                                "Segment of shard "
+                                        + shard
+                                        + " is larger than a single mapping allows");
+                    }
+                }
+            }
+
+            long tableOffset = channel.position();
+            out.writeInt(numShards);
+            for (long[] bounds : sections) {
+                out.writeInt(bounds.length - 1);
+                for (int i = 0; i + 1 < bounds.length; i++) {
+                    out.writeLong(bounds[i]);
+                    out.writeLong(bounds[i + 1] - bounds[i]);
+                }
+            }
+            out.writeLong(tableOffset);
+
+            // The checksum itself is not part of the checksum
+            out.flush();
+            long checksum = crc.getValue();
+            out.writeLong(checksum);
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+
+        Files.move(
+                tmp.toPath(),
+                getSegmentFile().toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Opens the segment with {@link FileChannel#map}
+     *
+     * @param targetDir directory the index is expected to be built from
+     * @param analyzer spec of the analyzer the terms are expected to come from
+     * @param fingerprints filled with the fingerprints of the indexed files
+     * @return the index
+     * @throws IOException if the segment is missing, corrupted, of another format version, built
+     *     from another directory or with another analyzer
+     */
+    public ShardedIndex load(
+            File targetDir, String analyzer, Map<String, FileFingerprint> fingerprints)
+            throws IOException {
+        // Mappings stay valid once the channel is closed
+        try (FileChannel channel =
+                FileChannel.open(getSegmentFile().toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 3 * Integer.BYTES + 2 * Long.BYTES) {
+                throw new IOException("Segment is truncated");
+            }
+
+            long end = size - Long.BYTES;
+            CRC32 crc = new CRC32();
+            for (long position = 0; position < end; position += CHECKSUM_CHUNK) {
+                crc.update(map(channel, position, Math.min(CHECKSUM_CHUNK, end - position)));
+            }
+            if (crc.getValue() != map(channel, end, Long.BYTES).getLong()) {
+                throw new IOException("Segment checksum mismatch");
+            }
+
+            ByteBuffer header = map(channel, 0, Math.min(end, Integer.MAX_VALUE));
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a segment file");
+            }
+            int version = header.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported segment version " + version);
+            }
+            String indexedDir = readString(header);
+            if (!indexedDir.equals(targetDir.getCanonicalPath())) {
+                throw new IOException("Segment has been built from " + indexedDir);
+            }
+            String indexedWith = readString(header);
+            if (!indexedWith.equals(analyzer)) {
+                throw new IOException("Segment has been built with analyzer " + indexedWith);
+            }
+
+            int numFiles = readCount(header, Integer.BYTES + 2 * Long.BYTES);
+            for (int i = 0; i < numFiles; i++) {
+                String name = readString(header);
+                fingerprints.put(name, new FileFingerprint(header.getLong(), header.getLong()));
+            }
+
+            long tableOffset = map(channel, end - Long.BYTES, Long.BYTES).getLong();
+            if (tableOffset < header.position() || tableOffset > end - Long.BYTES) {
+                throw new IOException("Segment is malformed");
+            }
+            ByteBuffer table = map(channel, tableOffset, end - Long.BYTES - tableOffset);
+            int numShards = table.getInt();
+            if (numShards <= 0) {
+                throw new IOException("Segment has no shard");
+            }
+            SegmentedIndex[] shards = new SegmentedIndex[numShards];
+            for (int shard = 0; shard < numShards; shard++) {
+                int numSegments = readCount(table, 2 * Long.BYTES);
+                ArrayList<InvertedIndex> segments = new ArrayList<>(numSegments);
+                for (int i = 0; i < numSegments; i++) {
+                    long offset = table.getLong();
+                    long length = table.getLong();
+                    if (offset < 0 || length < 0 || offset > tableOffset - length) {
+                        throw new IOException("Segment is malformed");
+                    }
+                    segments.add(InvertedIndex.readFrom(map(channel, offset, length)));
+                }
+                shards[shard] = new SegmentedIndex(segments);
+            }
+            return new ShardedIndex(shards);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Segment is malformed", e);
+        }
+    }
+
+    /**
+     * Maps a region of the segment
+     *
+     * @param channel of the segment file
+     * @param offset of the region
+     * @param length of the region
+     * @return read-only mapping of the region
+     * @throws IOException if the region is larger than a single mapping allows
+     */
+    private static MappedByteBuffer map(FileChannel channel, long offset, long length)
+            throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Section is larger than a single mapping allows");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    /**
+     * Writes an int length followed by UTF-8 bytes
+     *
+     * @param out destination
+     * @param s string to write
+     * @throws IOException if writing fails
+     */
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link IndexStore#writeString(DataOutput, String)}
+     *
+     * @param buffer source
+     * @return the string
+     * @throws IOException if the length of the string is not possible
+     */
+    static String readString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[readCount(buffer, 1)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the number of items that follow, checked before anything gets allocated for them
+     *
+     * @param buffer source
+     * @param itemBytes number of bytes each item takes at least
+     * @return the number of items
+     * @throws IOException if the number is negative or the items cannot fit in what is left
+     */
+    static int readCount(ByteBuffer buffer, int itemBytes) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / itemBytes) {
+            throw new IOException("Segment is malformed");
+        }
+        return count;
+    }
+}
@@ -0,0 +1,820 @@
+package ch.heigvd.dai.retrivium.index;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * BM25 inverted index that can be updated one document at a time.
+ *
+ * <p>Adding, replacing or removing a document only touches the postings of the terms of that
+ * document, while the statistics needed by BM25 (number of documents, average document length and
+ * document frequencies) are maintained on the fly. The cost of an update is therefore proportional
+ * to the size of the document, not to the size of the corpus.
+ *
+ * <p>Removed documents leave a tombstone behind : their id is never reused and their postings are
+ * purged lazily once they make up half of a postings list. Once {@link InvertedIndex#seal()
+ * sealed}, an index takes no more documents and its postings are left as they are, removed
+ * documents are only marked as such until the index is {@link InvertedIndex#compact(List, Runnable)
+ * compacted} into a new one.
+ *
+ * <p>Every term is stored once, in a dictionary that gives it an int id. Documents refer to their
+ * terms by id, and postings are compressed, see {@link PostingsList}.
+ *
+ * <p>Instances are thread-safe, searches run concurrently and updates are exclusive.
+ */
+public class InvertedIndex {
+    /** Term frequency saturation parameter */
+    public static final double K1 = 1.5;
+
+    /** Document length normalization parameter */
+    public static final double B = 0.75;
+
+    /** Postings copied by a compaction between two pauses */
+    private static final int POSTINGS_PER_PAUSE = 1 << 16;
+
+    /** Lower score first, on equal scores the later indexed document comes first */
+    public static final Comparator<ScoredDocument> WORST_FIRST =
+            Comparator.comparingDouble(ScoredDocument::getScore)
+                    .thenComparing(Comparator.comparingInt(ScoredDocument::getDocIndex).reversed());
+
+    private final ReentrantReadWriteLock lock;
+    private final HashMap<String, Integer> termIds;
+    private final ArrayList<String> termsById;
+    private final ArrayList<PostingsList> postings;
+    private final ArrayDeque<Integer> freeTermIds;
+    private final HashMap<String, Integer> docIds;
+    private final ArrayList<String> docNames;
+    private final ArrayList<int[]> docTerms;
+    private int[] docLengths;
+    private int numOfDocs;
+    private long totalLength;
+    private boolean sealed;
+
+    // Term ids of the documents loaded from a segment, read only when such a document is removed
+    private IntBuffer loadedForward;
+    private int[] loadedForwardOffsets;
+
+    /** Constructs empty {@code InvertedIndex} */
+    public InvertedIndex() {
+        lock = new ReentrantReadWriteLock();
+        termIds = new HashMap<>();
+        termsById = new ArrayList<>();
+        postings = new ArrayList<>();
+        freeTermIds = new ArrayDeque<>();
+        docIds = new HashMap<>();
+        docNames = new ArrayList<>();
+        docTerms = new ArrayList<>();
+        docLengths = new int[16];
+        numOfDocs = 0;
+        totalLength = 0;
+    }
+
+    /**
+     * Adds a document to the index, replacing any document with the same name
+     *
+     * @param docName name of the document
+     * @param tokens tokens of the document
+     */
+    public void addDocument(String docName, List<String> tokens) {
+        addDocument(docName, DocumentTerms.of(tokens));
+    }
+
+    /**
+     * Adds a document to the index, replacing any document with the same name
+     *
+     * @param docName name of the document
+     * @param terms bag of terms of the document
+     */
+    public void addDocument(String docName, DocumentTerms terms) {
+        lock.writeLock().lock();
+        try {
+            if (sealed) {
+                throw new IllegalStateException("Cannot add a document to a sealed index");
+            }
+            removeLocked(docName);
+
+            int docId = docNames.size();
+            if (docId == docLengths.length) {
+                docLengths = Arrays.copyOf(docLengths, docId * 2);
+            }
+
+            docNames.add(docName);
+            docLengths[docId] = terms.getLength();
+            docIds.put(docName, docId);
+
+            int[] distinct = new int[terms.size()];
+            for (int i = 0; i < distinct.length; i++) {
+                int termId = termIdOf(terms.getTerm(i));
+                postings.get(termId).add(docId, terms.getFreq(i), terms.getLength());
+                distinct[i] = termId;
+            }
+            docTerms.add(distinct);
+
+            numOfDocs++;
+            totalLength += terms.getLength();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Looks a term up in the dictionary, adding it with empty postings if it is not there yet
+     *
+     * @param term to look up
+     * @return id of the term
+     */
+    private int termIdOf(String term) {
+        Integer termId = termIds.get(term);
+        if (termId != null) {
+            return termId;
+        }
+
+        int newId;
+        if (freeTermIds.isEmpty()) {
+            newId = termsById.size();
+            termsById.add(term);
+            postings.add(new PostingsList());
+        } else {
+            newId = freeTermIds.pop();
+            termsById.set(newId, term);
+            postings.set(newId, new PostingsList());
+        }
+        termIds.put(term, newId);
+        return newId;
+    }
+
+    /**
+     * @param term to look up
+     * @return postings of the term, null if no document contains it
+     */
+    private PostingsList postingsOf(String term) {
+        Integer termId = termIds.get(term);
+        return termId == null ? null : postings.get(termId);
+    }
+
+    /**
+     * Merges indexes built independently over disjoint sets of documents. The documents of the
+     * first index keep their ids, the documents of the others are appended after them in order, so
+     * every postings list stays sorted.
+     *
+     * @param parts indexes to merge, at least one, they must not be used afterwards
+     * @return the merged index, which is the first of {@code parts}
+     */
+    static InvertedIndex merge(List<InvertedIndex> parts) {
+        InvertedIndex merged = parts.get(0);
+        for (int i = 1; i < parts.size(); i++) {
+            merged.absorb(parts.get(i));
+        }
+        return merged;
+    }
+
+    private void absorb(InvertedIndex other) {
+        lock.writeLock().lock();
+        other.lock.readLock().lock();
+        try {
+            int base = docNames.size();
+            int otherSlots = other.docNames.size();
+            if (base + otherSlots > docLengths.length) {
+                docLengths = Arrays.copyOf(docLengths, Math.max(base + otherSlots, base * 2));
+            }
+
+            // Terms of the other index, by their id there, to their id here
+            int[] newTermIds = new int[other.termsById.size()];
+            for (int termId = 0; termId < newTermIds.length; termId++) {
+                String term = other.termsById.get(termId);
+                newTermIds[termId] = term == null ? -1 : termIdOf(term);
+            }
+
+            // Slots are copied as is, tombstones included, so that ids only need a shift
+            for (int docId = 0; docId < otherSlots; docId++) {
+                String name = other.docNames.get(docId);
+                boolean alive = other.docLengths[docId] >= 0;
+                docNames.add(name);
+                docLengths[base + docId] = other.docLengths[docId];
+                if (alive) {
+                    int[] docTermIds = other.termsOf(docId).clone();
+                    for (int i = 0; i < docTermIds.length; i++) {
+                        docTermIds[i] = newTermIds[docTermIds[i]];
+                    }
+                    docTerms.add(docTermIds);
+                    docIds.put(name, base + docId);
+                } else {
+                    docTerms.add(null);
+                }
+            }
+
+            for (int termId = 0; termId < newTermIds.length; termId++) {
+                if (newTermIds[termId] < 0) {
+                    continue;
+                }
+                PostingsList target = postings.get(newTermIds[termId]);
+                PostingsList.Reader reader = other.postings.get(termId).reader();
+                for (int docId = reader.nextDoc();
+                        docId != Integer.MAX_VALUE;
+                        docId = reader.nextDoc()) {
+                    if (other.docLengths[docId] >= 0) {
+                        target.add(base + docId, reader.freq(), other.docLengths[docId]);
+                    }
+                }
+            }
+
+            numOfDocs += other.numOfDocs;
+            totalLength += other.totalLength;
+        } finally {
+            other.lock.readLock().unlock();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts sealed indexes into a new one that only holds their alive documents, in order : the
+     * documents of the first index come first, and so on. An index being compacted is only locked
+     * while its documents are copied, its postings are then read without holding up searches nor
+     * removals. A document removed in the meantime is therefore still in the result, it has to be
+     * removed from it again.
+     *
+     * @param parts sealed indexes to compact, they stay usable
+     * @param pause run every now and then while postings are copied, to let other threads work
+     * @return the compacted index, sealed
+     */
+    static InvertedIndex compact(List<InvertedIndex> parts, Runnable pause) {
+        InvertedIndex compacted = new InvertedIndex();
+        for (InvertedIndex part : parts) {
+            compacted.copyAlive(part, pause);
+        }
+        compacted.sealed = true;
+        return compacted;
+    }
+
+    private void copyAlive(InvertedIndex part, Runnable pause) {
+        int[] newTermIds;
+        int[] newDocIds;
+        int[] lengths;
+        part.lock.readLock().lock();
+        try {
+            // Only the terms of alive documents are copied, the others are dropped
+            newTermIds = new int[part.termsById.size()];
+            Arrays.fill(newTermIds, -1);
+            newDocIds = new int[part.docNames.size()];
+            lengths = Arrays.copyOf(part.docLengths, newDocIds.length);
+            for (int docId = 0; docId < newDocIds.length; docId++) {
+                if (lengths[docId] < 0) {
+                    newDocIds[docId] = -1;
+                    continue;
+                }
+
+                int newId = docNames.size();
+                if (newId == docLengths.length) {
+                    docLengths = Arrays.copyOf(docLengths, newId * 2);
+                }
+                String name = part.docNames.get(docId);
+                docNames.add(name);
+                docLengths[newId] = lengths[docId];
+                docIds.put(name, newId);
+                newDocIds[docId] = newId;
+
+                int[] docTermIds = part.termsOf(docId).clone();
+                for (int i = 0; i < docTermIds.length; i++) {
+                    int termId = docTermIds[i];
+                    if (newTermIds[termId] < 0) {
+                        newTermIds[termId] = termIdOf(part.termsById.get(termId));
+                    }
+                    docTermIds[i] = newTermIds[termId];
+                }
+                docTerms.add(docTermIds);
+
+                numOfDocs++;
+                totalLength += lengths[docId];
+            }
+        } finally {
+            part.lock.readLock().unlock();
+        }
+
+        // Postings of a sealed index are never rewritten, they can be read without the lock
+        int copied = 0;
+        for (int termId = 0; termId < newTermIds.length; termId++) {
+            if (newTermIds[termId] < 0) {
+                continue;
+            }
+            PostingsList target = postings.get(newTermIds[termId]);
+            PostingsList.Reader reader = part.postings.get(termId).reader();
+            for (int docId = reader.nextDoc();
+                    docId != Integer.MAX_VALUE;
+                    docId = reader.nextDoc()) {
+                if (newDocIds[docId] >= 0) {
+                    target.add(newDocIds[docId], reader.freq(), lengths[docId]);
+                    copied++;
+                }
+            }
+            if (copied >= POSTINGS_PER_PAUSE) {
+                pause.run();
+                copied = 0;
+            }
+        }
+    }
+
+    /**
+     * Removes a document from the index
+     *
+     * @param docName name of the document
+     * @return true if the document was indexed
+     */
+    public boolean removeDocument(String docName) {
+        lock.writeLock().lock();
+        try {
+            return removeLocked(docName);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean removeLocked(String docName) {
+        Integer docId = docIds.remove(docName);
+        if (docId == null) {
+            return false;
+        }
+
+        totalLength -= docLengths[docId];
+        numOfDocs--;
+        docLengths[docId] = -1;
+        docNames.set(docId, null);
+
+        for (int termId : termsOf(docId)) {
+            PostingsList list = postings.get(termId);
+            list.markRemoved();
+            if (sealed) {
+                continue;
+            }
+            if (list.docFreq() == 0) {
+                termIds.remove(termsById.get(termId));
+                termsById.set(termId, null);
+                postings.set(termId, null);
+                freeTermIds.push(termId);
+            } else if (list.needsPurge()) {
+                list.purge(docLengths);
+            }
+        }
+        docTerms.set(docId, null);
+        return true;
+    }
+
+    /**
+     * @param docId id of an alive document
+     * @return ids of the distinct terms of the document
+     */
+    private int[] termsOf(int docId) {
+        int[] termIdsOfDoc = docTerms.get(docId);
+        if (termIdsOfDoc != null) {
+            return termIdsOfDoc;
+        }
+
+        int offset = loadedForwardOffsets[docId];
+        termIdsOfDoc = new int[loadedForward.get(offset)];
+        loadedForward.get(offset + 1, termIdsOfDoc);
+        return termIdsOfDoc;
+    }
+
+    /**
+     * @return number of indexed documents
+     */
+    public int getNumOfDocs() {
+        lock.readLock().lock();
+        try {
+            return numOfDocs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of document ids given so far, removed documents included
+     */
+    int getNumOfSlots() {
+        lock.readLock().lock();
+        try {
+            return docNames.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return total length of the indexed documents
+     */
+    long getTotalLength() {
+        lock.readLock().lock();
+        try {
+            return totalLength;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stops the index from taking new documents, from then on its terms and postings never change
+     * and can be read without the lock. Documents can still be removed.
+     */
+    void seal() {
+        lock.writeLock().lock();
+        try {
+            sealed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return names of the indexed documents in indexing order
+     */
+    public List<String> getDocumentNames() {
+        lock.readLock().lock();
+        try {
+            ArrayList<String> names = new ArrayList<>(numOfDocs);
+            for (String name : docNames) {
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+            return names;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Tests if the given document has been indexed, therefore can be searched through
+     *
+     * @param docName name of the document
+     * @return true if the document is indexed
+     */
+    public boolean contains(String docName) {
+        lock.readLock().lock();
+        try {
+            return docIds.containsKey(docName);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ranks the indexed documents against the query and keeps the {@code k} best ones. Documents
+     * that share no term with the query are never returned. Ties are broken by indexing order.
+     *
+     * @param queryTokens tokens of the query, duplicates are ignored
+     * @param k maximal number of documents to return
+     * @return documents sorted from the most to the least relevant
+     */
+    public List<ScoredDocument> search(List<String> queryTokens, int k) {
+        CorpusStats stats = new CorpusStats(new ArrayList<>(new LinkedHashSet<>(queryTokens)));
+        lock.readLock().lock();
+        try {
+            collectStatsLocked(stats);
+            return searchLocked(stats, k);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the statistics of this index to the ones of a corpus it is a part of
+     *
+     * @param stats statistics of the corpus being collected
+     */
+    void collectStats(CorpusStats stats) {
+        lock.readLock().lock();
+        try {
+            collectStatsLocked(stats);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void collectStatsLocked(CorpusStats stats) {
+        stats.addDocuments(numOfDocs, totalLength);
+        List<String> terms = stats.getTerms();
+        for (int i = 0; i < terms.size(); i++) {
+            PostingsList list = postingsOf(terms.get(i));
+            if (list != null) {
+                stats.addDocFreq(i, list.docFreq());
+            }
+        }
+    }
+
+    /**
+     * Ranks the documents of this index like {@link InvertedIndex#search(List, int)}, but with the
+     * statistics of a whole corpus this index is a part of
+     *
+     * @param stats statistics of the corpus, holding the terms of the query
+     * @param k maximal number of documents to return
+     * @return documents sorted from the most to the least relevant
+     */
+    List<ScoredDocument> search(CorpusStats stats, int k) {
+        lock.readLock().lock();
+        try {
+            return searchLocked(stats, k);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Document-at-a-time search with MaxScore pruning. Lists are sorted by the largest score their
+     * term can give. Once the k-th best score exceeds the sum of the bounds of the first lists, a
+     * document found only in those cannot make it to the top k : they stop being walked and are
+     * only probed for the documents found in the other, essential, lists. A probe stops as soon as
+     * the bounds left cannot lift the document above the k-th score.
+     */
+    private List<ScoredDocument> searchLocked(CorpusStats stats, int k) {
+        if (numOfDocs == 0 || k <= 0) {
+            return new ArrayList<>();
+        }
+
+        double avgDocLength = stats.avgDocLength();
+        List<String> terms = stats.getTerms();
+        ArrayList<Cursor> cursors = new ArrayList<>(terms.size());
+        for (int t = 0; t < terms.size(); t++) {
+            PostingsList list = postingsOf(terms.get(t));
+            if (list != null) {
+                cursors.add(new Cursor(t, list, stats.idf(t), avgDocLength));
+            }
+        }
+        cursors.sort(Comparator.comparingDouble(cursor -> cursor.maxScore));
+
+        // boundBelow[j] is the largest score the first j lists can give together
+        int numLists = cursors.size();
+        double[] boundBelow = new double[numLists + 1];
+        for (int j = 0; j < numLists; j++) {
+            boundBelow[j + 1] = boundBelow[j] + cursors.get(j).maxScore;
+        }
+
+        // Sized by what can be returned, k comes from the client
+        PriorityQueue<ScoredDocument> heap =
+                new PriorityQueue<>(Math.min(k, numOfDocs) + 1, WORST_FIRST);
+        double[] weights = new double[terms.size()];
+        double threshold = 0;
+        int firstEssential = 0;
+
+        while (firstEssential < numLists) {
+            int docId = Integer.MAX_VALUE;
+            for (int j = firstEssential; j < numLists; j++) {
+                docId = Math.min(docId, cursors.get(j).docId);
+            }
+            if (docId == Integer.MAX_VALUE) {
+                break;
+            }
+
+            Arrays.fill(weights, 0);
+            double score = 0;
+            for (int j = firstEssential; j < numLists; j++) {
+                Cursor cursor = cursors.get(j);
+                if (cursor.docId == docId) {
+                    weights[cursor.term] = cursor.weight();
+                    score += weights[cursor.term];
+                    cursor.next();
+                }
+            }
+
+            boolean pruned = false;
+            for (int j = firstEssential - 1; j >= 0; j--) {
+                if (cannotEnter(score + boundBelow[j + 1], threshold)) {
+                    pruned = true;
+                    break;
+                }
+                Cursor cursor = cursors.get(j);
+                cursor.advance(docId);
+                if (cursor.docId == docId) {
+                    weights[cursor.term] = cursor.weight();
+                    score += weights[cursor.term];
+                }
+            }
+            if (pruned) {
+                continue;
+            }
+
+            // Summed again in query order, so that scores do not depend on the pruning
+            double exact = 0;
+            for (double weight : weights) {
+                exact += weight;
+            }
+
+            // Documents come by increasing id, so on equal scores the one already kept wins
+            if (heap.size() < k || exact > threshold) {
+                heap.add(new ScoredDocument(docId, docNames.get(docId), exact));
+                if (heap.size() > k) {
+                    heap.poll();
+                }
+                if (heap.size() == k) {
+                    threshold = heap.peek().getScore();
+                    while (firstEssential < numLists
+                            && cannotEnter(boundBelow[firstEssential + 1], threshold)) {
+                        firstEssential++;
+                    }
+                }
+            }
+        }
+
+        ArrayList<ScoredDocument> results = new ArrayList<>(heap);
+        results.sort(WORST_FIRST.reversed());
+        return results;
+    }
+
+    /**
+     * @param bound largest score a document may have, summed in any order
+     * @param threshold score of the k-th best document so far
+     * @return true if the document certainly does not beat the k-th one, leaving a margin for the
+     *     rounding errors of the bound
+     */
+    private static boolean cannotEnter(double bound, double threshold) {
+        return bound < threshold * (1 - 1e-9);
+    }
+
+    /** Position in the postings of a query term, skipping removed documents */
+    private class Cursor {
+        private final int term;
+        private final PostingsList.Reader reader;
+        private final double idf;
+        private final double avgDocLength;
+        private final double maxScore;
+        private int docId;
+
+        /**
+         * @param term position of the term in the query
+         * @param list postings of the term
+         * @param idf inverse document frequency of the term
+         * @param avgDocLength average length of a document of the corpus
+         */
+        Cursor(int term, PostingsList list, double idf, double avgDocLength) {
+            this.term = term;
+            this.reader = list.reader();
+            this.idf = idf;
+            this.avgDocLength = avgDocLength;
+            this.maxScore = idf * list.maxTermWeight(docLengths, avgDocLength);
+            this.docId = reader.nextDoc();
+            skipRemoved();
+        }
+
+        /**
+         * @return score the term gives to the current document
+         */
+        double weight() {
+            return idf * termWeight(reader.freq(), docLengths[docId], avgDocLength);
+        }
+
+        /** Moves to the next alive document, or to the end with {@link Integer#MAX_VALUE} */
+        void next() {
+            docId = reader.nextDoc();
+            skipRemoved();
+        }
+
+        /**
+         * Moves to the first alive document whose id is at least {@code target}
+         *
+         * @param target id to reach
+         */
+        void advance(int target) {
+            if (docId < target) {
+                docId = reader.advance(target);
+                skipRemoved();
+            }
+        }
+
+        private void skipRemoved() {
+            while (docId != Integer.MAX_VALUE && docLengths[docId] < 0) {
+                docId = reader.nextDoc();
+            }
+        }
+    }
+
+    /**
+     * Writes the alive part of the index : documents and terms are renumbered densely in indexing
+     * order, postings are written by {@link PostingsList#writeTo(DataOutput)}
+     *
+     * <pre>
+     * int numDocs, numDocs x (string name, int length)
+     * int numTerms, numTerms x (string term, postings)
+     * for each doc : int count, count x int term number
+     * </pre>
+     *
+     * @param out destination
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutput out) throws IOException {
+        lock.readLock().lock();
+        try {
+            int[] newIds = new int[docNames.size()];
+            out.writeInt(numOfDocs);
+            int next = 0;
+            for (int docId = 0; docId < docNames.size(); docId++) {
+                if (docLengths[docId] >= 0) {
+                    newIds[docId] = next++;
+                    IndexStore.writeString(out, docNames.get(docId));
+                    out.writeInt(docLengths[docId]);
+                }
+            }
+
+            // A sealed index keeps terms whose documents have all been removed, they are dropped
+            int numTerms = 0;
+            for (int termId = 0; termId < termsById.size(); termId++) {
+                if (termsById.get(termId) != null && postings.get(termId).docFreq() > 0) {
+                    numTerms++;
+                }
+            }
+
+            int[] termNumbers = new int[termsById.size()];
+            out.writeInt(numTerms);
+            int nextTerm = 0;
+            for (int termId = 0; termId < termsById.size(); termId++) {
+                String term = termsById.get(termId);
+                if (term == null || postings.get(termId).docFreq() == 0) {
+                    continue;
+                }
+                termNumbers[termId] = nextTerm++;
+                IndexStore.writeString(out, term);
+
+                // Postings of removed documents are dropped, the others renumbered
+                PostingsList alive = new PostingsList();
+                PostingsList.Reader reader = postings.get(termId).reader();
+                for (int docId = reader.nextDoc();
+                        docId != Integer.MAX_VALUE;
+                        docId = reader.nextDoc()) {
+                    if (docLengths[docId] >= 0) {
+                        alive.add(newIds[docId], reader.freq(), docLengths[docId]);
+                    }
+                }
+                alive.writeTo(out);
+            }
+
+            for (int docId = 0; docId < docNames.size(); docId++) {
+                if (docLengths[docId] >= 0) {
+                    int[] docTermIds = termsOf(docId);
+                    out.writeInt(docTermIds.length);
+                    for (int termId : docTermIds) {
+                        out.writeInt(termNumbers[termId]);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Opens an index written by {@link InvertedIndex#writeTo(DataOutput)}. Documents and vocabulary
+     * are decoded to the heap, the postings and the terms of each document are left in the buffer.
+     *
+     * @param buffer positioned at the start of the index, usually memory-mapped
+     * @return the index
+     * @throws IOException if a count of the index is not possible
+     */
+    static InvertedIndex readFrom(ByteBuffer buffer) throws IOException {
+        InvertedIndex index = new InvertedIndex();
+
+        int numDocs = IndexStore.readCount(buffer, 2 * Integer.BYTES);
+        index.docLengths = new int[Math.max(16, numDocs)];
+        for (int docId = 0; docId < numDocs; docId++) {
+            String name = IndexStore.readString(buffer);
+            int length = buffer.getInt();
+            index.docNames.add(name);
+            index.docIds.put(name, docId);
+            index.docLengths[docId] = length;
+            index.totalLength += length;
+        }
+        index.numOfDocs = numDocs;
+
+        // Terms are numbered in order, so the term numbers of the documents are their ids
+        int numTerms = IndexStore.readCount(buffer, 4 * Integer.BYTES);
+        for (int termId = 0; termId < numTerms; termId++) {
+            String term = IndexStore.readString(buffer);
+            index.termIds.put(term, termId);
+            index.termsById.add(term);
+            index.postings.add(PostingsList.readFrom(buffer));
+        }
+
+        int offset = buffer.position();
+        int forwardStart = offset;
+        index.loadedForwardOffsets = new int[numDocs];
+        for (int docId = 0; docId < numDocs; docId++) {
+            index.loadedForwardOffsets[docId] = (offset - forwardStart) / Integer.BYTES;
+            index.docTerms.add(null);
+            offset += (1 + buffer.getInt(offset)) * Integer.BYTES;
+        }
+        index.loadedForward = buffer.slice(forwardStart, offset - forwardStart).asIntBuffer();
+        buffer.position(offset);
+        return index;
+    }
+
+    static double termWeight(int freq, int docLength, double avgDocLength) {
+        return freq * (K1 + 1) / (freq + K1 * (1 - B + B * docLength / avgDocLength));
+    }
+}
@@ -0,0 +1,96 @@
+package ch.heigvd.dai.retrivium.index;
+
+import ch.heigvd.dai.retrivium.utils.Log;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background merger that keeps the number of segments of a {@link SharedIndex} low and purges the
+ * documents removed from them, see {@link SegmentedIndex}.
+ *
+ * <p>Merges are throttled so that they do not starve the queries : the thread runs at the lowest
+ * priority and, every time a batch of postings has been copied, sleeps long enough to use no more
+ * than the given share of one CPU.
+ */
+public class MergeScheduler implements AutoCloseable {
+    /** Share of one CPU merges use unless another one is chosen */
+    public static final int DEFAULT_CPU_PERCENT = 25;
+
+    /** Time between two looks for a merge worth doing */
+    private static final long POLL_MILLIS = 1000;
+
+    private final SharedIndex index;
+    private final int cpuPercent;
+    private final Thread thread;
+
+    /** Time the merger started working since its last pause */
+    private long busySince;
+
+    /**
+     * Constructs {@code MergeScheduler}, merges start with {@link MergeScheduler#start()}
+     *
+     * @param index whose segments to merge
+     * @param cpuPercent share of one CPU merges may use, from 1 to 100
+     */
+    public MergeScheduler(SharedIndex index, int cpuPercent) {
+        if (cpuPercent < 1 || cpuPercent > 100) {
+            throw new IllegalArgumentException("Share of CPU must be between 1 and 100");
+        }
+        this.index = index;
+        this.cpuPercent = cpuPercent;
+        this.thread = new Thread(this::merge, "index-merger");
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /** Starts merging in a background thread */
+    public void start() {
+        thread.start();
+    }
+
+    private void merge() {
+        try {
+            while (true) {
+                busySince = System.nanoTime();
+                boolean merged;
+                try {
+                    merged = index.mergeSegments(this::pause);
+                } catch (CancellationException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    Log.error("Cannot merge segments : %s", e.getMessage());
+                    merged = false;
+                }
+
+                if (merged) {
+                    pause();
+                } else {
+                    Thread.sleep(POLL_MILLIS);
+                }
+            }
+        } catch (InterruptedException | CancellationException e) {
+            // Merger has been closed
+        }
+    }
+
+    /**
+     * Sleeps for as long as needed for the time spent working since the last pause to be the
+     * allowed share of the time that has passed
+     *
+     * @throws CancellationException if the merger has been closed
+     */
+    private void pause() {
+        long busy = System.nanoTime() - busySince;
+        try {
+            TimeUnit.NANOSECONDS.sleep(busy * (100 - cpuPercent) / cpuPercent);
+        } catch (InterruptedException e) {
+            throw new CancellationException("Merger has been closed");
+        }
+        busySince = System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,428 @@
+package ch.heigvd.dai.retrivium.index;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Postings of a single term : ids of the documents containing the term together with the term
+ * frequency inside each of them. Document ids are always appended in increasing order, so the list
+ * stays sorted without any extra work.
+ *
+ * <p>Postings are compressed in blocks of {@link PostingsList#BLOCK_SIZE} : each posting is written
+ * as the gap from the previous document id followed by the frequency, both in variable-byte
+ * encoding, so most postings fit in two or three bytes. The offset and the last document id of
+ * every block are kept aside, which lets a search jump over whole blocks without decoding them.
+ *
+ * <p>A list loaded from an {@link IndexStore} keeps its blocks in the memory-mapped file until the
+ * first update copies them to the heap.
+ *
+ * <p>The list also knows the largest BM25 weight its term can give to a document, see {@link
+ * PostingsList#maxTermWeight(int[], double)}, which lets a search skip the documents that cannot
+ * make it to the top k.
+ */
+class PostingsList {
+    /** Number of postings of a block, every block but the last one is full */
+    private static final int BLOCK_SIZE = 128;
+
+    // Encoded postings, in the heap array or else in the mapped buffer
+    private byte[] bytes;
+    private ByteBuffer mapped;
+    private int length;
+
+    // Offset then last document id of every block
+    private int[] skips;
+    private int size;
+    private int docFreq;
+
+    // Computed on first use, as a search may need it while holding only a read lock
+    private volatile Peaks peaks;
+
+    /** Constructs empty {@code PostingsList} */
+    PostingsList() {
+        bytes = new byte[4];
+        skips = new int[2];
+        length = 0;
+        size = 0;
+        docFreq = 0;
+    }
+
+    /**
+     * Constructs {@code PostingsList} backed by a memory-mapped buffer
+     *
+     * @param mapped encoded postings
+     * @param skips offset and last document id of every block
+     * @param size number of postings
+     */
+    private PostingsList(ByteBuffer mapped, int[] skips, int size) {
+        this.mapped = mapped;
+        this.length = mapped.limit();
+        this.skips = skips;
+        this.size = size;
+        this.docFreq = size;
+    }
+
+    /** Copies mapped postings to the heap so that they can be modified */
+    private void detach() {
+        if (mapped == null) {
+            return;
+        }
+        bytes = new byte[Math.max(4, length * 2)];
+        mapped.get(0, bytes, 0, length);
+        mapped = null;
+    }
+
+    /**
+     * Appends a posting, {@code docId} must be greater than any id already present
+     *
+     * @param docId id of the document
+     * @param freq number of occurrences of the term in the document
+     * @param docLength length of the document
+     */
+    void add(int docId, int freq, int docLength) {
+        detach();
+        append(docId, freq);
+        docFreq++;
+
+        Peaks current = peaks;
+        if (current != null) {
+            peaks = current.with(freq, docLength);
+        }
+    }
+
+    private void append(int docId, int freq) {
+        int block = size / BLOCK_SIZE;
+        int previous = size == 0 ? -1 : skips[2 * ((size - 1) / BLOCK_SIZE) + 1];
+        if (size % BLOCK_SIZE == 0) {
+            if (2 * block == skips.length) {
+                skips = Arrays.copyOf(skips, skips.length * 2);
+            }
+            skips[2 * block] = length;
+        }
+
+        // Two ints take at most ten bytes
+        if (length + 10 > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(length + 10, bytes.length * 2));
+        }
+        writeVarInt(docId - previous);
+        writeVarInt(freq);
+        skips[2 * block + 1] = docId;
+        size++;
+    }
+
+    /** Writes 7 bits per byte, lowest first, the high bit set on every byte but the last */
+    private void writeVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[length++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+    }
+
+    /**
+     * @return number of blocks
+     */
+    int numBlocks() {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * @return reader positioned before the first posting
+     */
+    Reader reader() {
+        return new Reader();
+    }
+
+    /**
+     * Decodes the postings one at a time, in order. Jumping ahead with {@link Reader#advance(int)}
+     * skips the blocks that end before the target without decoding them. The list must not be
+     * modified while it is being read.
+     */
+    class Reader {
+        private final byte[] encoded;
+        private final ByteBuffer encodedMapped;
+        private int index;
+        private int offset;
+        private int docId;
+        private int freq;
+
+        private Reader() {
+            this.encoded = bytes;
+            this.encodedMapped = mapped;
+            this.index = -1;
+            this.offset = 0;
+            this.docId = -1;
+        }
+
+        private int readVarInt() {
+            int b = encoded != null ? encoded[offset++] : encodedMapped.get(offset++);
+            int value = b & 0x7F;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = encoded != null ? encoded[offset++] : encodedMapped.get(offset++);
+                value |= (b & 0x7F) << shift;
+            }
+            return value;
+        }
+
+        /**
+         * @return id of the next document, {@link Integer#MAX_VALUE} once every posting has been
+         *     read
+         */
+        int nextDoc() {
+            if (index + 1 >= size) {
+                index = size;
+                docId = Integer.MAX_VALUE;
+                return docId;
+            }
+            index++;
+            docId += readVarInt();
+            freq = readVarInt();
+            return docId;
+        }
+
+        /**
+         * Moves to the first posting whose document id is at least {@code target}, unless the
+         * current one already is
+         *
+         * @param target id to reach
+         * @return id of the document, {@link Integer#MAX_VALUE} if there is none
+         */
+        int advance(int target) {
+            if (docId >= target) {
+                return docId;
+            }
+
+            int block = Math.max(index, 0) / BLOCK_SIZE;
+            if (skips[2 * block + 1] < target) {
+                // First block that may hold the target, after the current one
+                int low = block;
+                int high = numBlocks();
+                while (high - low > 1) {
+                    int middle = (low + high) >>> 1;
+                    if (skips[2 * middle + 1] < target) {
+                        low = middle;
+                    } else {
+                        high = middle;
+                    }
+                }
+                if (high == numBlocks()) {
+                    index = size;
+                    docId = Integer.MAX_VALUE;
+                    return docId;
+                }
+                index = high * BLOCK_SIZE - 1;
+                offset = skips[2 * high];
+                docId = skips[2 * high - 1];
+            }
+
+            while (docId < target) {
+                nextDoc();
+            }
+            return docId;
+        }
+
+        /**
+         * @return term frequency in the current document
+         */
+        int freq() {
+            return freq;
+        }
+    }
+
+    /**
+     * Records that one of the documents of this list has been removed. Its posting stays in place
+     * until the next {@link PostingsList#purge(int[])}, but it no longer counts in the document
+     * frequency.
+     */
+    void markRemoved() {
+        docFreq--;
+    }
+
+    /**
+     * @return true if removed documents take more than half of the list
+     */
+    boolean needsPurge() {
+        return size > 8 && docFreq < size / 2;
+    }
+
+    /**
+     * Drops the postings of every document that is no longer alive
+     *
+     * @param docLengths lengths of all the documents, negative for removed ones
+     */
+    void purge(int[] docLengths) {
+        PostingsList kept = new PostingsList();
+        Reader reader = reader();
+        for (int docId = reader.nextDoc(); docId != Integer.MAX_VALUE; docId = reader.nextDoc()) {
+            if (docLengths[docId] >= 0) {
+                kept.append(docId, reader.freq());
+            }
+        }
+
+        bytes = kept.bytes;
+        mapped = null;
+        length = kept.length;
+        skips = kept.skips;
+        size = kept.size;
+        peaks = null;
+    }
+
+    /**
+     * @return number of alive documents containing the term
+     */
+    int docFreq() {
+        return docFreq;
+    }
+
+    /**
+     * @return number of postings, including the ones of removed documents not purged yet
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Writes the postings as they are encoded
+     *
+     * <pre>
+     * int size, int numBlocks, numBlocks x (int offset, int lastDocId)
+     * int length, length x byte
+     * </pre>
+     *
+     * @param out destination
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(numBlocks());
+        for (int i = 0; i < 2 * numBlocks(); i++) {
+            out.writeInt(skips[i]);
+        }
+        out.writeInt(length);
+        if (bytes != null) {
+            out.write(bytes, 0, length);
+        } else {
+            byte[] copy = new byte[length];
+            mapped.get(0, copy);
+            out.write(copy);
+        }
+    }
+
+    /**
+     * Opens postings written by {@link PostingsList#writeTo(DataOutput)}. The offsets of the blocks
+     * are decoded to the heap, the blocks are left in the buffer.
+     *
+     * @param buffer positioned at the start of the postings, moved past them
+     * @return the postings
+     * @throws IOException if the number of blocks is not possible
+     */
+    static PostingsList readFrom(ByteBuffer buffer) throws IOException {
+        int size = buffer.getInt();
+        int numSkips = 2 * IndexStore.readCount(buffer, 2 * Integer.BYTES);
+        int[] skips = new int[Math.max(2, numSkips)];
+        for (int i = 0; i < numSkips; i++) {
+            skips[i] = buffer.getInt();
+        }
+        int length = buffer.getInt();
+        ByteBuffer mapped = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return new PostingsList(mapped, skips, size);
+    }
+
+    /**
+     * Largest weight the term can give to a document of the list. It is exact as long as no
+     * document has been removed since the last {@link PostingsList#purge(int[])}, and an upper
+     * bound otherwise.
+     *
+     * @param docLengths lengths of all the documents, negative for removed ones
+     * @param avgDocLength average length of a document of the corpus
+     * @return largest BM25 term weight, without the inverse document frequency
+     */
+    double maxTermWeight(int[] docLengths, double avgDocLength) {
+        Peaks current = peaks;
+        if (current == null) {
+            current = Peaks.of(this, docLengths);
+            peaks = current;
+        }
+
+        double max = 0;
+        for (int i = 0; i < current.freqs.length; i++) {
+            max =
+                    Math.max(
+                            max,
+                            InvertedIndex.termWeight(
+                                    current.freqs[i], current.lengths[i], avgDocLength));
+        }
+        return max;
+    }
+
+    /**
+     * Postings that no other posting beats with both a higher frequency and a shorter document,
+     * sorted by increasing length, hence increasing frequency. A BM25 weight grows with the
+     * frequency and shrinks with the length, so the largest weight of the list is always the one of
+     * a peak, whatever the average document length. There are seldom more than a few dozens.
+     */
+    private record Peaks(int[] freqs, int[] lengths) {
+        static Peaks of(PostingsList list, int[] docLengths) {
+            long[] postings = new long[list.size()];
+            int count = 0;
+            Reader reader = list.reader();
+            for (int docId = reader.nextDoc();
+                    docId != Integer.MAX_VALUE;
+                    docId = reader.nextDoc()) {
+                if (docLengths[docId] >= 0) {
+                    postings[count++] = key(reader.freq(), docLengths[docId]);
+                }
+            }
+            return of(postings, count);
+        }
+
+        /**
+         * @param postings keys of the postings, see {@link Peaks#key(int, int)}, reordered
+         * @param count number of keys to use
+         * @return peaks of the postings
+         */
+        private static Peaks of(long[] postings, int count) {
+            // Shortest first, on equal lengths the highest frequency first
+            Arrays.sort(postings, 0, count);
+
+            int[] freqs = new int[count];
+            int[] lengths = new int[count];
+            int numPeaks = 0;
+            for (int i = 0; i < count; i++) {
+                int freq = Integer.MAX_VALUE - (int) postings[i];
+                if (numPeaks == 0 || freq > freqs[numPeaks - 1]) {
+                    freqs[numPeaks] = freq;
+                    lengths[numPeaks] = (int) (postings[i] >>> 32);
+                    numPeaks++;
+                }
+            }
+            return new Peaks(Arrays.copyOf(freqs, numPeaks), Arrays.copyOf(lengths, numPeaks));
+        }
+
+        private static long key(int freq, int docLength) {
+            return (long) docLength << 32 | (Integer.MAX_VALUE - freq);
+        }
+
+        /**
+         * @param freq frequency of a new posting
+         * @param docLength length of its document
+         * @return peaks of the postings together with the new one
+         */
+        Peaks with(int freq, int docLength) {
+            for (int i = 0; i < freqs.length && lengths[i] <= docLength; i++) {
+                if (freqs[i] >= freq) {
+                    return this;
+                }
+            }
+
+            long[] postings = new long[freqs.length + 1];
+            for (int i = 0; i < freqs.length; i++) {
+                postings[i] = key(freqs[i], lengths[i]);
+            }
+            postings[freqs.length] = key(freq, docLength);
+            return of(postings, postings.length);
+        }
+    }
+}
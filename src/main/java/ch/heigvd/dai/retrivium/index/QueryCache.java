@@ -0,0 +1,175 @@
+package ch.heigvd.dai.retrivium.index;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of rankings, shared by every client connection.
+ *
+ * <p>Rankings are keyed on the {@link QueryCache#normalize(List) normalized} terms of a query and
+ * tagged with the {@link SharedIndex#getGeneration() generation} of the index they were computed
+ * on, so that any change to the index makes them stale. A ranking of the top {@code k} documents
+ * also answers every request for fewer documents.
+ *
+ * <p>The least recently used rankings are evicted once either the number of rankings or the total
+ * number of cached documents exceeds its bound.
+ */
+public class QueryCache {
+    private final int maxEntries;
+    private final int maxResults;
+    private final LinkedHashMap<List<String>, Entry> entries;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private int cachedResults;
+
+    /** Ranking computed for a query on one generation of the index */
+    private record Entry(long generation, int k, List<ScoredDocument> results) {
+
+        /**
+         * @return number of documents the entry accounts for in the bound of the cache
+         */
+        int weight() {
+            return results.size() + 1;
+        }
+
+        /**
+         * @param k number of documents requested
+         * @return true if the entry holds the top {@code k} documents
+         */
+        boolean covers(int k) {
+            // Fewer results than requested means every matching document is there
+            return this.k >= k || results.size() < this.k;
+        }
+    }
+
+    /**
+     * Constructs an empty {@code QueryCache}
+     *
+     * @param maxEntries maximal number of rankings kept
+     * @param maxResults maximal number of documents kept, over all rankings
+     */
+    public QueryCache(int maxEntries, int maxResults) {
+        this.maxEntries = maxEntries;
+        this.maxResults = maxResults;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.cachedResults = 0;
+    }
+
+    /**
+     * Puts the terms of a query in a canonical form : sorted and without duplicates. The BM25 score
+     * of a document does not depend on the order or repetition of query terms, so queries that only
+     * differ by them share the same rankings.
+     *
+     * @param tokens terms of a query
+     * @return normalized terms
+     */
+    public static List<String> normalize(List<String> tokens) {
+        return List.copyOf(new TreeSet<>(tokens));
+    }
+
+    /**
+     * Looks a ranking up
+     *
+     * @param terms normalized terms of the query
+     * @param k number of documents requested
+     * @param generation current generation of the index
+     * @return top {@code k} documents, null if they are not cached for this generation
+     */
+    List<ScoredDocument> get(List<String> terms, int k, long generation) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(terms);
+            if (entry != null && entry.generation() != generation) {
+                remove(terms);
+                entry = null;
+            }
+        }
+
+        if (entry == null || !entry.covers(k)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+
+        List<ScoredDocument> results = entry.results();
+        return results.size() > k ? results.subList(0, k) : results;
+    }
+
+    /**
+     * Caches a ranking, unless a ranking at least as deep is already cached for the same generation
+     *
+     * @param terms normalized terms of the query
+     * @param k number of documents requested
+     * @param generation generation of the index the ranking has been computed on
+     * @param results top {@code k} documents
+     */
+    void put(List<String> terms, int k, long generation, List<ScoredDocument> results) {
+        Entry entry = new Entry(generation, k, List.copyOf(results));
+        if (entry.weight() > maxResults) {
+            return;
+        }
+
+        synchronized (entries) {
+            Entry existing = entries.get(terms);
+            if (existing != null) {
+                if (existing.generation() == generation && existing.covers(k)) {
+                    return;
+                }
+                remove(terms);
+            }
+
+            entries.put(terms, entry);
+            cachedResults += entry.weight();
+
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (entries.size() > maxEntries || cachedResults > maxResults) {
+                cachedResults -= eldest.next().weight();
+                eldest.remove();
+            }
+        }
+    }
+
+    /** Must be called with the lock on {@link QueryCache#entries} held */
+    private void remove(List<String> terms) {
+        Entry removed = entries.remove(terms);
+        if (removed != null) {
+            cachedResults -= removed.weight();
+        }
+    }
+
+    /** Drops every cached ranking, counters are kept */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            cachedResults = 0;
+        }
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups that had to be computed
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of rankings currently cached
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ch.heigvd.dai.retrivium.index;
+
+/** One entry of a ranking : a document together with its BM25 score */
+public class ScoredDocument {
+    private final int docIndex;
+    private final String docName;
+    private final double score;
+
+    /**
+     * Constructs {@code ScoredDocument}
+     *
+     * @param docIndex internal id of the document
+     * @param docName name of the document
+     * @param score BM25 score of the document for a query
+     */
+    public ScoredDocument(int docIndex, String docName, double score) {
+        this.docIndex = docIndex;
+        this.docName = docName;
+        this.score = score;
+    }
+
+    /**
+     * @return internal id of the document
+     */
+    public int getDocIndex() {
+        return docIndex;
+    }
+
+    /**
+     * @return name of the document
+     */
+    public String getDocName() {
+        return docName;
+    }
+
+    /**
+     * @return BM25 score of the document
+     */
+    public double getScore() {
+        return score;
+    }
+}
@@ -0,0 +1,361 @@
+package ch.heigvd.dai.retrivium.index;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Shard of a {@link ShardedIndex}, made of segments like a log-structured merge tree : documents
+ * are added to a small active {@link InvertedIndex}, which is sealed once it holds {@link
+ * SegmentedIndex#FLUSH_LENGTH} terms and replaced by an empty one. Sealed segments take no more
+ * documents, removing or replacing one of their documents only leaves a tombstone.
+ *
+ * <p>Sealed segments are compacted in the background, see {@link SegmentedIndex#mergeOnce}.
+ * Segments of about the same size are merged together, so that there are only a few of them, and a
+ * segment mostly made of tombstones is rewritten on its own. Compaction reads its segments without
+ * holding up searches, and the merged segment replaces them atomically.
+ *
+ * <p>A query sums the statistics of every segment, then every segment ranks its own documents
+ * against these statistics, so scores are exactly the ones a single index would give. The list of
+ * segments is read once per query and used for both, so that a merge swapping segments in the
+ * meantime cannot make them disagree. Documents are numbered segment after segment, oldest first,
+ * so ties are still broken by indexing order.
+ *
+ * <p>Instances are thread-safe. Updates and swaps of segments are serialized on the instance,
+ * searches read an immutable list of the segments.
+ */
+class SegmentedIndex {
+    /** Total length of the documents of the active segment once it gets sealed */
+    static final long FLUSH_LENGTH = 1 << 20;
+
+    /** Number of segments of about the same size merged together */
+    static final int MERGE_FACTOR = 4;
+
+    /** Sealed segments beyond which the smallest ones are merged whatever their sizes */
+    static final int MAX_SEALED_SEGMENTS = 16;
+
+    private final long flushLength;
+
+    /** Oldest first, the last one is the active segment, replaced as a whole on every change */
+    private volatile List<InvertedIndex> segments;
+
+    /** Segments being merged, null if there is no merge in progress */
+    private List<InvertedIndex> merging;
+
+    /** Documents removed from the segments being merged, to be removed from the merged one too */
+    private final HashSet<String> removedDuringMerge;
+
+    /**
+     * Constructs {@code SegmentedIndex}
+     *
+     * @param sealed segments built beforehand, oldest first, they get sealed
+     * @param flushLength total length of the documents of the active segment once it gets sealed
+     */
+    SegmentedIndex(List<InvertedIndex> sealed, long flushLength) {
+        this.flushLength = flushLength;
+        this.removedDuringMerge = new HashSet<>();
+
+        ArrayList<InvertedIndex> initial = new ArrayList<>();
+        for (InvertedIndex segment : sealed) {
+            if (segment.getNumOfDocs() > 0) {
+                segment.seal();
+                initial.add(segment);
+            }
+        }
+        initial.add(new InvertedIndex());
+        this.segments = List.copyOf(initial);
+    }
+
+    /**
+     * Constructs {@code SegmentedIndex}, sealing the active segment after {@link
+     * SegmentedIndex#FLUSH_LENGTH} terms
+     *
+     * @param sealed segments built beforehand, oldest first, they get sealed
+     */
+    SegmentedIndex(List<InvertedIndex> sealed) {
+        this(sealed, FLUSH_LENGTH);
+    }
+
+    /**
+     * @return segments, oldest first, without the active one while it is empty
+     */
+    List<InvertedIndex> getSegments() {
+        List<InvertedIndex> view = segments;
+        return view.getLast().getNumOfDocs() > 0 ? view : view.subList(0, view.size() - 1);
+    }
+
+    /**
+     * Adds a document to the active segment, replacing any document with the same name
+     *
+     * @param docName name of the document
+     * @param terms bag of terms of the document
+     */
+    synchronized void addDocument(String docName, DocumentTerms terms) {
+        removeFromSealed(docName);
+        InvertedIndex active = segments.getLast();
+        active.addDocument(docName, terms);
+        if (active.getTotalLength() >= flushLength) {
+            active.seal();
+            ArrayList<InvertedIndex> next = new ArrayList<>(segments);
+            next.add(new InvertedIndex());
+            segments = List.copyOf(next);
+        }
+    }
+
+    /**
+     * Removes a document from the segment holding it
+     *
+     * @param docName name of the document
+     * @return true if the document was indexed
+     */
+    synchronized boolean removeDocument(String docName) {
+        return removeFromSealed(docName) || segments.getLast().removeDocument(docName);
+    }
+
+    private boolean removeFromSealed(String docName) {
+        List<InvertedIndex> view = segments;
+        for (int i = view.size() - 2; i >= 0; i--) {
+            InvertedIndex segment = view.get(i);
+            // Looked up first, a miss does not wait for the lock of a segment being compacted
+            if (!segment.contains(docName) || !segment.removeDocument(docName)) {
+                continue;
+            }
+
+            if (merging != null && merging.contains(segment)) {
+                removedDuringMerge.add(docName);
+            } else if (segment.getNumOfDocs() == 0) {
+                ArrayList<InvertedIndex> next = new ArrayList<>(view);
+                next.remove(i);
+                segments = List.copyOf(next);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compacts some of the sealed segments if there is a merge worth doing, see {@link
+     * SegmentedIndex}. Only one merge runs at a time, a call made while another one is merging does
+     * nothing.
+     *
+     * @param pause run every now and then while postings are copied, to let other threads work
+     * @return true if segments have been merged
+     */
+    boolean mergeOnce(Runnable pause) {
+        List<InvertedIndex> inputs;
+        synchronized (this) {
+            if (merging != null) {
+                return false;
+            }
+            inputs = pickMerge(segments.subList(0, segments.size() - 1));
+            if (inputs == null) {
+                return false;
+            }
+            merging = inputs;
+        }
+
+        try {
+            InvertedIndex merged = InvertedIndex.compact(inputs, pause);
+            synchronized (this) {
+                for (String docName : removedDuringMerge) {
+                    merged.removeDocument(docName);
+                }
+
+                // The merged segment takes the place of the oldest one, the others are dropped
+                ArrayList<InvertedIndex> next = new ArrayList<>(segments.size());
+                for (InvertedIndex segment : segments) {
+                    if (segment == inputs.getFirst() && merged.getNumOfDocs() > 0) {
+                        next.add(merged);
+                    } else if (!inputs.contains(segment)) {
+                        next.add(segment);
+                    }
+                }
+                segments = List.copyOf(next);
+            }
+            return true;
+        } finally {
+            synchronized (this) {
+                merging = null;
+                removedDuringMerge.clear();
+            }
+        }
+    }
+
+    /**
+     * Picks the segments to merge : first a segment whose slots are mostly tombstones, then the
+     * smallest run of {@link SegmentedIndex#MERGE_FACTOR} consecutive segments of the same size
+     * class, then if there are too many segments the smallest run whatever the size classes. Only
+     * consecutive segments are merged, so that documents stay in indexing order.
+     *
+     * @param sealed sealed segments, oldest first
+     * @return segments to merge, oldest first, null if none is worth merging
+     */
+    private List<InvertedIndex> pickMerge(List<InvertedIndex> sealed) {
+        int[] sizeClasses = new int[sealed.size()];
+        long[] lengths = new long[sealed.size()];
+        for (int i = 0; i < sealed.size(); i++) {
+            InvertedIndex segment = sealed.get(i);
+            int slots = segment.getNumOfSlots();
+            if (slots >= 2 * MERGE_FACTOR && 2 * segment.getNumOfDocs() < slots) {
+                return List.of(segment);
+            }
+            lengths[i] = segment.getTotalLength();
+            sizeClasses[i] = sizeClassOf(lengths[i]);
+        }
+
+        int best = -1;
+        long bestLength = Long.MAX_VALUE;
+        boolean bestSameClass = false;
+        for (int start = 0; start + MERGE_FACTOR <= sealed.size(); start++) {
+            boolean sameClass = true;
+            long length = 0;
+            for (int i = start; i < start + MERGE_FACTOR; i++) {
+                sameClass &= sizeClasses[i] == sizeClasses[start];
+                length += lengths[i];
+            }
+            if (sameClass && (!bestSameClass || length < bestLength)
+                    || !bestSameClass && length < bestLength) {
+                best = start;
+                bestLength = length;
+                bestSameClass = sameClass;
+            }
+        }
+
+        if (best < 0 || !bestSameClass && sealed.size() <= MAX_SEALED_SEGMENTS) {
+            return null;
+        }
+        return List.copyOf(sealed.subList(best, best + MERGE_FACTOR));
+    }
+
+    /**
+     * @param length total length of the documents of a segment
+     * @return 0 for segments up to {@link SegmentedIndex#flushLength}, then one more every time the
+     *     length is multiplied by {@link SegmentedIndex#MERGE_FACTOR}
+     */
+    private int sizeClassOf(long length) {
+        int sizeClass = 0;
+        for (long bound = flushLength; length > bound; bound *= MERGE_FACTOR) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * @return number of indexed documents over all the segments
+     */
+    int getNumOfDocs() {
+        int numOfDocs = 0;
+        for (InvertedIndex segment : segments) {
+            numOfDocs += segment.getNumOfDocs();
+        }
+        return numOfDocs;
+    }
+
+    /**
+     * @return names of the indexed documents, segment after segment, each in indexing order
+     */
+    List<String> getDocumentNames() {
+        ArrayList<String> names = new ArrayList<>();
+        for (InvertedIndex segment : segments) {
+            names.addAll(segment.getDocumentNames());
+        }
+        return names;
+    }
+
+    /**
+     * @param docName name of the document
+     * @return true if the document is indexed
+     */
+    boolean contains(String docName) {
+        for (InvertedIndex segment : segments) {
+            if (segment.contains(docName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ranks the documents like {@link InvertedIndex#search(List, int)}
+     *
+     * @param queryTokens tokens of the query, duplicates are ignored
+     * @param k maximal number of documents to return
+     * @return documents sorted from the most to the least relevant
+     */
+    List<ScoredDocument> search(List<String> queryTokens, int k) {
+        List<InvertedIndex> view = getSegments();
+        if (view.isEmpty()) {
+            return new ArrayList<>();
+        }
+        if (view.size() == 1) {
+            return view.getFirst().search(queryTokens, k);
+        }
+
+        CorpusStats stats = new CorpusStats(new ArrayList<>(new LinkedHashSet<>(queryTokens)));
+        collectStats(view, stats);
+        return search(view, stats, k);
+    }
+
+    /**
+     * Adds the statistics of some segments to the ones of a corpus they are a part of
+     *
+     * @param view segments, as returned by {@link SegmentedIndex#getSegments()}
+     * @param stats statistics of the corpus being collected
+     */
+    static void collectStats(List<InvertedIndex> view, CorpusStats stats) {
+        for (InvertedIndex segment : view) {
+            segment.collectStats(stats);
+        }
+    }
+
+    /**
+     * Ranks the documents of some segments like {@link InvertedIndex#search(CorpusStats, int)}
+     *
+     * @param view segments, as returned by {@link SegmentedIndex#getSegments()}
+     * @param stats statistics of the corpus, holding the terms of the query
+     * @param k maximal number of documents to return
+     * @return documents sorted from the most to the least relevant
+     */
+    static List<ScoredDocument> search(List<InvertedIndex> view, CorpusStats stats, int k) {
+        if (view.isEmpty()) {
+            return new ArrayList<>();
+        }
+        if (view.size() == 1) {
+            return view.getFirst().search(stats, k);
+        }
+
+        // Sized by what can be returned, k comes from the client
+        int numOfDocs = 0;
+        for (InvertedIndex segment : view) {
+            numOfDocs += segment.getNumOfDocs();
+        }
+        PriorityQueue<ScoredDocument> heap =
+                new PriorityQueue<>(Math.min(k, numOfDocs) + 1, InvertedIndex.WORST_FIRST);
+
+        // Ids are shifted by the slots of the older segments, so that they stay in indexing order
+        int base = 0;
+        for (InvertedIndex segment : view) {
+            for (ScoredDocument doc : segment.search(stats, k)) {
+                ScoredDocument shifted =
+                        new ScoredDocument(
+                                base + doc.getDocIndex(), doc.getDocName(), doc.getScore());
+                if (heap.size() == k
+                        && InvertedIndex.WORST_FIRST.compare(shifted, heap.peek()) <= 0) {
+                    // The rest of the ranking is even worse
+                    break;
+                }
+                heap.add(shifted);
+                if (heap.size() > k) {
+                    heap.poll();
+                }
+            }
+            base += segment.getNumOfSlots();
+        }
+
+        ArrayList<ScoredDocument> results = new ArrayList<>(heap);
+        results.sort(InvertedIndex.WORST_FIRST.reversed());
+        return results;
+    }
+}
@@ -0,0 +1,315 @@
+package ch.heigvd.dai.retrivium.index;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * BM25 index split in shards, each one a {@link SegmentedIndex} over a disjoint part of the corpus.
+ * A document always lives in the shard picked by the hash of its name, so replacing or removing it
+ * only touches that shard.
+ *
+ * <p>A query is scattered over the shards : their statistics are summed first, then every shard
+ * ranks its own documents against these corpus-wide statistics, in parallel, and the rankings are
+ * gathered in a top-k heap. Scores are therefore exactly the ones a single index over the whole
+ * corpus would give. On equal scores, documents are ordered by indexing order inside their shard,
+ * then by shard.
+ *
+ * <p>Instances are thread-safe. A query holds a read lock while it collects the statistics and
+ * ranks the documents, and reads the list of segments of every shard once for both, so that every
+ * shard is searched in the state its statistics come from. An update only holds the write lock
+ * while it changes its shard, documents are analyzed beforehand.
+ */
+public class ShardedIndex {
+    private final SegmentedIndex[] shards;
+
+    /** Held for reading by queries and for writing by updates, not by merges */
+    private final ReentrantReadWriteLock lock;
+
+    /**
+     * Constructs {@code ShardedIndex} with empty shards
+     *
+     * @param numShards number of shards, at least one
+     */
+    public ShardedIndex(int numShards) {
+        this(new SegmentedIndex[numShards]);
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new SegmentedIndex(List.of());
+        }
+    }
+
+    /**
+     * Constructs {@code ShardedIndex} over shards built beforehand
+     *
+     * @param shards every document must be in the shard given by {@link ShardedIndex#shardOf}
+     */
+    ShardedIndex(SegmentedIndex[] shards) {
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("An index needs at least one shard");
+        }
+        this.shards = shards;
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Picks the shard of a document. The hash of a string is the same on every JVM, so shards
+     * persisted by an {@link IndexStore} stay valid from one run to another.
+     *
+     * @param docName name of the document
+     * @param numShards number of shards
+     * @return index of the shard holding the document
+     */
+    static int shardOf(String docName, int numShards) {
+        return Math.floorMod(docName.hashCode(), numShards);
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    /**
+     * @param shard index of the shard
+     * @return the shard
+     */
+    SegmentedIndex getShard(int shard) {
+        return shards[shard];
+    }
+
+    private SegmentedIndex shardFor(String docName) {
+        return shards[shardOf(docName, shards.length)];
+    }
+
+    /**
+     * Adds a document to its shard, replacing any document with the same name
+     *
+     * @param docName name of the document
+     * @param terms bag of terms of the document
+     */
+    public void addDocument(String docName, DocumentTerms terms) {
+        lock.writeLock().lock();
+        try {
+            shardFor(docName).addDocument(docName, terms);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a document from its shard
+     *
+     * @param docName name of the document
+     * @return true if the document was indexed
+     */
+    public boolean removeDocument(String docName) {
+        lock.writeLock().lock();
+        try {
+            return shardFor(docName).removeDocument(docName);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of indexed documents over all the shards
+     */
+    public int getNumOfDocs() {
+        int numOfDocs = 0;
+        for (SegmentedIndex shard : shards) {
+            numOfDocs += shard.getNumOfDocs();
+        }
+        return numOfDocs;
+    }
+
+    /**
+     * @return number of segments with documents over all the shards
+     */
+    public int getNumOfSegments() {
+        int numOfSegments = 0;
+        for (SegmentedIndex shard : shards) {
+            numOfSegments += shard.getSegments().size();
+        }
+        return numOfSegments;
+    }
+
+    /**
+     * Merges segments of the first shard that has a merge worth doing, see {@link
+     * SegmentedIndex#mergeOnce(Runnable)}
+     *
+     * @param pause run every now and then while postings are copied, to let other threads work
+     * @return true if segments have been merged
+     */
+    boolean mergeOnce(Runnable pause) {
+        for (SegmentedIndex shard : shards) {
+            if (shard.mergeOnce(pause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return names of the indexed documents, shard after shard, each in indexing order
+     */
+    public List<String> getDocumentNames() {
+        ArrayList<String> names = new ArrayList<>();
+        for (SegmentedIndex shard : shards) {
+            names.addAll(shard.getDocumentNames());
+        }
+        return names;
+    }
+
+    /**
+     * Tests if the given document has been indexed, therefore can be searched through
+     *
+     * @param docName name of the document
+     * @return true if the document is indexed
+     */
+    public boolean contains(String docName) {
+        return shardFor(docName).contains(docName);
+    }
+
+    /**
+     * Ranks the indexed documents against the query and keeps the {@code k} best ones. Documents
+     * that share no term with the query are never returned.
+     *
+     * @param queryTokens tokens of the query, duplicates are ignored
+     * @param k maximal number of documents to return
+     * @return documents sorted from the most to the least relevant
+     */
+    public List<ScoredDocument> search(List<String> queryTokens, int k) {
+        lock.readLock().lock();
+        try {
+            if (shards.length == 1) {
+                return shards[0].search(queryTokens, k);
+            }
+
+            // Statistics and rankings come from the same segments, even if a merge swaps them
+            List<List<InvertedIndex>> views = getSegments();
+            CorpusStats stats = new CorpusStats(new ArrayList<>(new LinkedHashSet<>(queryTokens)));
+            for (List<InvertedIndex> view : views) {
+                SegmentedIndex.collectStats(view, stats);
+            }
+            return search(views, stats, k);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the statistics of every shard to the ones of a corpus this index is a part of
+     *
+     * @param stats statistics of the corpus being collected
+     */
+    void collectStats(CorpusStats stats) {
+        lock.readLock().lock();
+        try {
+            for (List<InvertedIndex> view : getSegments()) {
+                SegmentedIndex.collectStats(view, stats);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ranks the indexed documents like {@link ShardedIndex#search(List, int)}, but with the
+     * statistics of a whole corpus this index is a part of
+     *
+     * @param stats statistics of the corpus, holding the terms of the query
+     * @param k maximal number of documents to return
+     * @return documents sorted from the most to the least relevant
+     */
+    List<ScoredDocument> search(CorpusStats stats, int k) {
+        lock.readLock().lock();
+        try {
+            return search(getSegments(), stats, k);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return segments of every shard, as returned by {@link SegmentedIndex#getSegments()}
+     */
+    private List<List<InvertedIndex>> getSegments() {
+        List<List<InvertedIndex>> views = new ArrayList<>(shards.length);
+        for (SegmentedIndex shard : shards) {
+            views.add(shard.getSegments());
+        }
+        return views;
+    }
+
+    /**
+     * Ranks the documents of the given segments of every shard, must be called under the read lock
+     *
+     * @param views segments of every shard, in shard order
+     * @param stats statistics of the corpus, holding the terms of the query
+     * @param k maximal number of documents to return
+     * @return documents sorted from the most to the least relevant
+     */
+    private List<ScoredDocument> search(List<List<InvertedIndex>> views, CorpusStats stats, int k) {
+        if (stats.getNumOfDocs() == 0 || k <= 0) {
+            return new ArrayList<>();
+        }
+        if (views.size() == 1) {
+            return SegmentedIndex.search(views.getFirst(), stats, k);
+        }
+
+        // The calling thread ranks the first shard while the pool ranks the others, under the
+        // read lock of the calling thread
+        List<ForkJoinTask<List<ScoredDocument>>> tasks = new ArrayList<>(views.size() - 1);
+        for (int i = 1; i < views.size(); i++) {
+            List<InvertedIndex> view = views.get(i);
+            tasks.add(
+                    ForkJoinPool.commonPool().submit(() -> SegmentedIndex.search(view, stats, k)));
+        }
+
+        // Sized by what can be returned, k comes from the client
+        PriorityQueue<ScoredDocument> heap =
+                new PriorityQueue<>(
+                        Math.min(k, stats.getNumOfDocs()) + 1, InvertedIndex.WORST_FIRST);
+        gather(heap, k, 0, SegmentedIndex.search(views.getFirst(), stats, k));
+        for (int i = 1; i < views.size(); i++) {
+            gather(heap, k, i, tasks.get(i - 1).join());
+        }
+
+        ArrayList<ScoredDocument> results = new ArrayList<>(heap);
+        results.sort(InvertedIndex.WORST_FIRST.reversed());
+        return results;
+    }
+
+    /**
+     * Adds the ranking of a shard to the {@code k} best documents found so far. Document ids are
+     * made unique over the shards, local id first, so that ties keep a stable order.
+     *
+     * @param heap best documents so far, worst first
+     * @param k maximal number of documents to keep
+     * @param shard index of the shard
+     * @param ranking documents of the shard, from the most to the least relevant
+     */
+    private void gather(
+            PriorityQueue<ScoredDocument> heap, int k, int shard, List<ScoredDocument> ranking) {
+        for (ScoredDocument doc : ranking) {
+            ScoredDocument global =
+                    new ScoredDocument(
+                            doc.getDocIndex() * shards.length + shard,
+                            doc.getDocName(),
+                            doc.getScore());
+            if (heap.size() == k && InvertedIndex.WORST_FIRST.compare(global, heap.peek()) <= 0) {
+                // The rest of the ranking is even worse
+                return;
+            }
+            heap.add(global);
+            if (heap.size() > k) {
+                heap.poll();
+            }
+        }
+    }
+}
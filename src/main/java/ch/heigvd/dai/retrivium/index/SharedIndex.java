@@ -0,0 +1,599 @@
+package ch.heigvd.dai.retrivium.index;
+
+import ch.heigvd.dai.retrivium.analysis.Analyzer;
+import ch.heigvd.dai.retrivium.utils.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide BM25 index over a directory.
+ *
+ * <p>The index is built once and shared by every client connection. Single documents are added,
+ * replaced or removed incrementally, while a full rebuild fills a brand new {@link ShardedIndex}
+ * which is then published atomically, so readers never wait for a rebuild to finish. With more than
+ * one shard, a query is ranked by all of them in parallel.
+ *
+ * <p>The {@link FileFingerprint fingerprint} of every indexed file is remembered, so that changes
+ * reported by a {@link DirectoryWatcher} only re-index files whose content may really have changed.
+ * Every change bumps the {@link SharedIndex#getGeneration() generation} of the index, which in turn
+ * invalidates the rankings kept by its {@link QueryCache}, and is recorded in its {@link ChangeLog}
+ * for the replicas that follow the index.
+ *
+ * <p>Documents and queries go through the same {@link Analyzer}. The analyzed terms of recent
+ * queries are cached, so a query asked again is not analyzed again.
+ *
+ * <p>Updates go to small segments of the index, which a {@link MergeScheduler} compacts in the
+ * background. Merges do not change the content of the index, nor its rankings.
+ *
+ * <p>Hidden files (starting with a dot) are never indexed, they are used for uploads in progress.
+ */
+public class SharedIndex {
+    /** Bounds of the query cache, see {@link QueryCache} */
+    private static final int QUERY_CACHE_ENTRIES = 1024;
+
+    private static final int QUERY_CACHE_RESULTS = 1 << 16;
+
+    /** Bounds of the cache of analyzed query terms, longer queries are not cached */
+    private static final int QUERY_TERMS_ENTRIES = 4096;
+
+    private static final int QUERY_TERMS_MAX_LENGTH = 256;
+
+    /** Changes kept for replicas, one further behind has to start again from a snapshot */
+    private static final int CHANGE_LOG_ENTRIES = 1 << 16;
+
+    private final File targetDir;
+    private final Analyzer analyzer;
+    private final LinkedHashMap<String, List<String>> queryTerms;
+    private final CorpusIngester ingester;
+    private final int numShards;
+    private final AtomicReference<ShardedIndex> current;
+    private final AtomicLong generation;
+    private final QueryCache queryCache;
+    private final ChangeLog changeLog;
+    private volatile Map<String, FileFingerprint> fingerprints;
+    private volatile boolean readOnly;
+
+    /** Statistics about the updates, read by the metrics of the server */
+    private final LongAdder updatedDocuments;
+
+    private volatile long lastRebuildMillis;
+    private volatile long rebuilds;
+    private final LongAdder merges;
+
+    /** Serializes full rebuilds, which do not hold the lock of the instance while ingesting */
+    private final Object rebuildLock;
+
+    /** Documents changed while a rebuild is ingesting, null if there is no rebuild in progress */
+    private HashSet<String> changedDuringRebuild;
+
+    /**
+     * Constructs {@code SharedIndex} with an empty index
+     *
+     * @param targetDir directory with documents to index
+     * @param numShards number of shards the documents are split in, at least one
+     * @param analyzer splitting documents and queries into terms
+     */
+    public SharedIndex(File targetDir, int numShards, Analyzer analyzer) {
+        this.targetDir = targetDir;
+        this.analyzer = analyzer;
+        this.queryTerms = new LinkedHashMap<>(16, 0.75f, true);
+        this.ingester = new CorpusIngester(analyzer);
+        this.numShards = numShards;
+        this.current = new AtomicReference<>(new ShardedIndex(numShards));
+        this.generation = new AtomicLong();
+        this.queryCache = new QueryCache(QUERY_CACHE_ENTRIES, QUERY_CACHE_RESULTS);
+        this.changeLog = new ChangeLog(CHANGE_LOG_ENTRIES);
+        this.fingerprints = new ConcurrentHashMap<>();
+        this.updatedDocuments = new LongAdder();
+        this.merges = new LongAdder();
+        this.rebuildLock = new Object();
+    }
+
+    /**
+     * Constructs {@code SharedIndex} with an empty index and the {@link Analyzer#DEFAULT_SPEC
+     * default analyzer}
+     *
+     * @param targetDir directory with documents to index
+     * @param numShards number of shards the documents are split in, at least one
+     */
+    public SharedIndex(File targetDir, int numShards) {
+        this(targetDir, numShards, Analyzer.parse(Analyzer.DEFAULT_SPEC));
+    }
+
+    /**
+     * Constructs {@code SharedIndex} with an empty index in a single shard
+     *
+     * @param targetDir directory with documents to index
+     */
+    public SharedIndex(File targetDir) {
+        this(targetDir, 1);
+    }
+
+    /**
+     * @return directory being indexed
+     */
+    public File getTargetDir() {
+        return targetDir;
+    }
+
+    /**
+     * @return analyzer splitting documents and queries into terms
+     */
+    public Analyzer getAnalyzer() {
+        return analyzer;
+    }
+
+    /**
+     * @return latest published index
+     */
+    public ShardedIndex current() {
+        return current.get();
+    }
+
+    /**
+     * @return number that changes every time the content of the index changes
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @return cache of the rankings returned by {@link SharedIndex#search(String, int)}
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * @return log of the documents changed, tailed by replicas
+     */
+    public ChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    /**
+     * @return true if the documents are managed by replication, clients cannot upload any
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @param readOnly true to refuse uploads from clients, when the index follows a primary
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Tests if a name can be used for a document : a plain file name that is not hidden
+     *
+     * @param name to test
+     * @return true if a file with this name is indexed
+     */
+    public static boolean isDocumentName(String name) {
+        return !name.isEmpty()
+                && !name.startsWith(".")
+                && name.indexOf('/') < 0
+                && name.indexOf('\\') < 0
+                && name.indexOf('\0') < 0;
+    }
+
+    /**
+     * @return files of {@link SharedIndex#targetDir} that can be indexed, null if it cannot be
+     *     listed
+     */
+    private File[] listDocuments() {
+        return targetDir.listFiles(file -> isDocumentName(file.getName()));
+    }
+
+    /**
+     * Splits text into index terms with the analyzer of the index
+     *
+     * @param text to tokenize
+     * @return terms of the text
+     */
+    public List<String> tokenize(String text) {
+        return analyzer.tokenize(text);
+    }
+
+    /**
+     * Analyzes a query, recently analyzed queries are answered from a cache. Terms do not depend on
+     * the content of the index, so cached terms never become stale.
+     *
+     * @param query text of the query
+     * @return {@link QueryCache#normalize(List) normalized} terms of the query
+     */
+    private List<String> queryTermsOf(String query) {
+        synchronized (queryTerms) {
+            List<String> terms = queryTerms.get(query);
+            if (terms != null) {
+                return terms;
+            }
+        }
+
+        List<String> terms = QueryCache.normalize(tokenize(query));
+        if (query.length() <= QUERY_TERMS_MAX_LENGTH) {
+            synchronized (queryTerms) {
+                queryTerms.put(query, terms);
+                Iterator<List<String>> eldest = queryTerms.values().iterator();
+                while (queryTerms.size() > QUERY_TERMS_ENTRIES) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Ranks the documents of the current index against a query. Rankings are cached until the index
+     * changes.
+     *
+     * @param query text of the query
+     * @param k maximal number of documents to return
+     * @return at most {@code k} documents, from most to least relevant
+     */
+    public List<ScoredDocument> search(String query, int k) {
+        List<String> terms = queryTermsOf(query);
+
+        // Generation read first : a change published in the meantime makes the entry stale
+        // rather than letting it hide the change
+        long searchedGeneration = generation.get();
+        List<ScoredDocument> results = queryCache.get(terms, k, searchedGeneration);
+        if (results == null) {
+            results = current.get().search(terms, k);
+            queryCache.put(terms, k, searchedGeneration, results);
+        }
+        return results;
+    }
+
+    /**
+     * Collects the statistics of the current index for a query, so that they can be summed with
+     * those of the other parts of a corpus partitioned over several servers
+     *
+     * @param query text of the query
+     * @return statistics of this index, for the normalized terms of the query
+     */
+    public CorpusStats collectStats(String query) {
+        CorpusStats stats = new CorpusStats(queryTermsOf(query));
+        current.get().collectStats(stats);
+        return stats;
+    }
+
+    /**
+     * Ranks the documents of the current index against the statistics of a whole corpus this index
+     * is a part of, so that their scores compare with those of the other parts. Such rankings are
+     * not cached, they depend on the other parts too.
+     *
+     * @param stats statistics of the corpus, holding the terms of the query
+     * @param k maximal number of documents to return
+     * @return at most {@code k} documents, from most to least relevant
+     */
+    public List<ScoredDocument> search(CorpusStats stats, int k) {
+        return current.get().search(stats, k);
+    }
+
+    /**
+     * @return number of documents indexed, replaced or removed one at a time since the index has
+     *     been created, full rebuilds excepted
+     */
+    public long getUpdatedDocuments() {
+        return updatedDocuments.sum();
+    }
+
+    /**
+     * @return time the last full rebuild took, 0 if there has been none
+     */
+    public long getLastRebuildMillis() {
+        return lastRebuildMillis;
+    }
+
+    /**
+     * @return number of full rebuilds since the index has been created
+     */
+    public long getRebuilds() {
+        return rebuilds;
+    }
+
+    /**
+     * @return number of merges of segments since the index has been created
+     */
+    public long getMerges() {
+        return merges.sum();
+    }
+
+    /**
+     * Merges segments of the current index if there is a merge worth doing. Neither queries nor
+     * updates wait for the merge, only for the merged segment to be swapped in.
+     *
+     * @param pause run every now and then while merging, to let other threads work
+     * @return true if segments have been merged
+     */
+    public boolean mergeSegments(Runnable pause) {
+        boolean merged = current.get().mergeOnce(pause);
+        if (merged) {
+            merges.increment();
+        }
+        return merged;
+    }
+
+    /**
+     * Re-indexes {@link SharedIndex#targetDir} from scratch with a {@link CorpusIngester} and
+     * publishes the result. The new index is built without holding up queries nor updates, queries
+     * keep using the previous index until the new one is published. Documents updated in the
+     * meantime are brought up to date right after, see {@link SharedIndex#refresh(File)}.
+     *
+     * @return the freshly published index
+     */
+    public ShardedIndex rebuild() {
+        synchronized (rebuildLock) {
+            File[] files = listDocuments();
+            if (files == null) {
+                Log.warn("You have provided an empty folder : %s", targetDir.getPath());
+                return current.get();
+            }
+
+            long start = System.nanoTime();
+            synchronized (this) {
+                changedDuringRebuild = new HashSet<>();
+            }
+            ConcurrentHashMap<String, FileFingerprint> newFingerprints = new ConcurrentHashMap<>();
+            ShardedIndex index;
+            try {
+                index = ingester.ingest(files, newFingerprints, numShards);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    changedDuringRebuild = null;
+                }
+                Thread.currentThread().interrupt();
+                return current.get();
+            }
+
+            HashSet<String> changed;
+            synchronized (this) {
+                current.set(index);
+                fingerprints = newFingerprints;
+                generation.incrementAndGet();
+                queryCache.clear();
+                changeLog.restart();
+                changed = changedDuringRebuild;
+                changedDuringRebuild = null;
+                lastRebuildMillis = (System.nanoTime() - start) / 1_000_000;
+                rebuilds++;
+            }
+
+            // Files changed during the ingestion may have been read before or after the change,
+            // their fingerprints tell
+            for (String docName : changed) {
+                refresh(new File(targetDir, docName));
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Replaces the index by the one persisted in the store. The caller should then {@link
+     * SharedIndex#refreshAll()} to catch up with changes made while the server was down.
+     *
+     * @param store to load from
+     * @return the freshly published index
+     * @throws IOException if the store holds no usable segment for {@link SharedIndex#targetDir}
+     *     and the analyzer of this index, or if its documents are split in another number of shards
+     */
+    public synchronized ShardedIndex load(IndexStore store) throws IOException {
+        ConcurrentHashMap<String, FileFingerprint> newFingerprints = new ConcurrentHashMap<>();
+        ShardedIndex index = store.load(targetDir, analyzer.getSpec(), newFingerprints);
+        if (index.getNumShards() != numShards) {
+            throw new IOException(
+                    "Segment has " + index.getNumShards() + " shards instead of " + numShards);
+        }
+
+        current.set(index);
+        fingerprints = newFingerprints;
+        generation.incrementAndGet();
+        queryCache.clear();
+        changeLog.restart();
+        return index;
+    }
+
+    /**
+     * Persists the current index with the fingerprints of its files. Updates wait for the save to
+     * finish, queries do not.
+     *
+     * @param store to save to
+     * @throws IOException if the segment cannot be written
+     */
+    public synchronized void save(IndexStore store) throws IOException {
+        store.save(current.get(), fingerprints, targetDir, analyzer.getSpec());
+    }
+
+    /**
+     * Adds or replaces a single document. Only the given file is streamed through the analyzer, the
+     * rest of the index is left untouched.
+     *
+     * @param file to index, its name is used as document name
+     * @throws IOException if the file cannot be read
+     */
+    public void indexFile(File file) throws IOException {
+        FileFingerprint fingerprint = FileFingerprint.of(file);
+        if (fingerprint == null) {
+            throw new IOException("Not a regular file : " + file.getPath());
+        }
+
+        // Read and tokenize before taking the lock, it is the expensive part
+        DocumentTerms terms = new DocumentTerms();
+        analyzer.tokenize(file, terms);
+
+        synchronized (this) {
+            current.get().addDocument(file.getName(), terms);
+            fingerprints.put(file.getName(), fingerprint);
+            changed(file.getName());
+        }
+        updatedDocuments.increment();
+    }
+
+    /**
+     * Starts receiving a document to store in {@link SharedIndex#targetDir} and to index
+     *
+     * @param docName name of the document, must pass {@link SharedIndex#isDocumentName(String)}
+     * @return session to write the content to
+     * @throws IOException if the temporary file cannot be created
+     */
+    public UploadSession beginUpload(String docName) throws IOException {
+        if (!isDocumentName(docName)) {
+            throw new IllegalArgumentException("Invalid document name : " + docName);
+        }
+
+        // Not createTempFile(), its restrictive permissions would be kept by the document
+        Path tmp =
+                Files.createFile(
+                        targetDir.toPath().resolve(".upload-" + UUID.randomUUID() + ".tmp"));
+        return new UploadSession(this, analyzer, docName, tmp);
+    }
+
+    /**
+     * Moves a fully received upload to its final name and indexes it
+     *
+     * @param docName name of the document
+     * @param tmp file holding the content
+     * @param terms bag of terms of the content
+     * @throws IOException if the file cannot be moved
+     */
+    void publishUpload(String docName, Path tmp, DocumentTerms terms) throws IOException {
+        // Renaming keeps modification time and size, so the watcher recognizes the file
+        FileFingerprint fingerprint = FileFingerprint.of(tmp.toFile());
+        synchronized (this) {
+            Files.move(
+                    tmp,
+                    new File(targetDir, docName).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            current.get().addDocument(docName, terms);
+            fingerprints.put(docName, fingerprint);
+            changed(docName);
+        }
+        updatedDocuments.increment();
+    }
+
+    /**
+     * Removes a single document from the index
+     *
+     * @param docName name of the document
+     * @return true if the document was indexed
+     */
+    public synchronized boolean removeFile(String docName) {
+        fingerprints.remove(docName);
+        boolean removed = current.get().removeDocument(docName);
+        if (removed) {
+            changed(docName);
+            updatedDocuments.increment();
+        } else if (changedDuringRebuild != null) {
+            // May be part of the index being rebuilt
+            changedDuringRebuild.add(docName);
+        }
+        return removed;
+    }
+
+    /**
+     * Records a change of a document, to be called with the lock of the instance held
+     *
+     * @param docName name of the document
+     */
+    private void changed(String docName) {
+        generation.incrementAndGet();
+        changeLog.append(docName);
+        if (changedDuringRebuild != null) {
+            changedDuringRebuild.add(docName);
+        }
+    }
+
+    /**
+     * Deletes a document from {@link SharedIndex#targetDir} and removes it from the index
+     *
+     * @param docName name of the document, must pass {@link SharedIndex#isDocumentName(String)}
+     * @return true if the document was indexed
+     * @throws IOException if the file cannot be deleted
+     */
+    public synchronized boolean deleteFile(String docName) throws IOException {
+        if (!isDocumentName(docName)) {
+            throw new IllegalArgumentException("Invalid document name : " + docName);
+        }
+        Files.deleteIfExists(new File(targetDir, docName).toPath());
+        return removeFile(docName);
+    }
+
+    /**
+     * Brings a single file of {@link SharedIndex#targetDir} up to date : indexes it if it is new or
+     * its fingerprint changed, removes it from the index if it disappeared
+     *
+     * @param file that may have changed
+     * @return true if the index has been changed
+     */
+    public boolean refresh(File file) {
+        if (!isDocumentName(file.getName())) {
+            return false;
+        }
+
+        // Compared under the lock, so that a file being uploaded is seen either before or after
+        // it has been registered, never in between
+        synchronized (this) {
+            FileFingerprint fingerprint = FileFingerprint.of(file);
+            if (fingerprint == null) {
+                return fingerprints.containsKey(file.getName()) && removeFile(file.getName());
+            }
+            if (fingerprint.equals(fingerprints.get(file.getName()))) {
+                return false;
+            }
+        }
+
+        try {
+            indexFile(file);
+            return true;
+        } catch (IOException e) {
+            Log.warn("Cannot read a file %s", file.getName());
+            return false;
+        }
+    }
+
+    /**
+     * Compares the whole {@link SharedIndex#targetDir} against the known fingerprints and applies
+     * the differences
+     *
+     * @return number of documents that have been changed
+     */
+    public int refreshAll() {
+        File[] files = listDocuments();
+        if (files == null) {
+            return 0;
+        }
+
+        int changed = 0;
+        HashSet<String> gone = new HashSet<>(fingerprints.keySet());
+        for (File file : files) {
+            gone.remove(file.getName());
+            if (refresh(file)) {
+                changed++;
+            }
+        }
+        for (String docName : gone) {
+            if (removeFile(docName)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,40 @@
+package ch.heigvd.dai.retrivium.index;
+
+import ch.heigvd.dai.retrivium.utils.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/** Splits text into index terms, implementations must be safe to call concurrently */
+@FunctionalInterface
+public interface Tokenizer {
+
+    /**
+     * @param text to tokenize
+     * @return terms of the text, in order
+     */
+    List<String> tokenize(String text);
+
+    /**
+     * Tokenizes a piece of a document into its bag of terms
+     *
+     * @param text to tokenize, only read during the call
+     * @param terms bag the terms of the text are added to
+     */
+    default void tokenize(CharSequence text, DocumentTerms terms) {
+        terms.addAll(tokenize(text.toString()));
+    }
+
+    /**
+     * Tokenizes a file chunk by chunk with {@link FileUtils#forEachChunk}, so that neither the
+     * whole content nor the whole list of tokens is ever held in memory. Chunks are cut on
+     * whitespace, which never splits a term as long as terms do not contain whitespace.
+     *
+     * @param file to tokenize
+     * @param terms bag the terms of the file are added to
+     * @throws IOException if the file cannot be read
+     */
+    default void tokenize(File file, DocumentTerms terms) throws IOException {
+        FileUtils.forEachChunk(file, FileUtils.DEFAULT_CHUNK_SIZE, chunk -> tokenize(chunk, terms));
+    }
+}
@@ -0,0 +1,106 @@
+package ch.heigvd.dai.retrivium.index;
+
+import ch.heigvd.dai.retrivium.utils.FileUtils;
+import ch.heigvd.dai.retrivium.utils.Log;
+import ch.heigvd.dai.retrivium.utils.TextChunker;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Document being uploaded to a {@link SharedIndex}. The bytes written to the session go to a hidden
+ * temporary file and are tokenized on the fly, so neither the content nor its tokens are ever held
+ * in memory at once. The document only becomes visible, both on disk and in the index, once the
+ * session is {@link UploadSession#commit() committed}.
+ *
+ * @see SharedIndex#beginUpload(String)
+ */
+public class UploadSession extends OutputStream {
+    private final SharedIndex index;
+    private final String docName;
+    private final Path tmp;
+    private final DocumentTerms terms;
+    private final OutputStream file;
+    private final TextChunker chunker;
+    private boolean done;
+
+    /**
+     * Constructs {@code UploadSession} and creates its temporary file
+     *
+     * @param index to add the document to
+     * @param tokenizer to tokenize the content with
+     * @param docName name of the document
+     * @param tmp temporary file, already created
+     * @throws IOException if the temporary file cannot be opened
+     */
+    UploadSession(SharedIndex index, Tokenizer tokenizer, String docName, Path tmp)
+            throws IOException {
+        this.index = index;
+        this.docName = docName;
+        this.tmp = tmp;
+        this.terms = new DocumentTerms();
+        this.file = new BufferedOutputStream(Files.newOutputStream(tmp));
+        this.chunker =
+                new TextChunker(
+                        FileUtils.DEFAULT_CHUNK_SIZE, chunk -> tokenizer.tokenize(chunk, terms));
+        this.done = false;
+    }
+
+    /**
+     * @return name of the document
+     */
+    public String getDocName() {
+        return docName;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        file.write(b);
+        chunker.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        file.write(b, off, len);
+        chunker.write(b, off, len);
+    }
+
+    /**
+     * Publishes the document : the temporary file is renamed to its final name and the document is
+     * added to the index, replacing any document with the same name
+     *
+     * @throws IOException if the document cannot be stored
+     */
+    public void commit() throws IOException {
+        try {
+            file.close();
+            chunker.close();
+            index.publishUpload(docName, tmp, terms);
+        } finally {
+            done = true;
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Drops the document, nothing is published */
+    public void abort() {
+        if (done) {
+            return;
+        }
+        done = true;
+        try {
+            file.close();
+            Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+            Log.warn("Cannot remove %s : %s", tmp, e.getMessage());
+        }
+    }
+
+    /** Same as {@link UploadSession#abort()}, a session that has not been committed is dropped */
+    @Override
+    public void close() {
+        abort();
+    }
+}
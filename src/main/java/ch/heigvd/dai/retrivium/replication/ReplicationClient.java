@@ -0,0 +1,247 @@
+package ch.heigvd.dai.retrivium.replication;
+
+import ch.heigvd.dai.retrivium.index.SharedIndex;
+import ch.heigvd.dai.retrivium.index.UploadSession;
+import ch.heigvd.dai.retrivium.utils.Log;
+import ch.heigvd.dai.retrivium.utils.ProtocolInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+
+/**
+ * Replica side of replication : follows the index of a primary through its {@link
+ * ReplicationServer} and applies every change to the local index, storing the documents in the
+ * local directory as uploads would.
+ *
+ * <p>The position reached in the log of the primary is kept in memory, so a lost connection resumes
+ * where it stopped. After a restart of either side, the replica starts again from a snapshot. Until
+ * the first snapshot has been applied, the replica serves whatever its directory held.
+ */
+public class ReplicationClient implements AutoCloseable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /** Delays between two attempts to reach the primary, doubled after each failure */
+    private static final long MIN_RETRY_MILLIS = 500;
+
+    private static final long MAX_RETRY_MILLIS = 30_000;
+
+    private final SharedIndex index;
+    private final InetSocketAddress primary;
+
+    /** Address of the primary, used in logs */
+    private final String primaryInfo;
+
+    private final Thread thread;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    /** Epoch of the log of the primary being followed, zero before the first snapshot */
+    private long epoch;
+
+    /** Sequence number of the last change applied */
+    private long seq;
+
+    /**
+     * Constructs {@code ReplicationClient}, the primary is only contacted once it is {@link
+     * ReplicationClient#start() started}
+     *
+     * @param index to apply the changes to
+     * @param primary address of the {@link ReplicationServer} of the primary
+     */
+    public ReplicationClient(SharedIndex index, InetSocketAddress primary) {
+        this.index = index;
+        this.primary = primary;
+        this.primaryInfo = primary.getHostString() + " : " + primary.getPort();
+        this.thread = new Thread(this::follow, "replication-client");
+        this.thread.setDaemon(true);
+    }
+
+    /** Starts following the primary in a background thread */
+    public void start() {
+        thread.start();
+    }
+
+    /** Body of the thread : follows the primary, reconnecting whenever the connection is lost */
+    private void follow() {
+        long retryMillis = MIN_RETRY_MILLIS;
+        while (!closed) {
+            // Resolved on every attempt, the primary may have moved
+            InetSocketAddress address =
+                    new InetSocketAddress(primary.getHostString(), primary.getPort());
+            try (Socket socket = new Socket()) {
+                this.socket = socket;
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                // A primary that stops sending heartbeats is considered lost
+                socket.setSoTimeout((int) (ReplicationServer.HEARTBEAT_MILLIS * 3));
+                Log.info("Following primary %s from change %d", primaryInfo, seq);
+                retryMillis = MIN_RETRY_MILLIS;
+                replicate(socket);
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                Log.warn("Lost primary %s : %s", primaryInfo, e.getMessage());
+            }
+
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Applies the changes sent by the primary until the connection is lost
+     *
+     * @param socket connected to the primary
+     * @throws IOException if the connection fails or the primary sends something unexpected
+     */
+    private void replicate(Socket socket) throws IOException {
+        ProtocolInputStream in = new ProtocolInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        String request = ReplicationMessage.FOLLOW.name() + " " + epoch + " " + seq + "\n";
+        out.write(request.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        // Documents received since the beginning of a snapshot, null outside of one
+        HashSet<String> snapshot = null;
+        long snapshotEpoch = 0;
+        long snapshotSeq = 0;
+
+        while (true) {
+            String line = in.readLine();
+            if (line == null) {
+                throw new EOFException("Primary closed the connection");
+            }
+
+            String[] parts = line.split(" ", 4);
+            switch (messageOf(parts[0])) {
+                case RESET -> {
+                    expectFields(line, parts, 3);
+                    snapshotEpoch = parseNumber(line, parts[1]);
+                    snapshotSeq = parseNumber(line, parts[2]);
+                    snapshot = new HashSet<>();
+                    Log.info("Receiving a snapshot of the index of primary %s", primaryInfo);
+                }
+                case PUT -> {
+                    expectFields(line, parts, 4);
+                    long changeSeq = parseNumber(line, parts[1]);
+                    store(in, parts[3], parseNumber(line, parts[2]));
+                    if (snapshot != null) {
+                        snapshot.add(parts[3]);
+                    } else {
+                        seq = changeSeq;
+                    }
+                }
+                case DELETE -> {
+                    parts = line.split(" ", 3);
+                    expectFields(line, parts, 3);
+                    long changeSeq = parseNumber(line, parts[1]);
+                    delete(parts[2]);
+                    if (snapshot == null) {
+                        seq = changeSeq;
+                    }
+                }
+                case SYNCED -> {
+                    if (snapshot == null) {
+                        throw new ProtocolException("Snapshot ended before it began");
+                    }
+                    int removed = 0;
+                    for (String docName : index.current().getDocumentNames()) {
+                        if (!snapshot.contains(docName)) {
+                            delete(docName);
+                            removed++;
+                        }
+                    }
+                    Log.info(
+                            "Replicated %d documents from primary %s, removed %d others",
+                            snapshot.size(), primaryInfo, removed);
+                    epoch = snapshotEpoch;
+                    seq = snapshotSeq;
+                    snapshot = null;
+                }
+                case PING -> {
+                    // Only keeps the connection alive
+                }
+                case FOLLOW -> throw new ProtocolException("Unexpected message : " + line);
+            }
+        }
+    }
+
+    /**
+     * Stores a document sent by the primary and indexes it, replacing any previous version
+     *
+     * @param in positioned on the content of the document
+     * @param docName name of the document
+     * @param length number of bytes of the content
+     * @throws IOException if the content cannot be received or stored
+     */
+    private void store(ProtocolInputStream in, String docName, long length) throws IOException {
+        if (!SharedIndex.isDocumentName(docName)) {
+            Log.warn("Ignoring document with invalid name from primary : %s", docName);
+            in.copyTo(length, OutputStream.nullOutputStream());
+            return;
+        }
+        try (UploadSession session = index.beginUpload(docName)) {
+            in.copyTo(length, session);
+            session.commit();
+        }
+        Log.debug("Replicated document %s", docName);
+    }
+
+    /**
+     * Deletes a document removed on the primary
+     *
+     * @param docName name of the document
+     * @throws IOException if the document cannot be deleted
+     */
+    private void delete(String docName) throws IOException {
+        if (!SharedIndex.isDocumentName(docName)) {
+            Log.warn("Ignoring document with invalid name from primary : %s", docName);
+            return;
+        }
+        index.deleteFile(docName);
+        Log.debug("Removed replicated document %s", docName);
+    }
+
+    private static ReplicationMessage messageOf(String name) throws ProtocolException {
+        try {
+            return ReplicationMessage.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException("Unknown message : " + name);
+        }
+    }
+
+    private static void expectFields(String line, String[] parts, int count)
+            throws ProtocolException {
+        if (parts.length != count) {
+            throw new ProtocolException("Malformed message : " + line);
+        }
+    }
+
+    private static long parseNumber(String line, String text) throws ProtocolException {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Malformed message : " + line);
+        }
+    }
+
+    /** Stops following the primary */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        thread.interrupt();
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+    }
+}
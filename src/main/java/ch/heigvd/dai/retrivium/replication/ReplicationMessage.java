@@ -0,0 +1,16 @@
+package ch.heigvd.dai.retrivium.replication;
+
+/**
+ * List of all the messages exchanged between a primary and its replicas
+ *
+ * @see ReplicationServer
+ * @see ReplicationClient
+ */
+public enum ReplicationMessage {
+    FOLLOW,
+    RESET,
+    PUT,
+    DELETE,
+    SYNCED,
+    PING
+}
@@ -0,0 +1,242 @@
+package ch.heigvd.dai.retrivium.replication;
+
+import ch.heigvd.dai.retrivium.index.ChangeLog;
+import ch.heigvd.dai.retrivium.index.SharedIndex;
+import ch.heigvd.dai.retrivium.utils.Log;
+import ch.heigvd.dai.retrivium.utils.ProtocolInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Primary side of replication : ships the {@link ChangeLog} of an index to the replicas that follow
+ * it, each one on its own thread and its own connection.
+ *
+ * <p>A replica asks to {@code FOLLOW <epoch> <seq>} from the last entry it applied. The primary
+ * then sends the changes that follow, as they happen :
+ *
+ * <pre>{@code
+ * PUT <seq> <length> <name>    followed by the <length> bytes of the document
+ * DELETE <seq> <name>
+ * PING                         nothing changed for a while
+ * }</pre>
+ *
+ * A replica that cannot resume from its position receives a snapshot instead : {@code RESET <epoch>
+ * <seq>}, a {@code PUT} for every document indexed, then {@code SYNCED}, after which the replica
+ * removes the documents the snapshot did not contain. Every line ends with {@code \n}.
+ *
+ * <p>Documents are read from the indexed directory when they are shipped, so a document changed
+ * several times is only sent once with its latest content.
+ */
+public class ReplicationServer implements AutoCloseable {
+    /** Entries of the log shipped at once, the connection is flushed after each batch */
+    private static final int BATCH_ENTRIES = 256;
+
+    /** Time without any change after which a {@link ReplicationMessage#PING} is sent */
+    static final long HEARTBEAT_MILLIS = 5000;
+
+    /** Length of the request of a replica */
+    private static final int MAX_REQUEST_LENGTH = 256;
+
+    private final SharedIndex index;
+    private final ServerSocket serverSocket;
+    private final Thread thread;
+
+    /**
+     * Constructs {@code ReplicationServer} and binds its port, replicas are only served once it is
+     * {@link ReplicationServer#start() started}
+     *
+     * @param index whose changes are shipped
+     * @param port replicas connect to
+     * @throws IOException if the port cannot be bound
+     */
+    public ReplicationServer(SharedIndex index, int port) throws IOException {
+        this.index = index;
+        this.serverSocket = new ServerSocket(port);
+        this.thread = new Thread(this::accept, "replication-server");
+        this.thread.setDaemon(true);
+    }
+
+    /** Starts accepting replicas in a background thread */
+    public void start() {
+        thread.start();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                String replicaInfo =
+                        socket.getInetAddress().getHostAddress() + " : " + socket.getPort();
+                // Replicas are few and wait on the log, a platform thread each is fine
+                Thread.ofPlatform()
+                        .daemon()
+                        .name("replica-" + replicaInfo)
+                        .start(() -> serve(socket, replicaInfo));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    Log.warn("Cannot accept replica : %s", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Ships the log to one replica until it disconnects
+     *
+     * @param socket of the replica
+     * @param replicaInfo address of the replica, used in logs
+     */
+    private void serve(Socket socket, String replicaInfo) {
+        try (socket;
+                ProtocolInputStream in =
+                        new ProtocolInputStream(socket.getInputStream(), MAX_REQUEST_LENGTH);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16)) {
+
+            String request = in.readLine();
+            if (request == null) {
+                throw new EOFException("Replica closed the connection");
+            }
+            String[] parts = request.split(" ");
+            boolean follow = parts.length == 3 && parts[0].equals(ReplicationMessage.FOLLOW.name());
+            long epoch = follow ? parsePosition(parts[1]) : -1;
+            long seq = follow ? parsePosition(parts[2]) : -1;
+            if (epoch < 0 || seq < 0) {
+                Log.warn("Invalid replication request from %s : %s", replicaInfo, request);
+                return;
+            }
+            Log.info("Replica %s follows the index from change %d", replicaInfo, seq);
+
+            ChangeLog log = index.getChangeLog();
+            while (true) {
+                ChangeLog.Entries entries = log.read(epoch, seq, BATCH_ENTRIES, HEARTBEAT_MILLIS);
+                if (entries == null) {
+                    ChangeLog.Position position = log.position();
+                    Log.info("Sending a snapshot of the index to replica %s", replicaInfo);
+                    sendSnapshot(out, position);
+                    epoch = position.epoch();
+                    seq = position.seq();
+                } else if (entries.docNames().isEmpty()) {
+                    writeLine(out, ReplicationMessage.PING.name());
+                } else {
+                    sendEntries(out, entries);
+                    seq = entries.lastSeq();
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            Log.info("Replica %s disconnected : %s", replicaInfo, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param text epoch or sequence number sent by a replica
+     * @return the number, -1 if it is not a non-negative number
+     */
+    private static long parsePosition(String text) {
+        try {
+            return Math.max(-1, Long.parseLong(text));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends every indexed document. The position is read before the documents, so a change made in
+     * the meantime is in the snapshot, in the log after the position, or both.
+     *
+     * @param out to the replica
+     * @param position of the log the snapshot starts from
+     * @throws IOException if sending fails
+     */
+    private void sendSnapshot(OutputStream out, ChangeLog.Position position) throws IOException {
+        writeLine(
+                out,
+                ReplicationMessage.RESET.name() + " " + position.epoch() + " " + position.seq());
+        for (String docName : index.current().getDocumentNames()) {
+            sendDocument(out, position.seq(), docName);
+        }
+        writeLine(out, ReplicationMessage.SYNCED.name());
+    }
+
+    /**
+     * Sends a batch of changes, skipping the documents changed again later in the batch
+     *
+     * @param out to the replica
+     * @param entries of the log
+     * @throws IOException if sending fails
+     */
+    private void sendEntries(OutputStream out, ChangeLog.Entries entries) throws IOException {
+        List<String> docNames = entries.docNames();
+        HashMap<String, Integer> lastChange = new HashMap<>();
+        for (int i = 0; i < docNames.size(); i++) {
+            lastChange.put(docNames.get(i), i);
+        }
+        for (int i = 0; i < docNames.size(); i++) {
+            if (lastChange.get(docNames.get(i)) == i) {
+                sendDocument(out, entries.firstSeq() + i, docNames.get(i));
+            }
+        }
+    }
+
+    /**
+     * Sends the current state of a document : its content if it is indexed, its removal otherwise
+     *
+     * @param out to the replica
+     * @param seq sequence number of the change
+     * @param docName name of the document
+     * @throws IOException if sending fails or the file shrank while being sent
+     */
+    private void sendDocument(OutputStream out, long seq, String docName) throws IOException {
+        if (index.current().contains(docName)) {
+            Path path = index.getTargetDir().toPath().resolve(docName);
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = file.size();
+                writeLine(
+                        out,
+                        ReplicationMessage.PUT.name() + " " + seq + " " + size + " " + docName);
+                copy(Channels.newInputStream(file), size, out);
+                return;
+            } catch (NoSuchFileException e) {
+                // Deleted since, its removal follows in the log
+            }
+        }
+        writeLine(out, ReplicationMessage.DELETE.name() + " " + seq + " " + docName);
+    }
+
+    private static void copy(InputStream in, long size, OutputStream out) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        long remaining = size;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new IOException("File has been truncated while being sent");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + '\n').getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,205 @@
+package ch.heigvd.dai.retrivium.router;
+
+import ch.heigvd.dai.retrivium.utils.ProtocolInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One server of a partitioned corpus, as seen by a {@link Router}. Requests are sent over
+ * persistent connections kept in a pool, so that a query does not pay for a TCP handshake to every
+ * server. Every connection and every read is bounded by the timeout of the server.
+ *
+ * <p>Instances are thread-safe, each request borrowing a connection of its own.
+ */
+class Backend implements AutoCloseable {
+    private final InetSocketAddress address;
+    private final String info;
+    private final int timeoutMillis;
+    private final int maxIdleConnections;
+
+    /** Connections waiting for a request, the most recently used first */
+    private final ConcurrentLinkedDeque<Connection> idle;
+
+    private final AtomicInteger idleCount;
+    private volatile boolean closed;
+
+    /**
+     * Reads the response to a request
+     *
+     * @param <T> outcome of the request
+     */
+    @FunctionalInterface
+    interface Exchange<T> {
+        /**
+         * @param connection the request has just been sent over
+         * @return outcome of the request, once its whole response has been read
+         * @throws IOException if the response cannot be read or is not the expected one
+         */
+        T read(Connection connection) throws IOException;
+    }
+
+    /** Persistent connection to the server */
+    static class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final ProtocolInputStream in;
+        private final OutputStream out;
+
+        /** Whether a line of the response to the current request has been received */
+        private boolean responded;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new ProtocolInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        private void send(String request) throws IOException {
+            responded = false;
+            out.write((request + '\n').getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        /**
+         * @return next line of the response, without line feed
+         * @throws IOException if reading fails, {@link EOFException} if the server closed the
+         *     connection
+         */
+        String readLine() throws IOException {
+            String line = in.readLine();
+            if (line == null) {
+                throw new EOFException("Server closed the connection");
+            }
+            responded = true;
+            return line;
+        }
+
+        /**
+         * Copies raw content of the response
+         *
+         * @param length number of bytes to copy
+         * @param target to copy them to
+         * @throws IOException if reading or writing fails
+         */
+        void copyTo(long length, OutputStream target) throws IOException {
+            in.copyTo(length, target);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Constructs {@code Backend}, connections are only opened once requests are sent
+     *
+     * @param address of the server
+     * @param timeoutMillis time to connect and to wait for every read of a response
+     * @param maxIdleConnections connections kept open between requests
+     */
+    Backend(InetSocketAddress address, int timeoutMillis, int maxIdleConnections) {
+        this.address = address;
+        this.info = address.getHostString() + " : " + address.getPort();
+        this.timeoutMillis = timeoutMillis;
+        this.maxIdleConnections = maxIdleConnections;
+        this.idle = new ConcurrentLinkedDeque<>();
+        this.idleCount = new AtomicInteger();
+    }
+
+    /**
+     * @return address of the server, used in logs
+     */
+    String getInfo() {
+        return info;
+    }
+
+    /**
+     * Sends a request and reads its response. A pooled connection that turns out to have been
+     * closed by the server in the meantime is replaced once, all the requests of a router being
+     * safe to send again.
+     *
+     * @param request line to send, without line feed
+     * @param exchange reading the response
+     * @param <T> outcome of the request
+     * @return outcome of the request
+     * @throws IOException if the server cannot be reached, is too slow or answers unexpectedly
+     */
+    <T> T call(String request, Exchange<T> exchange) throws IOException {
+        Connection connection = idle.pollFirst();
+        if (connection != null) {
+            idleCount.decrementAndGet();
+            try {
+                return call(connection, request, exchange);
+            } catch (IOException e) {
+                if (connection.responded
+                        || e instanceof SocketTimeoutException
+                        || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+            }
+        }
+        return call(open(), request, exchange);
+    }
+
+    private <T> T call(Connection connection, String request, Exchange<T> exchange)
+            throws IOException {
+        boolean reusable = false;
+        try {
+            connection.send(request);
+            T result = exchange.read(connection);
+            reusable = true;
+            return result;
+        } finally {
+            if (reusable) {
+                release(connection);
+            } else {
+                // What is left of the response cannot be told apart from the next one
+                connection.close();
+            }
+        }
+    }
+
+    private Connection open() throws IOException {
+        // Resolved on every connection, the server may have moved
+        InetSocketAddress resolved =
+                new InetSocketAddress(address.getHostString(), address.getPort());
+        Socket socket = new Socket();
+        try {
+            socket.connect(resolved, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            return new Connection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void release(Connection connection) throws IOException {
+        if (closed || idleCount.incrementAndGet() > maxIdleConnections) {
+            idleCount.decrementAndGet();
+            connection.close();
+            return;
+        }
+        idle.offerFirst(connection);
+    }
+
+    /** Closes the idle connections, those in use are closed once their request is done */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            connection.close();
+        }
+    }
+}
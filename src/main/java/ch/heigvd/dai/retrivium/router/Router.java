@@ -0,0 +1,592 @@
+package ch.heigvd.dai.retrivium.router;
+
+import ch.heigvd.dai.retrivium.client.ClientMessage;
+import ch.heigvd.dai.retrivium.index.CorpusStats;
+import ch.heigvd.dai.retrivium.index.InvertedIndex;
+import ch.heigvd.dai.retrivium.index.ScoredDocument;
+import ch.heigvd.dai.retrivium.server.ServerLimits;
+import ch.heigvd.dai.retrivium.server.ServerMessage;
+import ch.heigvd.dai.retrivium.utils.Log;
+import ch.heigvd.dai.retrivium.utils.ProtocolInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Front of a corpus partitioned over several servers, each one indexing its own documents. Clients
+ * send it {@code LIST}, {@code QUERY} and {@code SHOW} as they would to a single server.
+ *
+ * <p>A {@code QUERY} is answered in two rounds, both sent to every node at once. {@code TERMS}
+ * first collects the number of documents, their total length and the document frequency of every
+ * query term from each node. Their sums are then sent along with {@code SCORED}, so that every node
+ * ranks its documents with the IDF of the whole corpus, and the per-node top {@code k} are merged
+ * by score. Rankings are therefore the ones a single server holding every document would give.
+ *
+ * <p>A node that fails or does not answer within its timeout is left out of the response, which is
+ * then built from the other nodes. {@link ServerMessage#BUSY} is only answered when no node could
+ * be reached.
+ */
+public class Router {
+    private final int port;
+    private final List<Backend> backends;
+    private final long nodeTimeoutNanos;
+    private final ServerLimits limits;
+
+    /** Permits of the queries executed at once, shared by every connection */
+    private final Semaphore searches;
+
+    /** Runs the requests sent to the nodes in parallel */
+    private final ExecutorService calls;
+
+    /**
+     * Constructs {@code Router}
+     *
+     * @param port clients connect to
+     * @param nodes addresses of the servers holding the partitions
+     * @param nodeTimeout time a node has to answer each round of a request
+     * @param poolSize connections kept open to each node between requests
+     * @param limits on connections, queries, request lines and silences of clients
+     */
+    public Router(
+            int port,
+            List<InetSocketAddress> nodes,
+            Duration nodeTimeout,
+            int poolSize,
+            ServerLimits limits) {
+        this.port = port;
+        this.nodeTimeoutNanos = nodeTimeout.toNanos();
+        this.backends = new ArrayList<>(nodes.size());
+        for (InetSocketAddress node : nodes) {
+            backends.add(new Backend(node, toMillis(nodeTimeout), poolSize));
+        }
+        this.limits = limits;
+        this.searches = new Semaphore(limits.maxInFlightQueries());
+        this.calls = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    private static int toMillis(Duration timeout) {
+        return (int) Math.min(Integer.MAX_VALUE, timeout.toMillis());
+    }
+
+    /**
+     * Starts the router and serves every client on its own virtual thread, up to {@link
+     * ServerLimits#maxConnections()} at once
+     */
+    public void launch() {
+        Semaphore connections = new Semaphore(limits.maxConnections());
+        try (ServerSocket serverSocket = new ServerSocket(port);
+                ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Log.info("Routing port %d to %d nodes", port, backends.size());
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                if (!connections.tryAcquire()) {
+                    reject(socket);
+                    continue;
+                }
+                socket.setTcpNoDelay(true);
+                executor.submit(
+                        () -> {
+                            try {
+                                serve(socket);
+                            } finally {
+                                connections.release();
+                            }
+                        });
+            }
+        } catch (IOException e) {
+            Log.error("error : %s", e.getMessage());
+        } finally {
+            calls.close();
+            for (Backend backend : backends) {
+                try {
+                    backend.close();
+                } catch (IOException ignored) {
+                    // Nothing more to send to the node anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers {@link ServerMessage#BUSY} to a connection above the limit, then closes it
+     *
+     * @param socket of the client
+     */
+    private void reject(Socket socket) {
+        Log.info(
+                "Too many connections, rejecting %s : %d",
+                socket.getInetAddress().getHostAddress(), socket.getPort());
+        try (socket) {
+            writeLine(socket.getOutputStream(), ServerMessage.BUSY.name());
+        } catch (IOException ignored) {
+            // The client is turned away anyway
+        }
+    }
+
+    /**
+     * Answers the requests of one client until it disconnects
+     *
+     * @param socket of the client
+     */
+    private void serve(Socket socket) {
+        String clientInfo = socket.getInetAddress().getHostAddress() + " : " + socket.getPort();
+        int idleTimeout = toMillis(limits.idleTimeout());
+        int readTimeout = toMillis(limits.readTimeout());
+
+        try (socket;
+                ProtocolInputStream in =
+                        new ProtocolInputStream(socket.getInputStream(), limits.maxLineLength());
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16)) {
+
+            Log.info("Client connected from %s", clientInfo);
+            while (true) {
+                // Between two requests the client may stay silent longer than within one
+                socket.setSoTimeout(idleTimeout);
+                if (!in.await()) {
+                    Log.info("Client %s disconnected", clientInfo);
+                    return;
+                }
+                socket.setSoTimeout(readTimeout);
+
+                String line;
+                try {
+                    line = in.readLine();
+                } catch (ProtocolException e) {
+                    Log.info("%s from %s, closing connection", e.getMessage(), clientInfo);
+                    writeLine(out, ServerMessage.INVALID.name());
+                    out.flush();
+                    return;
+                }
+                if (line == null) {
+                    Log.info("Client %s disconnected", clientInfo);
+                    return;
+                }
+
+                boolean keepOpen = handle(line, out, clientInfo);
+                // Pipelined requests already received are answered before flushing
+                if (!keepOpen || in.available() == 0) {
+                    out.flush();
+                }
+                if (!keepOpen) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            Log.info("Client %s timed out, closing connection", clientInfo);
+        } catch (IOException e) {
+            Log.warn("IO exception: %s, terminating connection", e.getMessage());
+        }
+    }
+
+    /**
+     * Executes a single request
+     *
+     * @param line request sent by the client, without line feed
+     * @param out to write the response to
+     * @param clientInfo address of the client, used in logs
+     * @return false if the connection has to be closed
+     * @throws IOException if writing the response fails
+     */
+    private boolean handle(String line, OutputStream out, String clientInfo) throws IOException {
+        Log.debug("received command %s from client : %s", line, clientInfo);
+        String[] parts = line.split(" ", 2);
+        String payload = parts.length == 2 ? parts[1] : "";
+
+        switch (verbOf(parts[0])) {
+            case LIST -> writeLine(out, list());
+            case QUERY -> writeLine(out, query(payload));
+            case SHOW -> show(payload, out);
+            case QUIT -> {
+                Log.debug("Client %s requests disconnect", clientInfo);
+                return false;
+            }
+            case PAGE -> writeLine(out, ServerMessage.INVALID + " Not supported by the router.");
+            case MQUERY, UPLOAD -> {
+                // The lines or content that follow would be taken for requests, give up on them
+                writeLine(out, ServerMessage.INVALID + " Not supported by the router.");
+                return false;
+            }
+            case null, default ->
+                    writeLine(out, ServerMessage.INVALID + " Unknown command. Please try again.");
+        }
+        return true;
+    }
+
+    private static ClientMessage verbOf(String name) {
+        try {
+            return ClientMessage.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return names of the documents of every node, in the order of the nodes
+     */
+    private String list() {
+        List<String> parts = fanOut(backends, ClientMessage.LIST.name(), Router::readList);
+
+        StringBuilder files = new StringBuilder(ServerMessage.FILES.name());
+        boolean answered = false;
+        for (String part : parts) {
+            if (part != null) {
+                answered = true;
+                if (!part.isEmpty()) {
+                    files.append(' ').append(part);
+                }
+            }
+        }
+        if (!answered) {
+            return ServerMessage.BUSY.name();
+        }
+        return files.length() == ServerMessage.FILES.name().length()
+                ? ServerMessage.NOTHING_INDEXED.name()
+                : files.toString();
+    }
+
+    /** Answers {@code QUERY <k> <query>} like a single server holding every document would */
+    private String query(String payload) {
+        int separator = payload.indexOf(' ');
+        int k;
+        try {
+            k = separator < 0 ? -1 : Integer.parseInt(payload.substring(0, separator));
+        } catch (NumberFormatException e) {
+            k = -1;
+        }
+        String query = separator < 0 ? "" : payload.substring(separator + 1);
+        // Checked before fanning out, the nodes would all refuse it
+        if (k <= 0 || k > ServerLimits.MAX_K || query.isEmpty()) {
+            return ServerMessage.INVALID.name();
+        }
+
+        if (!searches.tryAcquire()) {
+            Log.debug("Too many queries in flight, rejecting one");
+            return ServerMessage.BUSY.name();
+        }
+        try {
+            return federatedQuery(k, query);
+        } finally {
+            searches.release();
+        }
+    }
+
+    private String federatedQuery(int k, String query) {
+        // First round : statistics of the whole corpus
+        List<CorpusStats> parts =
+                fanOut(backends, ClientMessage.TERMS + " " + query, Router::readTerms);
+        CorpusStats stats = null;
+        List<Backend> holders = new ArrayList<>(backends.size());
+        for (int i = 0; i < parts.size(); i++) {
+            CorpusStats part = parts.get(i);
+            if (part == null) {
+                continue;
+            }
+            if (stats == null) {
+                stats = new CorpusStats(part.getTerms());
+            } else if (!stats.getTerms().equals(part.getTerms())) {
+                Log.warn(
+                        "Node %s tokenizes queries differently, left out",
+                        backends.get(i).getInfo());
+                continue;
+            }
+
+            stats.addDocuments(part.getNumOfDocs(), part.getTotalLength());
+            boolean holdsTerms = false;
+            for (int t = 0; t < part.getTerms().size(); t++) {
+                stats.addDocFreq(t, part.getDocFreq(t));
+                holdsTerms |= part.getDocFreq(t) > 0;
+            }
+            // A node without any document containing a term has nothing to rank
+            if (holdsTerms) {
+                holders.add(backends.get(i));
+            }
+        }
+
+        if (stats == null) {
+            return ServerMessage.BUSY.name();
+        }
+        if (stats.getNumOfDocs() == 0) {
+            return ServerMessage.NOTHING_INDEXED.name();
+        }
+        if (holders.isEmpty()) {
+            return ServerMessage.NOTHING_RELEVANT.name();
+        }
+
+        // Second round : every node ranks its documents with these statistics
+        StringBuilder request = new StringBuilder(ClientMessage.SCORED.name());
+        request.append(' ').append(k);
+        request.append(' ').append(stats.getNumOfDocs());
+        request.append(' ').append(stats.getTotalLength());
+        for (int t = 0; t < stats.getTerms().size(); t++) {
+            request.append(' ').append(stats.getTerms().get(t));
+            request.append(' ').append(stats.getDocFreq(t));
+        }
+        List<List<ScoredDocument>> rankings =
+                fanOut(holders, request.toString(), Router::readScored);
+
+        PriorityQueue<ScoredDocument> heap = new PriorityQueue<>(InvertedIndex.WORST_FIRST);
+        boolean answered = false;
+        for (int i = 0; i < rankings.size(); i++) {
+            if (rankings.get(i) != null) {
+                answered = true;
+                gather(heap, k, i, rankings.size(), rankings.get(i));
+            }
+        }
+        if (!answered) {
+            return ServerMessage.BUSY.name();
+        }
+        if (heap.isEmpty()) {
+            return ServerMessage.NOTHING_RELEVANT.name();
+        }
+
+        List<ScoredDocument> results = new ArrayList<>(heap);
+        results.sort(InvertedIndex.WORST_FIRST.reversed());
+        StringBuilder relevant = new StringBuilder(ServerMessage.RELEVANT.name());
+        for (ScoredDocument result : results) {
+            relevant.append(' ').append(result.getDocName());
+        }
+        return relevant.toString();
+    }
+
+    /**
+     * Adds the ranking of a node to the {@code k} best documents found so far. Ranks are made
+     * unique over the nodes, rank first, so that ties keep a stable order.
+     *
+     * @param heap best documents so far, worst first
+     * @param k maximal number of documents to keep
+     * @param node index of the node
+     * @param nodes number of nodes ranked
+     * @param ranking documents of the node, from the most to the least relevant
+     */
+    private static void gather(
+            PriorityQueue<ScoredDocument> heap,
+            int k,
+            int node,
+            int nodes,
+            List<ScoredDocument> ranking) {
+        for (ScoredDocument doc : ranking) {
+            ScoredDocument global =
+                    new ScoredDocument(
+                            doc.getDocIndex() * nodes + node, doc.getDocName(), doc.getScore());
+            if (heap.size() == k && InvertedIndex.WORST_FIRST.compare(global, heap.peek()) <= 0) {
+                // The rest of the ranking is even worse
+                return;
+            }
+            heap.add(global);
+            if (heap.size() > k) {
+                heap.poll();
+            }
+        }
+    }
+
+    /**
+     * Asks the nodes for the document one after the other, and relays the content of the first one
+     * holding it
+     *
+     * @param docName name of the document
+     * @param out to write the response to
+     * @throws IOException if writing fails, or the content fails once it is being relayed
+     */
+    private void show(String docName, OutputStream out) throws IOException {
+        String request = ClientMessage.SHOW + " " + docName;
+        boolean failed = false;
+        for (Backend backend : backends) {
+            boolean[] relaying = new boolean[1];
+            try {
+                boolean found =
+                        backend.call(
+                                request,
+                                connection -> {
+                                    String header = connection.readLine();
+                                    if (header.equals(ServerMessage.FILE_DOESNT_EXIST.name())) {
+                                        return false;
+                                    }
+                                    long size = parseContentSize(header);
+                                    relaying[0] = true;
+                                    writeLine(out, header);
+                                    connection.copyTo(size, out);
+                                    return true;
+                                });
+                if (found) {
+                    return;
+                }
+            } catch (IOException e) {
+                if (relaying[0]) {
+                    // Part of the content has been sent, the client cannot be answered anymore
+                    throw e;
+                }
+                Log.warn("Node %s failed, left out : %s", backend.getInfo(), e.getMessage());
+                failed = true;
+            }
+        }
+        // The document may be on a node that could not be reached
+        writeLine(out, failed ? ServerMessage.BUSY.name() : ServerMessage.FILE_DOESNT_EXIST.name());
+    }
+
+    /**
+     * Sends the same request to several nodes at once and waits for their responses, for at most
+     * the timeout of a node
+     *
+     * @param targets nodes to send the request to
+     * @param request line to send, without line feed
+     * @param exchange reading the response of a node
+     * @param <T> outcome of the request
+     * @return outcome of the request on each node, in the order of {@code targets}, null for the
+     *     nodes that failed or were too slow
+     */
+    private <T> List<T> fanOut(
+            List<Backend> targets, String request, Backend.Exchange<T> exchange) {
+        List<Future<T>> futures = new ArrayList<>(targets.size());
+        for (Backend backend : targets) {
+            futures.add(calls.submit(() -> backend.call(request, exchange)));
+        }
+
+        long deadline = System.nanoTime() + nodeTimeoutNanos;
+        List<T> results = new ArrayList<>(targets.size());
+        for (int i = 0; i < targets.size(); i++) {
+            Future<T> future = futures.get(i);
+            T result = null;
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                result = future.get(remaining, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                // Interrupting the call closes its connection
+                future.cancel(true);
+                Log.warn("Node %s did not answer in time, left out", targets.get(i).getInfo());
+            } catch (ExecutionException e) {
+                Log.warn(
+                        "Node %s failed, left out : %s",
+                        targets.get(i).getInfo(), e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Reads the response to {@code LIST}
+     *
+     * @return names of the documents of the node, separated by spaces, empty if there is none
+     */
+    private static String readList(Backend.Connection connection) throws IOException {
+        String line = connection.readLine();
+        if (line.equals(ServerMessage.NOTHING_INDEXED.name())) {
+            return "";
+        }
+        if (!line.startsWith(ServerMessage.FILES + " ")) {
+            throw new ProtocolException("Unexpected response : " + line);
+        }
+        return line.substring(ServerMessage.FILES.name().length() + 1);
+    }
+
+    /**
+     * Reads the response to {@code TERMS}
+     *
+     * @return statistics of the node for the terms of the query
+     */
+    private static CorpusStats readTerms(Backend.Connection connection) throws IOException {
+        String line = connection.readLine();
+        String[] parts = line.split(" ");
+        if (!parts[0].equals(ServerMessage.TERMS.name())
+                || parts.length < 3
+                || parts.length % 2 == 0) {
+            throw new ProtocolException("Unexpected response : " + line);
+        }
+
+        List<String> terms = new ArrayList<>(parts.length / 2 - 1);
+        for (int i = 3; i < parts.length; i += 2) {
+            terms.add(parts[i]);
+        }
+        CorpusStats stats = new CorpusStats(terms);
+        try {
+            stats.addDocuments(Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+            for (int t = 0; t < terms.size(); t++) {
+                stats.addDocFreq(t, Integer.parseInt(parts[4 + 2 * t]));
+            }
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Unexpected response : " + line);
+        }
+        return stats;
+    }
+
+    /**
+     * Reads the response to {@code SCORED}
+     *
+     * @return documents of the node, from the most to the least relevant, their index being their
+     *     rank
+     */
+    private static List<ScoredDocument> readScored(Backend.Connection connection)
+            throws IOException {
+        String header = connection.readLine();
+        String[] parts = header.split(" ");
+        int count;
+        try {
+            count =
+                    parts.length == 2 && parts[0].equals(ServerMessage.SCORED.name())
+                            ? Integer.parseInt(parts[1])
+                            : -1;
+        } catch (NumberFormatException e) {
+            count = -1;
+        }
+        if (count < 0 || count > ServerLimits.MAX_K) {
+            throw new ProtocolException("Unexpected response : " + header);
+        }
+
+        List<ScoredDocument> ranking = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String line = connection.readLine();
+            int separator = line.indexOf(' ');
+            try {
+                double score = Double.parseDouble(line.substring(0, Math.max(0, separator)));
+                ranking.add(new ScoredDocument(i, line.substring(separator + 1), score));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Unexpected response : " + line);
+            }
+        }
+        return ranking;
+    }
+
+    /**
+     * @param header response to {@code SHOW}
+     * @return number of bytes of content announced by {@code CONTENT <size>}
+     * @throws ProtocolException if the header is not a {@code CONTENT} one
+     */
+    private static long parseContentSize(String header) throws ProtocolException {
+        String[] parts = header.split(" ");
+        try {
+            if (parts.length == 2 && parts[0].equals(ServerMessage.CONTENT.name())) {
+                long size = Long.parseLong(parts[1]);
+                if (size >= 0) {
+                    return size;
+                }
+            }
+        } catch (NumberFormatException ignored) {
+            // Reported below
+        }
+        throw new ProtocolException("Unexpected response : " + header);
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + '\n').getBytes(StandardCharsets.UTF_8));
+    }
+}
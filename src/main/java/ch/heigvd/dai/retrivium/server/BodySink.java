@@ -0,0 +1,51 @@
+package ch.heigvd.dai.retrivium.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Receives the raw content that follows a request, such as the document of an {@code UPLOAD}.
+ * Exactly the announced number of bytes is written to the sink, then either {@link
+ * BodySink#finish()} or, if the content could not be received, {@link BodySink#abort()} is called.
+ *
+ * @see Response#expectBody(long, BodySink)
+ */
+public abstract class BodySink extends OutputStream {
+
+    /**
+     * Called once the whole content has been written
+     *
+     * @return response to send to the client
+     * @throws IOException if the content cannot be processed
+     */
+    public abstract Response finish() throws IOException;
+
+    /** Called instead of {@link BodySink#finish()} when the content is incomplete */
+    public abstract void abort();
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    /**
+     * Creates a sink that throws the content away
+     *
+     * @param response to send once the content has been skipped
+     * @return the sink
+     */
+    public static BodySink discard(Response response) {
+        return new BodySink() {
+            @Override
+            public void write(byte[] b, int off, int len) {}
+
+            @Override
+            public Response finish() {
+                return response;
+            }
+
+            @Override
+            public void abort() {}
+        };
+    }
+}
@@ -0,0 +1,16 @@
+package ch.heigvd.dai.retrivium.server;
+
+/**
+ * Ways {@link TcpServer} can serve its connections. Both engines speak the same protocol through a
+ * {@link RequestProcessor}, they only differ in how connections are mapped to threads.
+ */
+public enum Engine {
+    /** One virtual thread per connection, blocked on the socket while it waits for a request */
+    BLOCKING,
+
+    /**
+     * A single selector thread reads and writes every connection without blocking, requests are
+     * executed by a small pool of workers
+     */
+    NIO
+}
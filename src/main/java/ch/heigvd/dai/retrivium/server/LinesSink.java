@@ -0,0 +1,44 @@
+package ch.heigvd.dai.retrivium.server;
+
+/**
+ * Receives the lines that follow a request, such as the queries of an {@code MQUERY}. Each line is
+ * handed over as soon as it has been received, so that the lines are never held all at once, then
+ * {@link LinesSink#finish()} is called once the announced number of lines has been received.
+ *
+ * @see Response#expectLines(int, LinesSink)
+ */
+public interface LinesSink {
+
+    /**
+     * Called for every line, in order
+     *
+     * @param line holding the line, without line feed, only read during the call
+     * @param length number of bytes of the line
+     */
+    void line(byte[] line, int length);
+
+    /**
+     * Called once every line has been received
+     *
+     * @return response to send to the client
+     */
+    Response finish();
+
+    /**
+     * Creates a sink that throws the lines away
+     *
+     * @param response to send once the lines have been skipped
+     * @return the sink
+     */
+    static LinesSink discard(Response response) {
+        return new LinesSink() {
+            @Override
+            public void line(byte[] line, int length) {}
+
+            @Override
+            public Response finish() {
+                return response;
+            }
+        };
+    }
+}
@@ -0,0 +1,680 @@
+package ch.heigvd.dai.retrivium.server;
+
+import ch.heigvd.dai.retrivium.index.SharedIndex;
+import ch.heigvd.dai.retrivium.utils.Log;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking server engine, selected with {@link Engine#NIO}.
+ *
+ * <p>A single thread waits on a {@link Selector} for every connection. Request lines are parsed
+ * incrementally as bytes arrive, so a line split over several packets is simply completed by the
+ * next read. Once a line is complete, the request is executed by a fixed pool of workers and the
+ * response is written back by the selector thread, files being sent with {@link
+ * FileChannel#transferTo}.
+ *
+ * <p>A connection executes its requests one at a time, which keeps responses in order. Responses to
+ * pipelined requests are held while the next request already received is executed, then sent
+ * together. Once too much output is pending, the connection stops reading until the client reads
+ * its responses. Idle connections hold no input buffer : direct buffers are borrowed from a pool
+ * only while a connection has unparsed input. Responses are written into a {@link ResponseBuffer}
+ * that every connection keeps and reuses.
+ *
+ * <p>The selector thread enforces the {@link ServerLimits} : connections above the limit are
+ * answered {@link ServerMessage#BUSY} and closed right away, and every second connections that have
+ * been silent for too long, in the middle of a request or between two requests, are closed.
+ */
+class NioEngine {
+    /** Size of the direct buffers connections read into */
+    private static final int BUFFER_SIZE = 1 << 14;
+
+    /** Buffers kept in the pool once released, the others are left to the garbage collector */
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    /** Output above which a connection stops executing requests until the client reads it */
+    private static final int MAX_PENDING_OUTPUT = 1 << 16;
+
+    /** Time between two checks for connections that have timed out */
+    private static final long TIMEOUT_CHECK_MILLIS = 1000;
+
+    private final ServerSocketChannel serverChannel;
+    private final SharedIndex index;
+    private final ServerMetrics metrics;
+    private final Semaphore searches;
+    private final ServerLimits limits;
+    private final long readTimeoutNanos;
+    private final long idleTimeoutNanos;
+    private final char lineFeed;
+    private final ArrayDeque<ByteBuffer> bufferPool;
+    private final ConcurrentLinkedQueue<Connection> completed;
+    private Selector selector;
+
+    /** Number of connections open, only used by the selector thread */
+    private int connections;
+
+    /**
+     * Constructs {@code NioEngine}
+     *
+     * @param serverChannel bound channel to accept connections from
+     * @param index server-wide index shared between all the clients
+     * @param metrics of the server
+     * @param searches permits of the queries executed at once, shared by every connection
+     * @param limits on connections, queries, request lines and silences of the clients
+     * @param lineFeed terminates every response line
+     */
+    NioEngine(
+            ServerSocketChannel serverChannel,
+            SharedIndex index,
+            ServerMetrics metrics,
+            Semaphore searches,
+            ServerLimits limits,
+            char lineFeed) {
+        this.serverChannel = serverChannel;
+        this.index = index;
+        this.metrics = metrics;
+        this.searches = searches;
+        this.limits = limits;
+        this.readTimeoutNanos = limits.readTimeout().toNanos();
+        this.idleTimeoutNanos = limits.idleTimeout().toNanos();
+        this.lineFeed = lineFeed;
+        this.bufferPool = new ArrayDeque<>();
+        this.completed = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Serves connections until the server channel is closed
+     *
+     * @throws IOException if the selector cannot be used
+     */
+    void serve() throws IOException {
+        ExecutorService workers =
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (Selector selector = Selector.open()) {
+            this.selector = selector;
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            long nextTimeoutCheck = System.nanoTime();
+            while (serverChannel.isOpen()) {
+                selector.select(TIMEOUT_CHECK_MILLIS);
+
+                Connection done;
+                while ((done = completed.poll()) != null) {
+                    done.complete();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(workers);
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isWritable()) {
+                        connection.writable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.readable();
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now - nextTimeoutCheck >= 0) {
+                    closeTimedOut(now);
+                    nextTimeoutCheck = now + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_CHECK_MILLIS);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Closes the connections whose client has been silent for too long
+     *
+     * @param now {@link System#nanoTime()}
+     */
+    private void closeTimedOut(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection connection) {
+                connection.closeIfTimedOut(now);
+            }
+        }
+    }
+
+    /**
+     * Registers every pending connection with the selector, or turns it away above {@link
+     * ServerLimits#maxConnections()}
+     *
+     * @param workers executes the requests of the connections
+     * @throws IOException if the server channel fails
+     */
+    private void accept(ExecutorService workers) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            // Responses are written in several parts, do not let the last one wait for an ACK
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Socket socket = channel.socket();
+            String clientInfo = socket.getInetAddress().getHostAddress() + " : " + socket.getPort();
+
+            if (connections >= limits.maxConnections()) {
+                reject(channel, clientInfo);
+                continue;
+            }
+            connections++;
+            Connection connection = new Connection(channel, clientInfo, workers);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            metrics.connectionOpened();
+            // No host name lookup here, it would block every other connection
+            Log.info("Client connected from %s", clientInfo);
+        }
+    }
+
+    /**
+     * Answers {@link ServerMessage#BUSY} to a connection above the limit, then closes it
+     *
+     * @param channel of the connection, non-blocking
+     * @param clientInfo address of the client
+     */
+    private void reject(SocketChannel channel, String clientInfo) {
+        metrics.connectionRejected();
+        Log.info("Too many connections, rejecting %s", clientInfo);
+        try (channel) {
+            // A fresh socket has room for a line, the write does not wait
+            byte[] busy = (ServerMessage.BUSY.name() + lineFeed).getBytes(StandardCharsets.UTF_8);
+            channel.write(ByteBuffer.wrap(busy));
+        } catch (IOException ignored) {
+            // The client is turned away anyway
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+            bufferPool.push(buffer.clear());
+        }
+    }
+
+    /**
+     * State of one client connection. Every method runs on the selector thread, except the tasks
+     * handed to the workers, during which the selector leaves the connection alone.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final String clientInfo;
+        private final ExecutorService workers;
+        private final RequestProcessor processor;
+        private SelectionKey key;
+
+        /** Unparsed input, ready to be read from, null when there is none */
+        private ByteBuffer in;
+
+        /** Beginning of a request line whose end has not been received yet */
+        private byte[] line;
+
+        private int lineLength;
+
+        /** Receives the content following the current request, null while reading lines */
+        private BodySink body;
+
+        private long bodyRemaining;
+        private byte[] bodyChunk;
+
+        /** Receives the lines following the current request, null while reading requests */
+        private LinesSink lines;
+
+        private int linesRemaining;
+
+        /** Output waiting for the socket to accept it */
+        private final ResponseBuffer out;
+
+        private FileChannel file;
+        private long filePosition;
+        private long fileSize;
+        private boolean closeAfterWrite;
+
+        /** True while a worker owns the connection */
+        private boolean busy;
+
+        /** Outcome of the last worker task, null if it produced no response */
+        private Response result;
+
+        private boolean closed;
+
+        /** {@link System#nanoTime()} when the client last sent or read something */
+        private long lastActivity;
+
+        Connection(SocketChannel channel, String clientInfo, ExecutorService workers) {
+            this.channel = channel;
+            this.clientInfo = clientInfo;
+            this.workers = workers;
+            this.out = new ResponseBuffer(lineFeed);
+            this.processor =
+                    new RequestProcessor(
+                            clientInfo, index, out, metrics, searches, limits.maxRequestBytes());
+            this.line = new byte[128];
+            this.lastActivity = System.nanoTime();
+        }
+
+        /** Reads what the client sent and processes it */
+        void readable() {
+            if (busy) {
+                return;
+            }
+            try {
+                if (in == null) {
+                    in = acquireBuffer().flip();
+                }
+                in.compact();
+                int n = channel.read(in);
+                in.flip();
+                if (n < 0) {
+                    Log.info("Client %s disconnected", clientInfo);
+                    close();
+                    return;
+                }
+                metrics.addBytesIn(n);
+                lastActivity = System.nanoTime();
+                process();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /** Sends pending output now that the socket accepts it */
+        void writable() {
+            if (busy) {
+                return;
+            }
+            try {
+                process();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /** Takes back the connection once a worker is done with it */
+        void complete() {
+            busy = false;
+            lastActivity = System.nanoTime();
+            Response response = result;
+            result = null;
+
+            if (closed) {
+                if (response != null) {
+                    discard(response);
+                }
+                release();
+                return;
+            }
+
+            try {
+                if (response != null) {
+                    respond(response);
+                }
+                process();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Parses the buffered input until a request needs a worker, too much output is pending or
+         * more input is needed, sends pending output once no request is being executed, then
+         * updates the operations the selector waits for
+         *
+         * @throws IOException if writing fails
+         */
+        private void process() throws IOException {
+            while (!busy
+                    && !closed
+                    && file == null
+                    && !closeAfterWrite
+                    && out.remaining() < MAX_PENDING_OUTPUT) {
+                if (body != null) {
+                    if (bodyRemaining == 0) {
+                        dispatch(this::finishBody);
+                    } else if (in != null && in.hasRemaining()) {
+                        dispatch(this::writeBody);
+                    }
+                    break;
+                }
+
+                if (lines != null && linesRemaining == 0) {
+                    LinesSink sink = lines;
+                    lines = null;
+                    dispatch(() -> result = sink.finish());
+                    break;
+                }
+
+                int length = nextLine();
+                if (Math.max(length, lineLength) >= limits.maxLineLength()) {
+                    // What follows cannot be told apart from the next request, give up on it
+                    Log.info(
+                            "Line longer than %d bytes from %s, closing connection",
+                            limits.maxLineLength(), clientInfo);
+                    lineLength = 0;
+                    respond(Response.closing(ServerMessage.INVALID.name()));
+                    break;
+                }
+                if (length < 0) {
+                    break;
+                }
+                // The line is left alone by the selector until the worker is done with it
+                byte[] request = line;
+                if (lines != null) {
+                    LinesSink sink = lines;
+                    linesRemaining--;
+                    dispatch(() -> sink.line(request, length));
+                } else {
+                    dispatch(() -> result = processor.handle(request, length));
+                }
+            }
+
+            if (closed) {
+                return;
+            }
+            if (!busy && (!out.isEmpty() || file != null)) {
+                flush();
+            }
+            if (in != null && !in.hasRemaining() && !busy) {
+                releaseBuffer(in);
+                in = null;
+            }
+            if (busy) {
+                key.interestOps(0);
+            } else if (!out.isEmpty() || file != null) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (closeAfterWrite) {
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Closes the connection if its client has been silent for longer than allowed : the read
+         * timeout applies while a request or its response is halfway through, the idle timeout
+         * between two requests. A connection is never closed while a worker executes its request.
+         *
+         * @param now {@link System#nanoTime()}
+         */
+        void closeIfTimedOut(long now) {
+            if (busy || closed) {
+                return;
+            }
+            boolean idle =
+                    in == null
+                            && lineLength == 0
+                            && body == null
+                            && lines == null
+                            && out.isEmpty()
+                            && file == null;
+            long timeout = idle ? idleTimeoutNanos : readTimeoutNanos;
+            if (timeout > 0 && now - lastActivity > timeout) {
+                Log.info("Client %s timed out, closing connection", clientInfo);
+                metrics.connectionTimedOut();
+                close();
+            }
+        }
+
+        /**
+         * @return length of the next complete request line, left in {@code line} without its line
+         *     feed until the next call, -1 if its end has not been received yet
+         */
+        private int nextLine() {
+            if (in == null) {
+                return -1;
+            }
+
+            int start = in.position();
+            int end = start;
+            while (end < in.limit() && in.get(end) != '\n') {
+                end++;
+            }
+
+            boolean found = end < in.limit();
+            int length = end - start;
+            if (lineLength + length > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+            }
+            in.get(line, lineLength, length);
+            lineLength += length;
+            if (!found) {
+                return -1;
+            }
+            in.get(); // line feed
+
+            int stripped = lineLength > 0 && line[lineLength - 1] == '\r' ? 1 : 0;
+            int request = lineLength - stripped;
+            lineLength = 0;
+            return request;
+        }
+
+        /** Worker task : passes the buffered part of the content to the body sink */
+        private void writeBody() {
+            int n = (int) Math.min(in.remaining(), bodyRemaining);
+            if (bodyChunk == null) {
+                bodyChunk = new byte[BUFFER_SIZE];
+            }
+            in.get(bodyChunk, 0, n);
+            bodyRemaining -= n;
+
+            try {
+                body.write(bodyChunk, 0, n);
+            } catch (IOException e) {
+                // The rest of the content still has to be skipped before the next request
+                Log.warn("Cannot store content from %s : %s", clientInfo, e.getMessage());
+                body.abort();
+                body = BodySink.discard(Response.of(ServerMessage.INVALID.name()));
+            }
+        }
+
+        /** Worker task : hands the whole content over to the body sink */
+        private void finishBody() {
+            try {
+                result = body.finish();
+            } catch (IOException e) {
+                Log.warn("Cannot store content from %s : %s", clientInfo, e.getMessage());
+                result = Response.of(ServerMessage.INVALID.name());
+            }
+            body = null;
+            bodyChunk = null;
+        }
+
+        /**
+         * Hands the connection over to a worker, the selector leaves it alone until the task is
+         * done
+         *
+         * @param task to execute
+         */
+        private void dispatch(Runnable task) {
+            busy = true;
+            workers.execute(
+                    () -> {
+                        int mark = out.mark();
+                        try {
+                            task.run();
+                        } catch (Throwable e) {
+                            // Errors too, such as running out of memory, close the connection
+                            Log.error("[%s] Error: %s", clientInfo, e);
+                            // Do not send the part of the response written before the failure
+                            out.truncate(mark);
+                            result = Response.closing(null);
+                        } finally {
+                            // Otherwise the connection would stay busy, and never be closed
+                            completed.add(this);
+                            selector.wakeup();
+                        }
+                    });
+        }
+
+        /**
+         * Queues a response, or starts receiving the content announced by the request
+         *
+         * @param response to send
+         */
+        private void respond(Response response) {
+            if (response.getLinesSink() != null) {
+                lines = response.getLinesSink();
+                linesRemaining = response.getRequestLines();
+                return;
+            }
+            if (response.getBodySink() != null) {
+                body = response.getBodySink();
+                bodyRemaining = response.getBodyLength();
+                return;
+            }
+
+            if (response.getHeader() != null) {
+                out.line(response.getHeader());
+            }
+            if (response.getLines() != null) {
+                for (String line : response.getLines()) {
+                    out.line(line);
+                }
+            }
+            if (response.getFile() != null) {
+                file = response.getFile();
+                filePosition = 0;
+                fileSize = response.getFileSize();
+            }
+            closeAfterWrite = response.isClose();
+        }
+
+        /**
+         * Writes as much pending output as the socket accepts
+         *
+         * @return true if everything has been written
+         * @throws IOException if writing fails or a file shrank since its size was announced
+         */
+        private boolean flush() throws IOException {
+            boolean pending = !out.isEmpty() || file != null;
+
+            if (!out.isEmpty()) {
+                // Responses held for pipelined requests go out in a single write
+                int written = out.writeTo(channel);
+                if (written > 0) {
+                    metrics.addBytesOut(written);
+                    lastActivity = System.nanoTime();
+                }
+                if (!out.isEmpty()) {
+                    return false;
+                }
+            }
+
+            while (file != null && filePosition < fileSize) {
+                long n = file.transferTo(filePosition, fileSize - filePosition, channel);
+                if (n == 0) {
+                    if (filePosition >= file.size()) {
+                        throw new IOException("File has been truncated while being sent");
+                    }
+                    return false;
+                }
+                filePosition += n;
+                metrics.addBytesOut(n);
+                lastActivity = System.nanoTime();
+            }
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+
+            if (pending) {
+                Log.debug("Sent response to client : %s", clientInfo);
+            }
+            return true;
+        }
+
+        /**
+         * Releases what a response holds without sending it
+         *
+         * @param response to drop
+         */
+        private void discard(Response response) {
+            if (response.getBodySink() != null) {
+                response.getBodySink().abort();
+            }
+            if (response.getFile() != null) {
+                try {
+                    response.getFile().close();
+                } catch (IOException ignored) {
+                    // Nothing left to do with it
+                }
+            }
+        }
+
+        private void fail(IOException e) {
+            Log.warn("IO exception with %s : %s", clientInfo, e.getMessage());
+            close();
+        }
+
+        /** Closes the connection, what it holds is released once no worker uses it anymore */
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connections--;
+            metrics.connectionClosed();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Already closing
+            }
+            if (!busy) {
+                release();
+            }
+        }
+
+        /** Releases the file, content and buffer held by a closed connection */
+        private void release() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                    // Nothing left to do with it
+                }
+                file = null;
+            }
+            if (body != null) {
+                body.abort();
+                body = null;
+            }
+            if (in != null) {
+                releaseBuffer(in);
+                in = null;
+            }
+            out.clear();
+        }
+    }
+}
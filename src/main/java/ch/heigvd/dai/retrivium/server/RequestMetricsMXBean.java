@@ -0,0 +1,38 @@
+package ch.heigvd.dai.retrivium.server;
+
+/**
+ * Metrics of the requests of one command, as exposed through JMX
+ *
+ * @see ServerMetrics
+ */
+public interface RequestMetricsMXBean {
+    /**
+     * @return number of requests answered
+     */
+    long getCount();
+
+    /**
+     * @return mean latency
+     */
+    double getMeanMicros();
+
+    /**
+     * @return median latency
+     */
+    long getP50Micros();
+
+    /**
+     * @return latency that 99% of the requests do not exceed
+     */
+    long getP99Micros();
+
+    /**
+     * @return latency that 99.9% of the requests do not exceed
+     */
+    long getP999Micros();
+
+    /**
+     * @return largest latency
+     */
+    long getMaxMicros();
+}
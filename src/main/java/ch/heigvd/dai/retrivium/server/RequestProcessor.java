@@ -0,0 +1,735 @@
+package ch.heigvd.dai.retrivium.server;
+
+import ch.heigvd.dai.retrivium.client.ClientMessage;
+import ch.heigvd.dai.retrivium.index.CorpusStats;
+import ch.heigvd.dai.retrivium.index.ScoredDocument;
+import ch.heigvd.dai.retrivium.index.SharedIndex;
+import ch.heigvd.dai.retrivium.index.UploadSession;
+import ch.heigvd.dai.retrivium.utils.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes the requests of one client connection. It only turns a request line into a {@link
+ * Response}, reading from and writing to the connection is left to the server engine, so that the
+ * same commands are served whichever {@link Engine} is used.
+ *
+ * <p>Request lines are parsed as bytes and the most frequent responses are written straight into
+ * the {@link ResponseBuffer} of the connection, so that a {@code QUERY} allocates next to nothing
+ * besides the search itself.
+ */
+class RequestProcessor {
+    /** Maximal number of queries of one {@code MQUERY} */
+    static final int MAX_BATCH_QUERIES = 10_000;
+
+    /** Maximal number of documents of one {@code PAGE} */
+    static final int MAX_PAGE_SIZE = 1000;
+
+    /** Maximal rank a {@code PAGE} may reach, which bounds the ranking kept by a cursor */
+    static final int MAX_PAGE_DEPTH = 10_000;
+
+    /** Time a cursor is kept without being used */
+    private static final long CURSOR_TTL_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static final ClientMessage[] VERBS = ClientMessage.values();
+
+    /** Names of {@link RequestProcessor#VERBS}, as they appear in a request line */
+    private static final byte[][] VERB_NAMES = new byte[VERBS.length][];
+
+    static {
+        for (int i = 0; i < VERBS.length; i++) {
+            VERB_NAMES[i] = VERBS[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final String clientInfo;
+    private final File targetDir;
+    private final SharedIndex index;
+    private final ResponseBuffer out;
+    private final ServerMetrics metrics;
+    private final Semaphore searches;
+    private final int maxRequestBytes;
+
+    /** Ranking of the last query paged through by the client, null if there is none */
+    private Cursor cursor;
+
+    /**
+     * Ranking kept between the pages of a query, so that the next pages are answered without
+     * ranking the documents again
+     *
+     * @param query text of the query
+     * @param generation of the index the ranking has been computed on
+     * @param depth number of documents asked for, the ranking is complete if it holds fewer
+     * @param ranking documents from the most to the least relevant
+     * @param expiresNanos {@link System#nanoTime()} after which the cursor is not used anymore
+     */
+    private record Cursor(
+            String query,
+            long generation,
+            int depth,
+            List<ScoredDocument> ranking,
+            long expiresNanos) {
+
+        /**
+         * @param query text of a query
+         * @param generation current generation of the index
+         * @param nowNanos current {@link System#nanoTime()}
+         * @return true if this cursor ranks the same query on the same index and has not expired
+         */
+        boolean matches(String query, long generation, long nowNanos) {
+            return this.query.equals(query)
+                    && this.generation == generation
+                    && nowNanos - expiresNanos < 0;
+        }
+
+        /**
+         * @param end rank following the last document of a page
+         * @return true if the ranking holds the page and tells whether documents follow it
+         */
+        boolean covers(int end) {
+            return ranking.size() < depth || depth > end;
+        }
+    }
+
+    /**
+     * Constructs {@code RequestProcessor}
+     *
+     * @param clientInfo address of the client, used in logs
+     * @param index server-wide index shared between all the clients
+     * @param out output of the connection, that responses may be written to directly
+     * @param metrics of the server, every request is recorded once answered
+     * @param searches permits of the queries executed at once, shared by every connection
+     * @param maxRequestBytes number of bytes of the lines following a request that are processed,
+     *     see {@link ServerLimits#maxRequestBytes()}
+     */
+    RequestProcessor(
+            String clientInfo,
+            SharedIndex index,
+            ResponseBuffer out,
+            ServerMetrics metrics,
+            Semaphore searches,
+            int maxRequestBytes) {
+        this.clientInfo = clientInfo;
+        this.targetDir = index.getTargetDir();
+        this.index = index;
+        this.out = out;
+        this.metrics = metrics;
+        this.searches = searches;
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    /**
+     * @param line request line
+     * @param end position of the first space of the line, or its length
+     * @return verb the line starts with, null if it is unknown
+     */
+    private static ClientMessage verbOf(byte[] line, int end) {
+        for (int i = 0; i < VERBS.length; i++) {
+            if (Arrays.equals(VERB_NAMES[i], 0, VERB_NAMES[i].length, line, 0, end)) {
+                return VERBS[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param bytes holding the number
+     * @param from position of the first digit
+     * @param to position following the last digit
+     * @return the number, -1 if there is no number or it does not fit in an int
+     */
+    private static int parseCount(byte[] bytes, int from, int to) {
+        if (from >= to || to - from > 10) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value > Integer.MAX_VALUE ? -1 : (int) value;
+    }
+
+    private static int indexOfSpace(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == ' ') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String decode(byte[] bytes, int from, int to) {
+        return from >= to ? "" : new String(bytes, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Executes a single request
+     *
+     * @param line holding the request sent by the client, without line feed, only read during the
+     *     call
+     * @param length number of bytes of the request
+     * @return response to send back, possibly already written to the output of the connection
+     */
+    Response handle(byte[] line, int length) {
+        long start = System.nanoTime();
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("received command %s from client : %s", decode(line, 0, length), clientInfo);
+        }
+
+        int separator = indexOfSpace(line, 0, length);
+        int verbEnd = separator < 0 ? length : separator;
+        int payload = separator < 0 ? length : separator + 1;
+
+        ClientMessage verb = verbOf(line, verbEnd);
+        Response response =
+                switch (verb) {
+                    case LIST -> list();
+                    case SHOW -> show(decode(line, payload, length));
+                    case QUERY -> query(line, payload, length);
+                    case MQUERY -> batchQuery(line, payload, length);
+                    case PAGE -> page(line, payload, length);
+                    case UPLOAD -> upload(decode(line, payload, length));
+                    case STATS -> stats();
+                    case TERMS -> terms(decode(line, payload, length));
+                    case SCORED -> scored(decode(line, payload, length));
+                    case QUIT -> {
+                        Log.debug("Client %s requests disconnect", clientInfo);
+                        yield Response.closing(null);
+                    }
+                    case null, default -> {
+                        Log.debug(
+                                "Unknown command sent by client [%s], reply with %s.",
+                                clientInfo, ServerMessage.INVALID);
+                        yield Response.of(
+                                ServerMessage.INVALID + " Unknown command. Please try again.");
+                    }
+                };
+        return recorded(verb, start, response);
+    }
+
+    /**
+     * Records a request in the metrics once its response is ready, which for a request followed by
+     * lines or content is only once they have been received
+     *
+     * @param verb command of the request, null if it is unknown
+     * @param start {@link System#nanoTime()} when the request was received
+     * @param response to the request
+     * @return response to send back
+     */
+    private Response recorded(ClientMessage verb, long start, Response response) {
+        if (response.getLinesSink() != null) {
+            LinesSink sink = new RecordedLines(verb, start, response.getLinesSink());
+            return Response.expectLines(response.getRequestLines(), sink);
+        }
+        if (response.getBodySink() != null) {
+            BodySink sink = new RecordedSink(verb, start, response.getBodySink());
+            return Response.expectBody(response.getBodyLength(), sink);
+        }
+        metrics.record(verb, start);
+        return response;
+    }
+
+    private Response list() {
+        List<String> fileNames = index.current().getDocumentNames();
+        Log.debug("Sending list of documents to %s", clientInfo);
+
+        if (fileNames.isEmpty()) {
+            return Response.of(ServerMessage.NOTHING_INDEXED.name());
+        }
+        out.append(ServerMessage.FILES.name());
+        for (String fileName : fileNames) {
+            out.append(' ').append(fileName);
+        }
+        out.endLine();
+        return Response.written();
+    }
+
+    private Response stats() {
+        Log.debug("Sending metrics to %s", clientInfo);
+
+        List<String> lines = metrics.snapshot();
+        out.append(ServerMessage.STATS.name()).append(' ').append(lines.size()).endLine();
+        for (String line : lines) {
+            out.line(line);
+        }
+        return Response.written();
+    }
+
+    private Response show(String filename) {
+        Log.debug("Sending show document to %s", clientInfo);
+
+        if (!index.current().contains(filename)) {
+            return Response.of(ServerMessage.FILE_DOESNT_EXIST.name());
+        }
+
+        File targetFile = new File(targetDir, filename);
+        try {
+            FileChannel body = FileChannel.open(targetFile.toPath(), StandardOpenOption.READ);
+            long bodySize = body.size();
+            return Response.withFile(ServerMessage.CONTENT.name() + " " + bodySize, body, bodySize);
+        } catch (IOException e) {
+            Log.warn("Impossible to read : %s for %s", targetFile.getPath(), clientInfo);
+            return Response.of(ServerMessage.FILE_DOESNT_EXIST.name());
+        }
+    }
+
+    /** Answers {@code QUERY <k> <query>}, the payload lies between {@code from} and {@code to} */
+    private Response query(byte[] line, int from, int to) {
+        int separator = indexOfSpace(line, from, to);
+
+        if (separator < 0) {
+            Log.debug("query payload is ill-formed from %s", clientInfo);
+            return Response.of(ServerMessage.INVALID.name());
+        }
+
+        int topK = parseCount(line, from, separator);
+        if (topK < 0 || topK > ServerLimits.MAX_K) {
+            Log.debug("[%s] query does not contain a valid <k>", clientInfo);
+            return Response.of(ServerMessage.INVALID.name());
+        }
+
+        if (!searches.tryAcquire()) {
+            return busy();
+        }
+        try {
+            search(topK, decode(line, separator + 1, to));
+        } finally {
+            searches.release();
+        }
+        Log.debug("Sending query document to %s", clientInfo);
+        return Response.written();
+    }
+
+    /**
+     * Answers a batch : {@code MQUERY <k> <n>} is followed by {@code n} lines, one query each, and
+     * answered by {@code RESULTS <n>} followed by the {@code n} responses {@code QUERY} would give.
+     * Each query is answered as soon as its line has been received, so that a batch is never held
+     * in memory, and takes a search permit of its own. Queries past {@link
+     * RequestProcessor#maxRequestBytes} are answered {@link ServerMessage#BUSY} without being run.
+     */
+    private Response batchQuery(byte[] line, int from, int to) {
+        int separator = indexOfSpace(line, from, to);
+        int count = separator < 0 ? -1 : parseCount(line, separator + 1, to);
+
+        if (count < 0 || count > MAX_BATCH_QUERIES) {
+            // The queries cannot be told apart from the next requests, give up on this connection
+            Log.debug("batch without valid size from %s", clientInfo);
+            return Response.closing(ServerMessage.INVALID.name());
+        }
+
+        int k = parseCount(line, from, separator);
+        if (k <= 0 || k > ServerLimits.MAX_K) {
+            Log.debug("[%s] batch <k> is not positive or too large", clientInfo);
+            return Response.expectLines(
+                    count, LinesSink.discard(Response.of(ServerMessage.INVALID.name())));
+        }
+
+        out.append(ServerMessage.RESULTS.name()).append(' ').append(count).endLine();
+        return Response.expectLines(
+                count,
+                new LinesSink() {
+                    private long received;
+
+                    @Override
+                    public void line(byte[] query, int length) {
+                        received += length + 1;
+                        if (received > maxRequestBytes) {
+                            Log.debug("Batch of %s is too large, rejecting a query", clientInfo);
+                            metrics.requestRejected();
+                            out.line(ServerMessage.BUSY.name());
+                            return;
+                        }
+                        if (!searches.tryAcquire()) {
+                            Log.debug(
+                                    "Too many queries in flight, rejecting one of %s", clientInfo);
+                            metrics.requestRejected();
+                            out.line(ServerMessage.BUSY.name());
+                            return;
+                        }
+                        try {
+                            search(k, decode(query, 0, length));
+                        } finally {
+                            searches.release();
+                        }
+                    }
+
+                    @Override
+                    public Response finish() {
+                        Log.debug("Sent %d query results to %s", count, clientInfo);
+                        return Response.written();
+                    }
+                });
+    }
+
+    /**
+     * Answers {@code PAGE <offset> <limit> <query>} with {@code PAGE <n> MORE|END} followed by
+     * {@code n} lines {@code <score> <name>}, the documents ranked from {@code offset} on. The
+     * ranking is kept in a cursor of the connection, so that the following pages of the same query
+     * are read from it as long as the index does not change. A page beyond the cursor ranks the
+     * documents again, at least twice as deep, so that paging through a query ranks it a
+     * logarithmic number of times.
+     */
+    private Response page(byte[] line, int from, int to) {
+        int offsetEnd = indexOfSpace(line, from, to);
+        int limitEnd = offsetEnd < 0 ? -1 : indexOfSpace(line, offsetEnd + 1, to);
+        if (limitEnd < 0) {
+            Log.debug("page payload is ill-formed from %s", clientInfo);
+            return Response.of(ServerMessage.INVALID.name());
+        }
+
+        int offset = parseCount(line, from, offsetEnd);
+        int limit = parseCount(line, offsetEnd + 1, limitEnd);
+        String query = decode(line, limitEnd + 1, to);
+        if (offset < 0
+                || limit <= 0
+                || limit > MAX_PAGE_SIZE
+                || offset > MAX_PAGE_DEPTH - limit
+                || query.isEmpty()) {
+            Log.debug("[%s] page without valid <offset>, <limit> or query", clientInfo);
+            return Response.of(ServerMessage.INVALID.name());
+        }
+
+        if (index.current().getNumOfDocs() == 0) {
+            return Response.of(ServerMessage.NOTHING_INDEXED.name());
+        }
+
+        int end = offset + limit;
+        long now = System.nanoTime();
+        // Generation read first : a change published in the meantime makes the cursor stale
+        long generation = index.getGeneration();
+        Cursor current = cursor;
+        boolean reusable = current != null && current.matches(query, generation, now);
+        int depth;
+        List<ScoredDocument> ranking;
+        if (reusable && current.covers(end)) {
+            depth = current.depth();
+            ranking = current.ranking();
+        } else {
+            // One more than the page, to tell whether documents follow it
+            depth = end + 1;
+            if (reusable) {
+                depth = Math.max(depth, (int) Math.min(2L * current.depth(), MAX_PAGE_DEPTH + 1));
+            }
+
+            if (!searches.tryAcquire()) {
+                return busy();
+            }
+            try {
+                ranking = index.search(query, depth);
+            } finally {
+                searches.release();
+            }
+        }
+        cursor = new Cursor(query, generation, depth, ranking, now + CURSOR_TTL_NANOS);
+
+        if (ranking.isEmpty()) {
+            return Response.of(ServerMessage.NOTHING_RELEVANT.name());
+        }
+
+        int pageEnd = Math.min(end, ranking.size());
+        out.append(ServerMessage.PAGE.name())
+                .append(' ')
+                .append(Math.max(0, pageEnd - offset))
+                .append(ranking.size() > end ? " MORE" : " END")
+                .endLine();
+        writeScored(ranking, offset, pageEnd);
+        Log.debug("Sending page of documents to %s", clientInfo);
+        return Response.written();
+    }
+
+    /**
+     * Writes scored documents, one line {@code <score> <name>} each. The name comes last, so it may
+     * hold spaces.
+     *
+     * @param documents ranking to write from
+     * @param from index of the first document to write
+     * @param to index following the last document to write
+     */
+    private void writeScored(List<ScoredDocument> documents, int from, int to) {
+        for (int i = from; i < to; i++) {
+            ScoredDocument document = documents.get(i);
+            out.append(Double.toString(document.getScore()))
+                    .append(' ')
+                    .append(document.getDocName())
+                    .endLine();
+        }
+    }
+
+    /**
+     * Sheds a query rather than making it wait for the ones already executed
+     *
+     * @return response telling the client to try again later
+     */
+    private Response busy() {
+        Log.debug("Too many queries in flight, rejecting the one of %s", clientInfo);
+        metrics.requestRejected();
+        return Response.of(ServerMessage.BUSY.name());
+    }
+
+    /**
+     * Writes the response line to a query
+     *
+     * @param topK maximal number of documents
+     * @param query text of the query
+     */
+    private void search(int topK, String query) {
+        if (topK <= 0 || query.isEmpty()) {
+            Log.debug("[%s] query is empty or <k> is not positive", clientInfo);
+            out.line(ServerMessage.INVALID.name());
+            return;
+        }
+
+        if (index.current().getNumOfDocs() == 0) {
+            out.line(ServerMessage.NOTHING_INDEXED.name());
+            return;
+        }
+
+        List<ScoredDocument> results = index.search(query, topK);
+        if (results.isEmpty()) {
+            out.line(ServerMessage.NOTHING_RELEVANT.name());
+            return;
+        }
+
+        out.append(ServerMessage.RELEVANT.name());
+        for (int i = 0; i < results.size(); i++) {
+            out.append(' ').append(results.get(i).getDocName());
+        }
+        out.endLine();
+    }
+
+    /**
+     * Answers {@code TERMS <query>} with the statistics of this index for the query : {@code TERMS
+     * <numDocs> <totalLength>} followed by {@code <term> <docFreq>} for every distinct term
+     */
+    private Response terms(String query) {
+        if (query.isEmpty()) {
+            Log.debug("[%s] terms of an empty query", clientInfo);
+            return Response.of(ServerMessage.INVALID.name());
+        }
+
+        CorpusStats stats = index.collectStats(query);
+        out.append(ServerMessage.TERMS.name())
+                .append(' ')
+                .append(stats.getNumOfDocs())
+                .append(' ')
+                .append(stats.getTotalLength());
+        List<String> terms = stats.getTerms();
+        for (int i = 0; i < terms.size(); i++) {
+            out.append(' ').append(terms.get(i)).append(' ').append(stats.getDocFreq(i));
+        }
+        out.endLine();
+        Log.debug("Sending term statistics to %s", clientInfo);
+        return Response.written();
+    }
+
+    /**
+     * Answers {@code SCORED <k> <numDocs> <totalLength> [<term> <docFreq>]...}, a query given by
+     * the statistics of a whole corpus this index is a part of, with {@code SCORED <n>} followed by
+     * {@code n} lines {@code <score> <name>}, from the most to the least relevant
+     */
+    private Response scored(String payload) {
+        String[] parts = payload.split(" ");
+        if (parts.length < 3 || parts.length % 2 == 0) {
+            Log.debug("scored query payload is ill-formed from %s", clientInfo);
+            return Response.of(ServerMessage.INVALID.name());
+        }
+
+        long topK = parseNumber(parts[0]);
+        long numOfDocs = parseNumber(parts[1]);
+        long totalLength = parseNumber(parts[2]);
+        if (topK <= 0
+                || topK > ServerLimits.MAX_K
+                || numOfDocs < 0
+                || numOfDocs > Integer.MAX_VALUE
+                || totalLength < 0) {
+            Log.debug("[%s] scored query without valid <k> or statistics", clientInfo);
+            return Response.of(ServerMessage.INVALID.name());
+        }
+
+        List<String> terms = new ArrayList<>(parts.length / 2 - 1);
+        for (int i = 3; i < parts.length; i += 2) {
+            terms.add(parts[i]);
+        }
+        CorpusStats stats = new CorpusStats(terms);
+        stats.addDocuments((int) numOfDocs, totalLength);
+        for (int i = 0; i < terms.size(); i++) {
+            long docFreq = parseNumber(parts[4 + 2 * i]);
+            if (docFreq < 0 || docFreq > numOfDocs) {
+                Log.debug("[%s] scored query with invalid statistics", clientInfo);
+                return Response.of(ServerMessage.INVALID.name());
+            }
+            stats.addDocFreq(i, (int) docFreq);
+        }
+
+        List<ScoredDocument> results;
+        if (!searches.tryAcquire()) {
+            return busy();
+        }
+        try {
+            results = index.search(stats, (int) topK);
+        } finally {
+            searches.release();
+        }
+
+        out.append(ServerMessage.SCORED.name()).append(' ').append(results.size()).endLine();
+        writeScored(results, 0, results.size());
+        Log.debug("Sending scored documents to %s", clientInfo);
+        return Response.written();
+    }
+
+    /**
+     * @param text holding the number
+     * @return the number, -1 if it is not a non-negative number
+     */
+    private static long parseNumber(String text) {
+        try {
+            return Math.max(-1, Long.parseLong(text));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Response upload(String payload) {
+        // Name may contain spaces, the length is always the last part
+        int separator = payload.lastIndexOf(' ');
+        String docName = separator < 0 ? "" : payload.substring(0, separator);
+
+        long length;
+        try {
+            length = Long.parseLong(payload.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            length = -1;
+        }
+
+        if (length < 0) {
+            // Without a length the content cannot be told apart from the next request, give up
+            // on this connection
+            Log.debug("upload without length from %s", clientInfo);
+            return Response.closing(ServerMessage.INVALID.name());
+        }
+
+        if (index.isReadOnly()) {
+            Log.debug("upload to a replica from %s", clientInfo);
+            return Response.expectBody(
+                    length,
+                    BodySink.discard(
+                            Response.of(
+                                    ServerMessage.INVALID
+                                            + " This server is a read-only replica, upload to"
+                                            + " its primary.")));
+        }
+
+        if (!SharedIndex.isDocumentName(docName)) {
+            Log.debug("invalid document name %s from %s", docName, clientInfo);
+            return Response.expectBody(
+                    length, BodySink.discard(Response.of(ServerMessage.INVALID.name())));
+        }
+
+        UploadSession session;
+        try {
+            session = index.beginUpload(docName);
+        } catch (IOException e) {
+            Log.warn("Cannot store %s : %s", docName, e.getMessage());
+            return Response.expectBody(
+                    length, BodySink.discard(Response.of(ServerMessage.INVALID.name())));
+        }
+        return Response.expectBody(length, new UploadSink(session));
+    }
+
+    /** Writes an upload to its {@link UploadSession}, committed once fully received */
+    private class UploadSink extends BodySink {
+        private final UploadSession session;
+
+        UploadSink(UploadSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            session.write(b, off, len);
+        }
+
+        @Override
+        public Response finish() throws IOException {
+            session.commit();
+            Log.debug("Sending upload document %s to %s", session.getDocName(), clientInfo);
+            return Response.of(ServerMessage.UPLOADED.name() + " " + session.getDocName());
+        }
+
+        @Override
+        public void abort() {
+            session.abort();
+        }
+    }
+
+    /** Passes the content on to another sink, and records the request once it is answered */
+    private class RecordedSink extends BodySink {
+        private final ClientMessage verb;
+        private final long start;
+        private final BodySink sink;
+
+        RecordedSink(ClientMessage verb, long start, BodySink sink) {
+            this.verb = verb;
+            this.start = start;
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            sink.write(b, off, len);
+        }
+
+        @Override
+        public Response finish() throws IOException {
+            try {
+                return sink.finish();
+            } finally {
+                metrics.record(verb, start);
+            }
+        }
+
+        @Override
+        public void abort() {
+            sink.abort();
+        }
+    }
+
+    /** Passes the lines on to another sink, and records the request once it is answered */
+    private class RecordedLines implements LinesSink {
+        private final ClientMessage verb;
+        private final long start;
+        private final LinesSink sink;
+
+        RecordedLines(ClientMessage verb, long start, LinesSink sink) {
+            this.verb = verb;
+            this.start = start;
+            this.sink = sink;
+        }
+
+        @Override
+        public void line(byte[] line, int length) {
+            sink.line(line, length);
+        }
+
+        @Override
+        public Response finish() {
+            try {
+                return sink.finish();
+            } finally {
+                metrics.record(verb, start);
+            }
+        }
+    }
+}
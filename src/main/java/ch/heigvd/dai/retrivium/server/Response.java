@@ -0,0 +1,172 @@
+package ch.heigvd.dai.retrivium.server;
+
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Outcome of one request, independent of the way it is written to the client. A response is made of
+ * a header line, possibly followed by more lines, or for {@code SHOW} by the content of a file. A
+ * request may also announce raw content or more lines that must be received before it can be
+ * answered.
+ *
+ * @see RequestProcessor
+ */
+public class Response {
+    private static final Response WRITTEN =
+            new Response(null, null, null, 0, null, 0, 0, null, false);
+
+    private final String header;
+    private final List<String> lines;
+    private final FileChannel file;
+    private final long fileSize;
+    private final BodySink bodySink;
+    private final long bodyLength;
+    private final int requestLines;
+    private final LinesSink linesSink;
+    private final boolean close;
+
+    private Response(
+            String header,
+            List<String> lines,
+            FileChannel file,
+            long fileSize,
+            BodySink bodySink,
+            long bodyLength,
+            int requestLines,
+            LinesSink linesSink,
+            boolean close) {
+        this.header = header;
+        this.lines = lines;
+        this.file = file;
+        this.fileSize = fileSize;
+        this.bodySink = bodySink;
+        this.bodyLength = bodyLength;
+        this.requestLines = requestLines;
+        this.linesSink = linesSink;
+        this.close = close;
+    }
+
+    /**
+     * @param header line to send, without line feed
+     * @return response made of a single line
+     */
+    public static Response of(String header) {
+        return new Response(header, null, null, 0, null, 0, 0, null, false);
+    }
+
+    /**
+     * @return response whose lines have already been written to the {@link ResponseBuffer} of the
+     *     connection, so there is nothing left to send
+     */
+    static Response written() {
+        return WRITTEN;
+    }
+
+    /**
+     * @param header line to send, without line feed
+     * @param lines to send after the header, without line feed
+     * @return response made of several lines
+     */
+    public static Response withLines(String header, List<String> lines) {
+        return new Response(header, lines, null, 0, null, 0, 0, null, false);
+    }
+
+    /**
+     * @param header line to send, without line feed
+     * @param file to send right after the header, closed once sent
+     * @param fileSize number of bytes of the file to send, as announced in the header
+     * @return response made of a line followed by raw content
+     */
+    public static Response withFile(String header, FileChannel file, long fileSize) {
+        return new Response(header, null, file, fileSize, null, 0, 0, null, false);
+    }
+
+    /**
+     * @param bodyLength number of bytes of raw content that follow the request
+     * @param bodySink to write the content to, it then gives the actual response
+     * @return response that is only known once the content has been received
+     */
+    public static Response expectBody(long bodyLength, BodySink bodySink) {
+        return new Response(null, null, null, 0, bodySink, bodyLength, 0, null, false);
+    }
+
+    /**
+     * @param requestLines number of lines that follow the request
+     * @param linesSink to hand the lines over to, it then gives the actual response
+     * @return response that is only known once the lines have been received
+     */
+    public static Response expectLines(int requestLines, LinesSink linesSink) {
+        return new Response(null, null, null, 0, null, 0, requestLines, linesSink, false);
+    }
+
+    /**
+     * @param header last line to send, null to send nothing
+     * @return response after which the connection is closed
+     */
+    public static Response closing(String header) {
+        return new Response(header, null, null, 0, null, 0, 0, null, true);
+    }
+
+    /**
+     * @return line to send without line feed, null if there is nothing to send
+     */
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * @return lines to send after the header without line feed, null if there are none
+     */
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * @return file to send after the header, null if there is none
+     */
+    public FileChannel getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of bytes of {@link Response#getFile()} to send
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return sink for the raw content following the request, null if there is none
+     */
+    public BodySink getBodySink() {
+        return bodySink;
+    }
+
+    /**
+     * @return number of bytes of raw content following the request
+     */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * @return number of lines following the request
+     */
+    public int getRequestLines() {
+        return requestLines;
+    }
+
+    /**
+     * @return sink for the lines following the request, null if there are none
+     */
+    public LinesSink getLinesSink() {
+        return linesSink;
+    }
+
+    /**
+     * @return true if the connection must be closed once the response has been sent
+     */
+    public boolean isClose() {
+        return close;
+    }
+}
@@ -0,0 +1,221 @@
+package ch.heigvd.dai.retrivium.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Output of one connection, encoded to UTF-8 as it is appended. Responses are written straight into
+ * it, document names included, so that answering a request builds no intermediate string. The same
+ * buffer is reused from one response to the next : responses to pipelined requests pile up in it
+ * until they are sent together.
+ *
+ * <p>A buffer is not thread-safe, the engine hands it over along with its connection.
+ */
+class ResponseBuffer {
+    /** Capacity of a buffer on its first use */
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** Capacity kept once sent, a larger array is dropped so that one huge response is not kept */
+    private static final int RETAINED_CAPACITY = 1 << 16;
+
+    private final char lineFeed;
+    private byte[] bytes;
+    private int size;
+
+    /** Number of bytes already sent */
+    private int sent;
+
+    /** View of {@code bytes} to write to channels, replaced when the array grows */
+    private ByteBuffer view;
+
+    /**
+     * Constructs an empty {@code ResponseBuffer}, it allocates nothing until it is written to
+     *
+     * @param lineFeed terminates every line
+     */
+    ResponseBuffer(char lineFeed) {
+        this.lineFeed = lineFeed;
+        this.bytes = new byte[0];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, Math.max(INITIAL_CAPACITY, size * 2)));
+            view = null;
+        }
+    }
+
+    /**
+     * Appends text, encoded to UTF-8. Unpaired surrogates become {@code ?}, as with {@link
+     * String#getBytes(java.nio.charset.Charset)}.
+     *
+     * @param text to append
+     * @return this buffer
+     */
+    ResponseBuffer append(String text) {
+        int n = text.length();
+        // Three bytes at most per char, a surrogate pair takes four bytes for two chars
+        ensureCapacity(size + 3 * n);
+        byte[] b = bytes;
+        int i = size;
+        for (int j = 0; j < n; j++) {
+            char c = text.charAt(j);
+            if (c < 0x80) {
+                b[i++] = (byte) c;
+            } else if (c < 0x800) {
+                b[i++] = (byte) (0xC0 | c >> 6);
+                b[i++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c)
+                        && j + 1 < n
+                        && Character.isLowSurrogate(text.charAt(j + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++j));
+                    b[i++] = (byte) (0xF0 | codePoint >> 18);
+                    b[i++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    b[i++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    b[i++] = (byte) (0x80 | codePoint & 0x3F);
+                } else {
+                    b[i++] = '?';
+                }
+            } else {
+                b[i++] = (byte) (0xE0 | c >> 12);
+                b[i++] = (byte) (0x80 | c >> 6 & 0x3F);
+                b[i++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        size = i;
+        return this;
+    }
+
+    /**
+     * @param c ASCII character to append
+     * @return this buffer
+     */
+    ResponseBuffer append(char c) {
+        ensureCapacity(size + 1);
+        bytes[size++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Appends the decimal representation of a number
+     *
+     * @param value to append
+     * @return this buffer
+     */
+    ResponseBuffer append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(size + digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+        return this;
+    }
+
+    /**
+     * Terminates the current line
+     *
+     * @return this buffer
+     */
+    ResponseBuffer endLine() {
+        return append(lineFeed);
+    }
+
+    /**
+     * Appends a whole line
+     *
+     * @param line to append, without line feed
+     * @return this buffer
+     */
+    ResponseBuffer line(String line) {
+        return append(line).endLine();
+    }
+
+    /**
+     * @return number of bytes appended and not sent yet
+     */
+    int remaining() {
+        return size - sent;
+    }
+
+    /**
+     * @return true if everything appended has been sent
+     */
+    boolean isEmpty() {
+        return size == sent;
+    }
+
+    /**
+     * @return number of bytes appended since the buffer was last emptied, to {@link
+     *     ResponseBuffer#truncate(int) truncate} back to
+     */
+    int mark() {
+        return size;
+    }
+
+    /**
+     * Drops what has been appended since a mark, such as a response that failed halfway
+     *
+     * @param mark returned by {@link ResponseBuffer#mark()}, not yet sent
+     */
+    void truncate(int mark) {
+        size = Math.max(mark, sent);
+    }
+
+    /**
+     * Writes everything that has not been sent yet, then empties the buffer
+     *
+     * @param out to write to
+     * @throws IOException if writing fails
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, sent, size - sent);
+        clear();
+    }
+
+    /**
+     * Writes as much as the channel accepts, the buffer is emptied once everything has been sent
+     *
+     * @param channel to write to, possibly non-blocking
+     * @return number of bytes written
+     * @throws IOException if writing fails
+     */
+    int writeTo(WritableByteChannel channel) throws IOException {
+        if (view == null) {
+            view = ByteBuffer.wrap(bytes);
+        }
+        view.limit(size).position(sent);
+        int n = channel.write(view);
+        sent += n;
+        if (sent == size) {
+            clear();
+        }
+        return n;
+    }
+
+    /** Drops everything, sent or not */
+    void clear() {
+        size = 0;
+        sent = 0;
+        if (bytes.length > RETAINED_CAPACITY) {
+            bytes = new byte[INITIAL_CAPACITY];
+            view = null;
+        }
+    }
+}
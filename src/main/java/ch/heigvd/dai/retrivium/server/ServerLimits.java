@@ -0,0 +1,52 @@
+package ch.heigvd.dai.retrivium.server;
+
+import java.time.Duration;
+
+/**
+ * Limits that keep a server within bounded resources whatever its clients do. Past them, the server
+ * answers {@link ServerMessage#BUSY} or drops the connection rather than queueing work without
+ * bound.
+ *
+ * @param maxConnections number of connections served at once, the next ones are answered {@link
+ *     ServerMessage#BUSY} and closed
+ * @param maxInFlightQueries number of {@code QUERY} and {@code MQUERY} requests executed at once,
+ *     the next ones are answered {@link ServerMessage#BUSY} instead of waiting
+ * @param readTimeout time a client may stay silent in the middle of a request, zero for no limit.
+ *     With {@link Engine#NIO}, it is also the time a client may leave its responses unread.
+ * @param idleTimeout time a client may stay silent between two requests, zero for no limit
+ * @param maxLineLength number of bytes of a request line, a longer one is answered {@link
+ *     ServerMessage#INVALID} and its connection closed
+ * @param maxRequestBytes number of bytes of the lines following a request, the queries of an {@code
+ *     MQUERY} beyond it are answered {@link ServerMessage#BUSY} without being run
+ */
+public record ServerLimits(
+        int maxConnections,
+        int maxInFlightQueries,
+        Duration readTimeout,
+        Duration idleTimeout,
+        int maxLineLength,
+        int maxRequestBytes) {
+
+    /**
+     * Largest number of documents a {@code QUERY}, {@code MQUERY} or {@code SCORED} may ask for, a
+     * larger one is answered {@link ServerMessage#INVALID}
+     */
+    public static final int MAX_K = 10_000;
+
+    /** Limits of a server started without any option */
+    public static final ServerLimits DEFAULTS =
+            new ServerLimits(
+                    1024, 64, Duration.ofSeconds(30), Duration.ofMinutes(5), 1 << 16, 1 << 22);
+
+    public ServerLimits {
+        if (maxConnections <= 0
+                || maxInFlightQueries <= 0
+                || maxLineLength <= 0
+                || maxRequestBytes <= 0) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        if (readTimeout.isNegative() || idleTimeout.isNegative()) {
+            throw new IllegalArgumentException("Timeouts cannot be negative");
+        }
+    }
+}
@@ -9,9 +9,15 @@ public enum ServerMessage {
     FILES,
     RELEVANT,
     NOTHING_RELEVANT,
+    RESULTS,
+    PAGE,
     NOTHING_INDEXED,
     CONTENT,
     FILE_DOESNT_EXIST,
     UPLOADED,
+    STATS,
+    TERMS,
+    SCORED,
+    BUSY,
     INVALID
 }
@@ -0,0 +1,396 @@
+package ch.heigvd.dai.retrivium.server;
+
+import ch.heigvd.dai.retrivium.client.ClientMessage;
+import ch.heigvd.dai.retrivium.index.QueryCache;
+import ch.heigvd.dai.retrivium.index.SharedIndex;
+import ch.heigvd.dai.retrivium.utils.LatencyHistogram;
+import ch.heigvd.dai.retrivium.utils.Log;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of a running server : requests and their latency per command, connections, bytes
+ * exchanged, index and query cache.
+ *
+ * <p>Counters are {@link LongAdder}s and latencies go to lock-free {@link LatencyHistogram}s, so
+ * recording a request costs a few uncontended atomic increments. Metrics are read by the {@code
+ * STATS} command, through JMX and, optionally, from a file rewritten periodically. Latencies are
+ * measured from the moment a request line has been received until its response is ready, so they
+ * include receiving the content of an {@code UPLOAD} or the queries of an {@code MQUERY}, but not
+ * sending the response.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    /** Domain of the JMX names of the metrics */
+    private static final String JMX_DOMAIN = "ch.heigvd.dai.retrivium";
+
+    private final SharedIndex index;
+    private final long startNanos;
+    private final EnumMap<ClientMessage, RequestMetrics> requests;
+    private final LongAdder unknownRequests;
+    private final LongAdder openedConnections;
+    private final LongAdder closedConnections;
+    private final LongAdder rejectedConnections;
+    private final LongAdder timedOutConnections;
+    private final LongAdder rejectedRequests;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+
+    /** Number and latencies of the requests of one command */
+    static class RequestMetrics implements RequestMetricsMXBean {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        @Override
+        public long getCount() {
+            return latencies.getTotalCount();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return latencies.getMean();
+        }
+
+        @Override
+        public long getP50Micros() {
+            return latencies.getValueAtPercentile(50);
+        }
+
+        @Override
+        public long getP99Micros() {
+            return latencies.getValueAtPercentile(99);
+        }
+
+        @Override
+        public long getP999Micros() {
+            return latencies.getValueAtPercentile(99.9);
+        }
+
+        @Override
+        public long getMaxMicros() {
+            return latencies.getMax();
+        }
+    }
+
+    /**
+     * Constructs {@code ServerMetrics} with every counter at zero
+     *
+     * @param index served by the server, read for the index and cache metrics
+     */
+    public ServerMetrics(SharedIndex index) {
+        this.index = index;
+        this.startNanos = System.nanoTime();
+        this.requests = new EnumMap<>(ClientMessage.class);
+        for (ClientMessage verb : ClientMessage.values()) {
+            if (verb != ClientMessage.HELP) {
+                requests.put(verb, new RequestMetrics());
+            }
+        }
+        this.unknownRequests = new LongAdder();
+        this.openedConnections = new LongAdder();
+        this.closedConnections = new LongAdder();
+        this.rejectedConnections = new LongAdder();
+        this.timedOutConnections = new LongAdder();
+        this.rejectedRequests = new LongAdder();
+        this.bytesIn = new LongAdder();
+        this.bytesOut = new LongAdder();
+    }
+
+    /**
+     * Records a request once its response is ready
+     *
+     * @param verb command of the request, null if it is unknown
+     * @param startNanos {@link System#nanoTime()} when the request line was received
+     */
+    void record(ClientMessage verb, long startNanos) {
+        RequestMetrics metrics = verb == null ? null : requests.get(verb);
+        if (metrics == null) {
+            unknownRequests.increment();
+            return;
+        }
+        metrics.latencies.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    void connectionOpened() {
+        openedConnections.increment();
+    }
+
+    void connectionClosed() {
+        closedConnections.increment();
+    }
+
+    void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    void connectionTimedOut() {
+        timedOutConnections.increment();
+    }
+
+    void requestRejected() {
+        rejectedRequests.increment();
+    }
+
+    void addBytesIn(long n) {
+        bytesIn.add(n);
+    }
+
+    void addBytesOut(long n) {
+        bytesOut.add(n);
+    }
+
+    /**
+     * @param in stream of a connection
+     * @return stream that counts the bytes read from {@code in}
+     */
+    InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytesIn.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * @param out stream of a connection
+     * @return stream that counts the bytes written to {@code out}
+     */
+    OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesOut.add(len);
+            }
+        };
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return openedConnections.sum() - closedConnections.sum();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return openedConnections.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    @Override
+    public long getTimedOutConnections() {
+        return timedOutConnections.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getUnknownRequests() {
+        return unknownRequests.sum();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    @Override
+    public int getIndexedDocuments() {
+        return index.current().getNumOfDocs();
+    }
+
+    @Override
+    public long getIndexRebuilds() {
+        return index.getRebuilds();
+    }
+
+    @Override
+    public long getLastRebuildMillis() {
+        return index.getLastRebuildMillis();
+    }
+
+    @Override
+    public long getUpdatedDocuments() {
+        return index.getUpdatedDocuments();
+    }
+
+    @Override
+    public int getIndexSegments() {
+        return index.current().getNumOfSegments();
+    }
+
+    @Override
+    public long getIndexMerges() {
+        return index.getMerges();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return index.getQueryCache().getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return index.getQueryCache().getMisses();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        QueryCache cache = index.getQueryCache();
+        long hits = cache.getHits();
+        long lookups = hits + cache.getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return every metric, one {@code <name> <value>} line each, as sent by {@code STATS}
+     */
+    List<String> snapshot() {
+        List<String> lines = new ArrayList<>();
+        lines.add("uptime.seconds " + getUptimeSeconds());
+        lines.add("connections.active " + getActiveConnections());
+        lines.add("connections.total " + getTotalConnections());
+        lines.add("connections.rejected " + getRejectedConnections());
+        lines.add("connections.timed.out " + getTimedOutConnections());
+        lines.add("bytes.in " + getBytesIn());
+        lines.add("bytes.out " + getBytesOut());
+        lines.add("index.documents " + getIndexedDocuments());
+        lines.add("index.rebuilds " + getIndexRebuilds());
+        lines.add("index.rebuild.millis " + getLastRebuildMillis());
+        lines.add("index.updated.documents " + getUpdatedDocuments());
+        lines.add("index.segments " + getIndexSegments());
+        lines.add("index.merges " + getIndexMerges());
+        lines.add("cache.hits " + getCacheHits());
+        lines.add("cache.misses " + getCacheMisses());
+        lines.add(String.format(Locale.ROOT, "cache.hit.rate %.4f", getCacheHitRate()));
+        lines.add("requests.unknown.count " + getUnknownRequests());
+        lines.add("requests.rejected.count " + getRejectedRequests());
+        for (Map.Entry<ClientMessage, RequestMetrics> entry : requests.entrySet()) {
+            String prefix = "requests." + entry.getKey().name().toLowerCase(Locale.ROOT) + ".";
+            RequestMetrics metrics = entry.getValue();
+            lines.add(prefix + "count " + metrics.getCount());
+            double mean = metrics.getMeanMicros();
+            lines.add(String.format(Locale.ROOT, "%smean.us %.1f", prefix, mean));
+            lines.add(prefix + "p50.us " + metrics.getP50Micros());
+            lines.add(prefix + "p99.us " + metrics.getP99Micros());
+            lines.add(prefix + "p999.us " + metrics.getP999Micros());
+            lines.add(prefix + "max.us " + metrics.getMaxMicros());
+        }
+        return lines;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, replacing those of a previous server of
+     * the same JVM. A failure is logged and otherwise ignored.
+     */
+    void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, new ObjectName(JMX_DOMAIN, "type", "Server"), this);
+            for (Map.Entry<ClientMessage, RequestMetrics> entry : requests.entrySet()) {
+                ObjectName name =
+                        new ObjectName(
+                                JMX_DOMAIN + ":type=Requests,command=" + entry.getKey().name());
+                register(server, name, entry.getValue());
+            }
+        } catch (JMException e) {
+            Log.warn("Cannot register metrics with JMX : %s", e.getMessage());
+        }
+    }
+
+    private static void register(MBeanServer server, ObjectName name, Object mbean)
+            throws JMException {
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(mbean, name);
+    }
+
+    /**
+     * Rewrites a file with the {@link ServerMetrics#snapshot() metrics} at a fixed rate, from a
+     * daemon thread. The file is replaced atomically, so it can be read at any time.
+     *
+     * @param file to write the metrics to
+     * @param interval between two writes
+     */
+    public void dumpPeriodically(File file, Duration interval) {
+        ScheduledExecutorService scheduler =
+                Executors.newSingleThreadScheduledExecutor(
+                        task -> {
+                            Thread thread = new Thread(task, "metrics-dump");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        long millis = interval.toMillis();
+        scheduler.scheduleAtFixedRate(() -> dump(file), millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private void dump(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), snapshot(), StandardCharsets.UTF_8);
+            Files.move(
+                    tmp.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.warn("Cannot write metrics to %s : %s", file.getPath(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ch.heigvd.dai.retrivium.server;
+
+/**
+ * Server-wide metrics, as exposed through JMX
+ *
+ * @see ServerMetrics
+ */
+public interface ServerMetricsMXBean {
+    /**
+     * @return time since the server started
+     */
+    long getUptimeSeconds();
+
+    /**
+     * @return number of connections currently open
+     */
+    long getActiveConnections();
+
+    /**
+     * @return number of connections accepted since the server started
+     */
+    long getTotalConnections();
+
+    /**
+     * @return number of connections refused because too many were already open
+     */
+    long getRejectedConnections();
+
+    /**
+     * @return number of connections closed because their client stayed silent for too long
+     */
+    long getTimedOutConnections();
+
+    /**
+     * @return number of bytes received from clients
+     */
+    long getBytesIn();
+
+    /**
+     * @return number of bytes sent to clients
+     */
+    long getBytesOut();
+
+    /**
+     * @return number of requests whose command is unknown
+     */
+    long getUnknownRequests();
+
+    /**
+     * @return number of requests answered {@link ServerMessage#BUSY} because too many were already
+     *     executed
+     */
+    long getRejectedRequests();
+
+    /**
+     * @return number of documents currently indexed
+     */
+    int getIndexedDocuments();
+
+    /**
+     * @return number of times the index has been rebuilt from scratch
+     */
+    long getIndexRebuilds();
+
+    /**
+     * @return time the last rebuild took
+     */
+    long getLastRebuildMillis();
+
+    /**
+     * @return number of documents indexed, replaced or removed one at a time
+     */
+    long getUpdatedDocuments();
+
+    /**
+     * @return number of segments the index is currently made of
+     */
+    int getIndexSegments();
+
+    /**
+     * @return number of merges of index segments
+     */
+    long getIndexMerges();
+
+    /**
+     * @return number of queries answered from the query cache
+     */
+    long getCacheHits();
+
+    /**
+     * @return number of queries that had to be ranked
+     */
+    long getCacheMisses();
+
+    /**
+     * @return share of the queries answered from the query cache, between 0 and 1
+     */
+    double getCacheHitRate();
+}
@@ -1,340 +1,528 @@
 package ch.heigvd.dai.retrivium.server;
 
-import ch.heigvd.dai.bm25.BM25;
-import ch.heigvd.dai.bm25.utils.RankingResult;
-import ch.heigvd.dai.retrivium.client.ClientMessage;
-import ch.heigvd.dai.retrivium.utils.FileUtils;
+import ch.heigvd.dai.retrivium.analysis.Analyzer;
+import ch.heigvd.dai.retrivium.index.DirectoryWatcher;
+import ch.heigvd.dai.retrivium.index.IndexStore;
+import ch.heigvd.dai.retrivium.index.MergeScheduler;
+import ch.heigvd.dai.retrivium.index.ShardedIndex;
+import ch.heigvd.dai.retrivium.index.SharedIndex;
+import ch.heigvd.dai.retrivium.replication.ReplicationClient;
+import ch.heigvd.dai.retrivium.replication.ReplicationServer;
+import ch.heigvd.dai.retrivium.utils.Log;
+import ch.heigvd.dai.retrivium.utils.ProtocolInputStream;
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.time.Duration;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
-/** Concurrent TCP search server that uses BM25 library */
+/**
+ * Concurrent TCP search server over the documents of a directory. Documents are ranked with BM25 by
+ * its own {@link ShardedIndex}, kept up to date as files change, the BM25 library only being used
+ * for its tokenizer by the default {@link Analyzer}.
+ */
 public class TcpServer {
+    /** Quiet time after the last file system event before changes are indexed */
+    private static final long WATCH_DEBOUNCE_MILLIS = 200;
+
     private final int port;
+    private final Engine engine;
     private final char lineFeed;
     private final File targetDir;
+    private final SharedIndex index;
+    private final IndexStore store;
+    private final ServerMetrics metrics;
+    private final ServerLimits limits;
+
+    /** Permits of the queries executed at once, shared by every connection */
+    private final Semaphore searches;
+
+    /** Port replicas connect to, zero if the changes are not shipped */
+    private int replicationPort;
+
+    /** Replication address of the primary followed, null if this server is not a replica */
+    private InetSocketAddress primary;
+
+    /** Share of one CPU the merges of index segments may use */
+    private int mergeCpuPercent;
+
+    /**
+     * Constructs {@code TcpServer} with the {@link ServerLimits#DEFAULTS default limits}
+     *
+     * @param port number for port the server communicates
+     * @param targetDir file to search through
+     * @param indexDir directory where the index is persisted, null to rebuild it on every start
+     * @param shards number of shards the index is split in
+     * @param engine how connections are served
+     * @param lineFeed content of the message
+     */
+    public TcpServer(
+            int port, File targetDir, File indexDir, int shards, Engine engine, char lineFeed) {
+        this(
+                port,
+                targetDir,
+                indexDir,
+                shards,
+                Analyzer.parse(Analyzer.DEFAULT_SPEC),
+                engine,
+                ServerLimits.DEFAULTS,
+                lineFeed);
+    }
 
     /**
      * Constructs {@code TcpServer}
      *
      * @param port number for port the server communicates
      * @param targetDir file to search through
+     * @param indexDir directory where the index is persisted, null to rebuild it on every start
+     * @param shards number of shards the index is split in
+     * @param analyzer splitting documents and queries into terms
+     * @param engine how connections are served
+     * @param limits on connections, queries and request lines
      * @param lineFeed content of the message
      */
-    public TcpServer(int port, File targetDir, char lineFeed) {
+    public TcpServer(
+            int port,
+            File targetDir,
+            File indexDir,
+            int shards,
+            Analyzer analyzer,
+            Engine engine,
+            ServerLimits limits,
+            char lineFeed) {
         this.port = port;
+        this.engine = engine;
         this.lineFeed = lineFeed;
         this.targetDir = targetDir;
+        this.index = new SharedIndex(targetDir, shards, analyzer);
+        this.store = indexDir == null ? null : new IndexStore(indexDir);
+        this.metrics = new ServerMetrics(index);
+        this.limits = limits;
+        this.searches = new Semaphore(limits.maxInFlightQueries());
+        this.mergeCpuPercent = MergeScheduler.DEFAULT_CPU_PERCENT;
     }
 
-    /** Starts the server and waits for clients to connect */
+    /**
+     * @return metrics of the server, recorded from the time it has been constructed
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Ships every change of the index to the replicas that connect to the given port. To be called
+     * before {@link TcpServer#launch()}.
+     *
+     * @param replicationPort port replicas connect to
+     */
+    public void serveReplicas(int replicationPort) {
+        this.replicationPort = replicationPort;
+    }
+
+    /**
+     * Makes this server a read-only replica that follows the index of a primary : its documents are
+     * the ones of the primary, they are neither uploaded by clients nor watched on disk. To be
+     * called before {@link TcpServer#launch()}.
+     *
+     * @param primary address the primary ships its changes from
+     */
+    public void followPrimary(InetSocketAddress primary) {
+        this.primary = primary;
+    }
+
+    /**
+     * Limits the share of one CPU used to merge the segments of the index in the background. To be
+     * called before {@link TcpServer#launch()}.
+     *
+     * @param cpuPercent share of one CPU, from 1 to 100
+     */
+    public void throttleMerges(int cpuPercent) {
+        this.mergeCpuPercent = cpuPercent;
+    }
+
+    /**
+     * Opens the persisted index if there is a usable one and catches up with the changes made to
+     * {@link TcpServer#targetDir} since it was saved, otherwise indexes everything from scratch
+     */
+    private void openIndex() {
+        if (store != null) {
+            try {
+                ShardedIndex loaded = index.load(store);
+                Log.info(
+                        "Loaded %d documents from %s",
+                        loaded.getNumOfDocs(), store.getSegmentFile().getPath());
+
+                int changed = index.refreshAll();
+                if (changed > 0) {
+                    Log.info("Re-indexed %d documents changed since last save", changed);
+                    saveIndex();
+                }
+                return;
+            } catch (IOException e) {
+                Log.warn("Cannot use persisted index (%s), rebuilding", e.getMessage());
+            }
+        }
+
+        Log.info("Indexing documents : %s", targetDir.getPath());
+        ShardedIndex built = index.rebuild();
+        Log.info("Indexed %d documents", built.getNumOfDocs());
+        saveIndex();
+    }
+
+    /** Persists the index if an index directory has been configured */
+    private void saveIndex() {
+        if (store == null) {
+            return;
+        }
+        try {
+            index.save(store);
+            Log.info("Saved index to %s", store.getSegmentFile().getPath());
+        } catch (IOException e) {
+            Log.error("Cannot save index : %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Opens or builds the index once, starts watching the target directory for changes, or
+     * following the primary, then starts the server and waits for clients to connect
+     */
     public void launch() {
-        try (ServerSocket serverSocket = new ServerSocket(port);
-                ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
-            System.out.println("[Server] Listening on port " + port);
-            while (!serverSocket.isClosed()) {
-                System.out.println("[Server] Waiting for incoming connection...");
-                Socket clientSocket = serverSocket.accept();
-                executor.submit(new ClientHandler(clientSocket, targetDir, lineFeed));
-                System.out.println(
-                        "[Server] Accepted connection from "
-                                + clientSocket.getInetAddress().getHostName());
+        // Watch before indexing, so that nothing changed in the meantime is missed
+        try (DirectoryWatcher watcher =
+                        primary == null
+                                ? new DirectoryWatcher(index, WATCH_DEBOUNCE_MILLIS)
+                                : null;
+                ServerSocketChannel serverChannel =
+                        ServerSocketChannel.open().bind(new InetSocketAddress(port));
+                ReplicationServer replicationServer =
+                        replicationPort > 0 ? new ReplicationServer(index, replicationPort) : null;
+                ReplicationClient replicationClient =
+                        primary != null ? new ReplicationClient(index, primary) : null;
+                MergeScheduler merger = new MergeScheduler(index, mergeCpuPercent)) {
+            metrics.registerMBeans();
+            openIndex();
+            merger.start();
+            if (watcher != null) {
+                watcher.start();
+            }
+            if (replicationClient != null) {
+                index.setReadOnly(true);
+                replicationClient.start();
+            }
+            if (replicationServer != null) {
+                replicationServer.start();
+                Log.info("Shipping changes to replicas on port %d", replicationPort);
+            }
+            if (store != null) {
+                Runtime.getRuntime().addShutdownHook(new Thread(this::saveIndex));
+            }
+
+            Log.info("Listening on port %d (%s engine)", port, engine);
+            switch (engine) {
+                case BLOCKING -> serveBlocking(serverChannel);
+                case NIO ->
+                        new NioEngine(serverChannel, index, metrics, searches, limits, lineFeed)
+                                .serve();
             }
         } catch (IOException e) {
-            System.err.println("[Server] error : " + e.getMessage());
+            Log.error("error : %s", e.getMessage());
         }
     }
 
     /**
-     * Client handler that uses BM25 algorithm to give the best matching file depending on the query
-     * of the client
+     * Serves every connection on its own virtual thread, up to {@link
+     * ServerLimits#maxConnections()} at once
+     *
+     * @param serverChannel bound channel to accept connections from
+     * @throws IOException if accepting a connection fails
+     */
+    private void serveBlocking(ServerSocketChannel serverChannel) throws IOException {
+        Semaphore connections = new Semaphore(limits.maxConnections());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (serverChannel.isOpen()) {
+                // Sockets backed by a channel let SHOW send files with zero-copy transferTo()
+                Socket clientSocket = serverChannel.accept().socket();
+                if (!connections.tryAcquire()) {
+                    reject(clientSocket);
+                    continue;
+                }
+                // Responses are written in several parts, do not let the last one wait for an ACK
+                clientSocket.setTcpNoDelay(true);
+                // Connections are logged by their handler, without any host name lookup
+                ClientHandler handler =
+                        new ClientHandler(clientSocket, index, metrics, searches, limits, lineFeed);
+                executor.submit(
+                        () -> {
+                            try {
+                                handler.run();
+                            } finally {
+                                connections.release();
+                            }
+                        });
+            }
+        }
+    }
+
+    /**
+     * Answers {@link ServerMessage#BUSY} to a connection above the limit, then closes it
+     *
+     * @param clientSocket socket of the client
+     */
+    private void reject(Socket clientSocket) {
+        metrics.connectionRejected();
+        Log.info(
+                "Too many connections, rejecting %s : %d",
+                clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
+        try (clientSocket) {
+            byte[] busy = (ServerMessage.BUSY.name() + lineFeed).getBytes(StandardCharsets.UTF_8);
+            clientSocket.getOutputStream().write(busy);
+        } catch (IOException ignored) {
+            // The client is turned away anyway
+        }
+    }
+
+    /**
+     * @param timeout to convert
+     * @return the timeout in milliseconds, as sockets take it, zero for no limit
+     */
+    static int toMillis(Duration timeout) {
+        return (int) Math.min(Integer.MAX_VALUE, timeout.toMillis());
+    }
+
+    /**
+     * Client handler that reads the requests of one client with blocking I/O and answers them with
+     * a {@link RequestProcessor}
      */
     static class ClientHandler implements Runnable {
+        /** Output held for pipelined requests above which it is sent without waiting for them */
+        private static final int MAX_HELD_OUTPUT = 1 << 13;
+
         private final Socket clientSocket;
         private final char lineFeed;
-        private final File targetDir;
-        private final BM25 bm25;
+        private final SharedIndex index;
+        private final ServerMetrics metrics;
+        private final Semaphore searches;
+        private final ServerLimits limits;
 
         /**
          * Constructs {@code ClientHandler}
          *
          * @param clientSocket socket of the client
-         * @param targetDir file index for BM25 library
+         * @param index server-wide index shared between all the clients
+         * @param metrics of the server
+         * @param searches permits of the queries executed at once, shared by every connection
+         * @param limits on queries, request lines and silences of the client
          * @param lineFeed command the client sent
          */
-        public ClientHandler(Socket clientSocket, File targetDir, char lineFeed) {
+        public ClientHandler(
+                Socket clientSocket,
+                SharedIndex index,
+                ServerMetrics metrics,
+                Semaphore searches,
+                ServerLimits limits,
+                char lineFeed) {
             this.clientSocket = clientSocket;
             this.lineFeed = lineFeed;
-            this.targetDir = targetDir;
-            bm25 = new BM25();
+            this.index = index;
+            this.metrics = metrics;
+            this.searches = searches;
+            this.limits = limits;
         }
 
         /**
-         * Tests if the given file has been indexed, therefore can be searched through
+         * Sends the content of a file right after a {@link ServerMessage#CONTENT} header. The bytes
+         * go from disk to socket with {@link FileChannel#transferTo}, without being copied to the
+         * heap.
          *
-         * @param filename of the file that we want to test
+         * @param file to send, positioned anywhere
+         * @param size number of bytes announced in the header
+         * @throws IOException if sending fails or the file shrank since the header was written
          */
-        private boolean isFileIndexed(String filename) {
-            for (int i = 0; i < bm25.getIndex().getNumOfDocs(); i++) {
-                if (filename.equals(bm25.getIndex().getDocumentName(i))) {
-                    return true;
+        private void sendFile(FileChannel file, long size) throws IOException {
+            WritableByteChannel out = clientSocket.getChannel();
+            if (out == null) {
+                out = Channels.newChannel(clientSocket.getOutputStream());
+            }
+
+            ByteBuffer fallback = null;
+            long sent = 0;
+            while (sent < size) {
+                long n = file.transferTo(sent, size - sent, out);
+                if (n == 0) {
+                    // transferTo() gives up as soon as the socket is not ready, which happens on
+                    // virtual threads, whose sockets are non-blocking underneath. Writes park.
+                    if (fallback == null) {
+                        fallback = ByteBuffer.allocateDirect(1 << 16);
+                    }
+                    fallback.clear().limit((int) Math.min(fallback.capacity(), size - sent));
+                    n = file.read(fallback, sent);
+                    if (n <= 0) {
+                        throw new IOException("File has been truncated while being sent");
+                    }
+                    fallback.flip();
+                    while (fallback.hasRemaining()) {
+                        out.write(fallback);
+                    }
                 }
+                sent += n;
             }
-            return false;
+            metrics.addBytesOut(sent);
         }
 
-        /** Indexes {@link ClientHandler#targetDir} using BM25 library */
-        private void indexFiles() {
-            File[] files = targetDir.listFiles();
-            if (files == null) {
-                System.out.println(
-                        "[Server] You have provided an empty folder : " + targetDir.getPath());
-                return;
+        /**
+         * Receives the content announced by a request
+         *
+         * @param in to read the content from
+         * @param response asking for the content
+         * @return actual response, once the content has been received
+         * @throws IOException if the connection fails before the whole content has been received
+         */
+        private Response receiveBody(ProtocolInputStream in, Response response) throws IOException {
+            BodySink sink = response.getBodySink();
+            try {
+                in.copyTo(response.getBodyLength(), sink);
+            } catch (IOException e) {
+                sink.abort();
+                throw e;
             }
 
-            ArrayList<String> docNames = new ArrayList<>();
-            ArrayList<String> docs = new ArrayList<>();
-
-            for (File file : files) {
-                if (file.isFile()) {
+            try {
+                return sink.finish();
+            } catch (IOException e) {
+                Log.warn("Cannot store content : %s", e.getMessage());
+                return Response.of(ServerMessage.INVALID.name());
+            }
+        }
 
-                    docNames.add(file.getName());
-                    try {
-                        String content = FileUtils.readFile(file);
-                        docs.add(content);
-                    } catch (IOException e) {
-                        System.out.println("[Server] Cannot read a file " + file.getName());
-                        System.out.println("Skipping");
-                    }
+        /**
+         * Receives the lines announced by a request, handing each one over as soon as it has been
+         * read. Output written meanwhile is sent whenever enough of it is held.
+         *
+         * @param in to read the lines from
+         * @param response asking for the lines
+         * @param out output of the connection
+         * @param socketOut to send the output to
+         * @return actual response, once the lines have been received
+         * @throws IOException if the connection fails before every line has been received
+         */
+        private Response receiveLines(
+                ProtocolInputStream in,
+                Response response,
+                ResponseBuffer out,
+                OutputStream socketOut)
+                throws IOException {
+            LinesSink sink = response.getLinesSink();
+            for (int i = 0; i < response.getRequestLines(); i++) {
+                int length = in.readRawLine();
+                if (length < 0) {
+                    throw new EOFException("Connection closed in the middle of a request");
+                }
+                sink.line(in.getRawLine(), length);
+                if (out.remaining() >= MAX_HELD_OUTPUT) {
+                    out.writeTo(socketOut);
                 }
             }
-
-            bm25.buildIndex(bm25.tokenize(docs), docNames);
+            return sink.finish();
         }
 
         @Override
         public void run() {
-            try (clientSocket;
-                    BufferedReader br =
-                            new BufferedReader(
-                                    new InputStreamReader(
-                                            clientSocket.getInputStream(),
-                                            StandardCharsets.UTF_8));
-                    BufferedWriter bw =
-                            new BufferedWriter(
-                                    new OutputStreamWriter(
-                                            clientSocket.getOutputStream(),
-                                            StandardCharsets.UTF_8))) {
-
-                String clientInfo =
-                        clientSocket.getInetAddress().getHostAddress()
-                                + " : "
-                                + clientSocket.getPort();
-
-                System.out.println("[Server] Client connected from " + clientInfo);
-
-                System.out.printf(
-                        "[Server] [%s] Indexing documents : %s\n", clientInfo, targetDir.getPath());
-                indexFiles();
-
-                while (!clientSocket.isClosed()) {
-                    String clientRequest = br.readLine();
-
-                    if (clientRequest == null) {
-                        System.out.printf("[Server] Client %s disconnected\n", clientInfo);
-                        break;
-                    }
-                    System.out.println(
-                            "[Server] received command "
-                                    + clientRequest
-                                    + " from client : "
-                                    + clientInfo);
-
-                    String[] clientRequestParts =
-                            clientRequest.split(" ", 2); // Cannot resolve symbol 'clientRequest'
-
-                    ClientMessage command = null;
-                    try {
-                        command = ClientMessage.valueOf(clientRequestParts[0]);
-                    } catch (Exception e) {
-                        System.err.printf("[Server] [%s] Error: %s\n", clientInfo, e.getMessage());
-                    }
-
-                    String response = null;
-
-                    if (targetDir.listFiles() != null
-                            && targetDir.listFiles().length != bm25.getIndex().getNumOfDocs()) {
-                        System.out.println(
-                                "[Sever] Changes in file system have been detected."
-                                        + " Re-indexing...");
-                        indexFiles();
-                    }
-
-                    switch (command) {
-                        case LIST -> {
-                            // access to the files
-                            String[] fileNames = new String[bm25.getIndex().getNumOfDocs()];
-                            // store files name into array
-
-                            for (int i = 0; i < fileNames.length; i++) {
-                                fileNames[i] = bm25.getIndex().getDocumentName(i);
-                            }
-
-                            if (fileNames.length == 0) {
-                                response = ServerMessage.NOTHING_INDEXED.name();
-                            } else {
-                                response =
-                                        ServerMessage.FILES.name()
-                                                + " "
-                                                + String.join(" ", fileNames);
-                            }
+            metrics.connectionOpened();
+            String clientInfo =
+                    clientSocket.getInetAddress().getHostAddress() + " : " + clientSocket.getPort();
+            int idleTimeout = toMillis(limits.idleTimeout());
+            int readTimeout = toMillis(limits.readTimeout());
 
-                            System.out.println(
-                                    "[Server] Sending list of documents to " + clientInfo);
+            try (clientSocket;
+                    ProtocolInputStream in =
+                            new ProtocolInputStream(
+                                    metrics.countIn(clientSocket.getInputStream()),
+                                    limits.maxLineLength());
+                    OutputStream socketOut = metrics.countOut(clientSocket.getOutputStream())) {
+
+                Log.info("Client connected from %s", clientInfo);
+                ResponseBuffer out = new ResponseBuffer(lineFeed);
+                RequestProcessor processor =
+                        new RequestProcessor(
+                                clientInfo,
+                                index,
+                                out,
+                                metrics,
+                                searches,
+                                limits.maxRequestBytes());
+
+                try {
+                    while (!clientSocket.isClosed()) {
+                        // Between two requests the client may stay silent longer than within one
+                        clientSocket.setSoTimeout(idleTimeout);
+                        if (!in.await()) {
+                            Log.info("Client %s disconnected", clientInfo);
+                            break;
                         }
+                        clientSocket.setSoTimeout(readTimeout);
+                        int length = in.readRawLine();
 
-                        case SHOW -> {
-                            String filename = clientRequestParts[1];
-
-                            if (isFileIndexed(filename)) {
-                                File targetFile = new File(targetDir, filename);
-
-                                StringBuilder content = new StringBuilder();
-                                try (FileReader fileReader =
-                                                new FileReader(targetFile, StandardCharsets.UTF_8);
-                                        BufferedReader fileBuf = new BufferedReader(fileReader)) {
-                                    int c;
-                                    while ((c = fileBuf.read()) != -1) {
-                                        content.append((char) c);
-                                    }
-                                } catch (IOException e) {
-                                    System.out.println(
-                                            "[Server] Impossible to read : "
-                                                    + targetFile.getPath()
-                                                    + " for "
-                                                    + clientInfo);
-                                }
-
-                                response =
-                                        String.format(
-                                                "%s %s", ServerMessage.CONTENT.name(), content);
-                            } else {
-                                response = ServerMessage.FILE_DOESNT_EXIST.name();
-                            }
-
-                            System.out.println("[Server] Sending show document to " + clientInfo);
+                        Response response = processor.handle(in.getRawLine(), length);
+                        if (response.getLinesSink() != null) {
+                            response = receiveLines(in, response, out, socketOut);
+                        }
+                        if (response.getBodySink() != null) {
+                            response = receiveBody(in, response);
                         }
 
-                        case QUERY -> {
-                            String[] payload = clientRequestParts[1].split(" ", 2);
-
-                            if (payload.length != 2) {
-                                response = ServerMessage.INVALID.name();
-                                System.out.println(
-                                        "[Server] query payload is ill-formed from " + clientInfo);
-                                break;
-                            }
-
-                            try {
-                                int topK = Integer.parseInt(payload[0]);
-                                String query = payload[1];
-
-                                if (topK > 0 && !query.isEmpty()) {
-                                    ArrayList<RankingResult> results =
-                                            bm25.retrieveTopK(bm25.tokenize(query), topK);
-                                    String[] filenames = new String[results.size()];
-
-                                    for (int i = 0; i < filenames.length; i++) {
-                                        int docIdx = results.get(i).getDocIndex();
-                                        filenames[i] = bm25.getIndex().getDocumentName(docIdx);
-                                    }
-
-                                    if (results.isEmpty()) {
-                                        response = ServerMessage.NOTHING_RELEVANT.name();
-                                    } else {
-                                        response =
-                                                String.format(
-                                                        "%s %s",
-                                                        ServerMessage.RELEVANT,
-                                                        String.join(" ", filenames));
-                                    }
-
-                                } else {
-                                    response = ServerMessage.INVALID.name();
-                                    System.out.println(
-                                            "[Server] ["
-                                                    + clientInfo
-                                                    + "] query is empty or <k> is not positive");
-                                }
-                            } catch (NumberFormatException e) {
-                                response = ServerMessage.INVALID.name();
-                                System.out.println(
-                                        "[Server] [" + clientInfo + "] query does not contain <k>");
+                        if (response.getHeader() != null) {
+                            out.line(response.getHeader());
+                        }
+                        if (response.getLines() != null) {
+                            for (String line : response.getLines()) {
+                                out.line(line);
                             }
-
-                            System.out.println("[Server] Sending query document to " + clientInfo);
                         }
 
-                        case UPLOAD -> {
-                            String[] payload = clientRequestParts[1].split(" ", 2);
-                            String docName = payload[0];
-                            String doc = payload[1];
-                            try {
-
-                                File newFile = new File(targetDir, docName);
-                                try (Writer fileWriter =
-                                                new FileWriter(newFile, StandardCharsets.UTF_8);
-                                        BufferedWriter bufDoc = new BufferedWriter(fileWriter)) {
-                                    bufDoc.write(doc);
-                                }
-
-                                indexFiles();
-                                response = ServerMessage.UPLOADED.name() + " " + docName;
-                                System.out.println(
-                                        "[Server] Sending upload document "
-                                                + docName
-                                                + " to "
-                                                + clientInfo);
-
-                            } catch (IOException e) {
-                                System.err.println("[Server] error : " + e.getMessage());
-                            }
+                        // Pipelined requests already received are answered before flushing, so
+                        // that their responses share packets
+                        if (response.getFile() != null
+                                || response.isClose()
+                                || in.available() == 0
+                                || out.remaining() >= MAX_HELD_OUTPUT) {
+                            out.writeTo(socketOut);
                         }
 
-                        case QUIT -> {
-                            System.out.println(
-                                    "[Server] Client " + clientInfo + "requests disconnect");
-                            System.out.println(
-                                    "[Server] Disconnected Client "
-                                            + clientSocket.getInetAddress().getHostAddress());
+                        if (response.getFile() != null) {
+                            try (FileChannel file = response.getFile()) {
+                                sendFile(file, response.getFileSize());
+                            }
                         }
+                        Log.debug("Sent response to client : %s", clientInfo);
 
-                        case null, default -> {
-                            System.out.println(
-                                    "[Server] Unknown command sent by client ["
-                                            + clientInfo
-                                            + "], reply with "
-                                            + ServerMessage.INVALID
-                                            + ".");
-                            response =
-                                    ServerMessage.INVALID + " Unknown command. Please try again.";
+                        if (response.isClose()) {
+                            break;
                         }
                     }
-
-                    bw.write(response + lineFeed);
-                    bw.flush();
-                    System.out.println(
-                            "[Server] Sent response to client : "
-                                    + clientSocket.getInetAddress().getHostAddress());
+                } catch (ProtocolException e) {
+                    // What follows cannot be told apart from the next request, give up on it
+                    Log.info("%s from %s, closing connection", e.getMessage(), clientInfo);
+                    out.line(ServerMessage.INVALID.name());
+                    out.writeTo(socketOut);
                 }
 
+            } catch (SocketTimeoutException e) {
+                Log.info("Client %s timed out, closing connection", clientInfo);
+                metrics.connectionTimedOut();
             } catch (IOException e) {
-                System.err.println("[Server] IO exception: " + e.getMessage());
-                System.out.println("[Server] Terminating ...");
+                Log.warn("IO exception: %s, terminating connection", e.getMessage());
+            } finally {
+                metrics.connectionClosed();
             }
         }
     }
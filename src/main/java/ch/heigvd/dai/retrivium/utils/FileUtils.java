@@ -1,32 +1,88 @@
 package ch.heigvd.dai.retrivium.utils;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
 
 /** Helper functions for manipulations with files */
 public class FileUtils {
+    /** Largest file read at once, the content of a larger one does not fit in an array */
+    private static final long MAX_READ_SIZE = Integer.MAX_VALUE - 8;
+
+    /** Default number of chars handed at once by {@link FileUtils#forEachChunk} */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
 
     /**
-     * Reads the content of a file
+     * Reads the content of a file. The bytes are read at once, then decoded into the string.
+     * Malformed UTF-8 sequences are replaced rather than rejected. Files too large to be held in
+     * memory are better streamed with {@link FileUtils#forEachChunk}.
      *
      * @param file to read from
      * @return the content of the file
-     * @throws IOException if error occur while reading file
+     * @throws IOException if error occur while reading file, or if it is larger than a string can
+     *     hold
      */
     public static String readFile(File file) throws IOException {
-        StringBuilder content = new StringBuilder();
+        checkReadable(file, file.length());
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a file through a memory mapping : the bytes are not copied to the heap, but the
+     * decoded chars are, in a buffer as large as the content
+     *
+     * @param file to read from
+     * @return the content of the file
+     * @throws IOException if error occur while reading file, or if it is larger than a mapping can
+     *     hold
+     */
+    public static CharBuffer mapFile(File file) throws IOException {
+        MappedByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            checkReadable(file, channel.size());
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return StandardCharsets.UTF_8
+                .newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                .decode(bytes);
+    }
 
-        try (FileReader fileReader = new FileReader(file.getPath(), StandardCharsets.UTF_8);
-                BufferedReader fileBuf = new BufferedReader(fileReader)) {
-            int c;
-            while ((c = fileBuf.read()) != -1) {
-                content.append((char) c);
-            }
+    /**
+     * @param file to read at once
+     * @param size of the file
+     * @throws IOException if the file is too large to be read at once
+     */
+    private static void checkReadable(File file, long size) throws IOException {
+        if (size > MAX_READ_SIZE) {
+            throw new IOException(
+                    "File is too large to be read at once : " + file.getPath() + " (" + size + ")");
         }
+    }
 
-        return content.toString();
+    /**
+     * Streams the content of a file in chunks of at most {@code chunkSize} chars, see {@link
+     * TextChunker}. The whole content is never held in memory at once.
+     *
+     * @param file to read from
+     * @param chunkSize maximal number of chars per chunk
+     * @param consumer receives each chunk, the chunk is only valid during the call
+     * @throws IOException if error occur while reading file
+     */
+    public static void forEachChunk(File file, int chunkSize, Consumer<CharSequence> consumer)
+            throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath());
+                TextChunker chunker = new TextChunker(chunkSize, consumer)) {
+            in.transferTo(chunker);
+        }
     }
 }
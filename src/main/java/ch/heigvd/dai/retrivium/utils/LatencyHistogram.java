@@ -0,0 +1,142 @@
+package ch.heigvd.dai.retrivium.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies with a bounded relative error, in the spirit of HdrHistogram.
+ *
+ * <p>Values below 128 are counted exactly. Above, every power of two is split in 64 buckets of the
+ * same width, so a recorded value is known within 1.6% whatever its magnitude, with a fixed
+ * footprint of about 29 KiB.
+ *
+ * <p>A histogram is thread-safe and recording takes no lock, so the server records every request
+ * into shared histograms. Percentiles read while values are being recorded may miss the latest
+ * ones. The load generator still gives each connection its own histogram and {@link
+ * LatencyHistogram#add(LatencyHistogram) adds} them up at the end, to keep them uncontended.
+ */
+public class LatencyHistogram {
+    /** Buckets per power of two, as a power of two */
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Values below this are counted exactly */
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final LongAdder totalCount;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    /** Constructs an empty {@code LatencyHistogram} */
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(bucketOf(Long.MAX_VALUE) + 1);
+        this.totalCount = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * @param value to record, not negative
+     * @return index of the bucket counting the value
+     */
+    private static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * @param bucket index of a bucket
+     * @return highest value counted by the bucket
+     */
+    private static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = bucket - ((long) shift << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a value, negative values are counted as zero
+     *
+     * @param value to record
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(v));
+        totalCount.increment();
+        sum.add(v);
+        // Only contended while the maximum keeps growing
+        if (v > max.get()) {
+            max.accumulateAndGet(v, Math::max);
+        }
+    }
+
+    /**
+     * Adds every value recorded by another histogram to this one
+     *
+     * @param other histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.add(other.totalCount.sum());
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getTotalCount() {
+        return totalCount.sum();
+    }
+
+    /**
+     * @return largest recorded value, exact
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return mean of the recorded values, exact
+     */
+    public double getMean() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return value that {@code percentile} percent of the recorded values do not exceed, 0 if
+     *     nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.sum();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
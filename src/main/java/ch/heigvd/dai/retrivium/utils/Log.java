@@ -0,0 +1,282 @@
+package ch.heigvd.dai.retrivium.utils;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger of the server.
+ *
+ * <p>Logging a message only puts it in a bounded ring buffer, without taking any lock : a single
+ * background thread formats the messages and writes them, many at a time, to the standard output,
+ * or to the standard error from {@link Level#WARN} on. When the buffer is full, messages are
+ * dropped and counted rather than holding up the caller.
+ *
+ * <p>Messages below the {@link Log#setLevel(Level) level} are discarded before anything is
+ * formatted. Every message logged per request is at {@link Level#DEBUG}, which is off by default.
+ */
+public final class Log {
+    /** Severity of a message, from the most to the least verbose */
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    /** Number of messages the buffer holds, a power of two */
+    private static final int CAPACITY = 1 << 13;
+
+    /** Size of the text written at once by the appender */
+    private static final int BATCH_SIZE = 1 << 13;
+
+    /** Time the appender is given to write what is left when the JVM shuts down */
+    private static final long FLUSH_TIMEOUT_MILLIS = 1000;
+
+    private static final int LEVEL_WIDTH = 5;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile Level level = Level.INFO;
+
+    private static final RingBuffer buffer = new RingBuffer(CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Thread appender;
+
+    /** True while the appender waits for messages, the next one has to wake it up */
+    private static volatile boolean idle;
+
+    /** Number of messages written or dropped by the appender, for {@link Log#flush()} */
+    private static volatile long done;
+
+    static {
+        appender = new Thread(Log::append, "log-appender");
+        appender.setDaemon(true);
+        appender.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+    }
+
+    private Log() {}
+
+    /** Message waiting in the buffer, formatted by the appender */
+    private record Event(long timeMillis, Level level, String format, Object[] args) {}
+
+    /**
+     * @param level below which messages are discarded
+     */
+    public static void setLevel(Level level) {
+        Log.level = level;
+    }
+
+    /**
+     * @param messageLevel level of a message
+     * @return true if messages of this level are logged, so that building an expensive one can be
+     *     skipped otherwise
+     */
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    /**
+     * Logs a message about a single request, off by default
+     *
+     * @param format of the message, as for {@link String#format}
+     * @param args referenced by the format, formatted later on, so they must not change
+     */
+    public static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    /**
+     * Logs a message about the life of the server or of a connection
+     *
+     * @param format of the message, as for {@link String#format}
+     * @param args referenced by the format, formatted later on, so they must not change
+     */
+    public static void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    /**
+     * Logs a problem that the server works around
+     *
+     * @param format of the message, as for {@link String#format}
+     * @param args referenced by the format, formatted later on, so they must not change
+     */
+    public static void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    /**
+     * Logs a failure
+     *
+     * @param format of the message, as for {@link String#format}
+     * @param args referenced by the format, formatted later on, so they must not change
+     */
+    public static void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    private static void log(Level messageLevel, String format, Object[] args) {
+        if (messageLevel.compareTo(level) < 0) {
+            return;
+        }
+        Event event = new Event(System.currentTimeMillis(), messageLevel, format, args);
+        if (!buffer.offer(event)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (idle) {
+            LockSupport.unpark(appender);
+        }
+    }
+
+    /** Waits, for a bounded time, until every message logged so far has been written */
+    public static void flush() {
+        long logged = buffer.claimed();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MILLIS);
+        while (done < logged && System.nanoTime() < deadline) {
+            LockSupport.unpark(appender);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /** Body of the appender thread : writes the messages as they come */
+    private static void append() {
+        StringBuilder out = new StringBuilder(BATCH_SIZE);
+        StringBuilder err = new StringBuilder();
+        long written = 0;
+
+        while (true) {
+            Event event = buffer.poll();
+            if (event == null) {
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    long now = System.currentTimeMillis();
+                    format(err, now, Level.WARN, "%d log messages lost", lost);
+                }
+                write(System.out, out);
+                write(System.err, err);
+                done = written;
+
+                // Going idle then checking again, a message logged in between wakes the appender
+                idle = true;
+                if (buffer.isEmpty()) {
+                    LockSupport.park();
+                }
+                idle = false;
+                continue;
+            }
+
+            StringBuilder target = event.level().compareTo(Level.WARN) >= 0 ? err : out;
+            format(target, event.timeMillis(), event.level(), event.format(), event.args());
+            written++;
+            if (target.length() >= BATCH_SIZE) {
+                write(target == out ? System.out : System.err, target);
+            }
+        }
+    }
+
+    private static void format(
+            StringBuilder target, long timeMillis, Level level, String format, Object... args) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(timeMillis), target);
+        target.append(' ').append(level);
+        // Messages line up whatever their level
+        target.repeat(' ', LEVEL_WIDTH - level.name().length()).append(" [Server] ");
+        try {
+            target.append(args.length == 0 ? format : String.format(format, args));
+        } catch (RuntimeException e) {
+            // A broken message must not stop the appender
+            target.append(format);
+        }
+        target.append(System.lineSeparator());
+    }
+
+    private static void write(PrintStream stream, StringBuilder text) {
+        if (!text.isEmpty()) {
+            stream.print(text);
+            stream.flush();
+            text.setLength(0);
+        }
+    }
+
+    /**
+     * Bounded queue for many producers and a single consumer, after the one of Dmitry Vyukov.
+     * Producers claim a slot with a compare-and-set on the tail, then publish it through the
+     * sequence number of the slot, so neither side ever takes a lock.
+     */
+    private static final class RingBuffer {
+        private final Object[] slots;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail;
+
+        /** Next slot to read, only used by the consumer */
+        private long head;
+
+        RingBuffer(int capacity) {
+            this.slots = new Object[capacity];
+            this.sequences = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            this.tail = new AtomicLong();
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        /**
+         * @param event to add
+         * @return false if the buffer is full
+         */
+        boolean offer(Event event) {
+            while (true) {
+                long position = tail.get();
+                int slot = (int) position & mask;
+                long lag = sequences.get(slot) - position;
+                if (lag < 0) {
+                    return false;
+                }
+                if (lag == 0 && tail.compareAndSet(position, position + 1)) {
+                    slots[slot] = event;
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return oldest event, null if there is none
+         */
+        Event poll() {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                return null;
+            }
+            Event event = (Event) slots[slot];
+            slots[slot] = null;
+            sequences.set(slot, head + slots.length);
+            head++;
+            return event;
+        }
+
+        /**
+         * @return true if no event is ready to be read
+         */
+        boolean isEmpty() {
+            return sequences.get((int) head & mask) != head + 1;
+        }
+
+        /**
+         * @return number of events added so far, some of them possibly not published yet
+         */
+        long claimed() {
+            return tail.get();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package ch.heigvd.dai.retrivium.utils;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Buffered input stream for the protocol, which mixes line-delimited UTF-8 messages with raw
+ * payloads of a known length. Unlike a {@link java.io.BufferedReader}, it never decodes more than
+ * the current line, so the bytes following a header can still be read as they are.
+ */
+public class ProtocolInputStream extends FilterInputStream {
+    private final byte[] buf;
+    private final int maxLineLength;
+    private int pos;
+    private int limit;
+    private byte[] line;
+
+    /**
+     * Constructs {@code ProtocolInputStream}
+     *
+     * @param in stream to read from, usually the one of a socket
+     */
+    public ProtocolInputStream(InputStream in) {
+        this(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructs {@code ProtocolInputStream} that refuses lines above a given length, so that a
+     * peer cannot make it buffer a line without end
+     *
+     * @param in stream to read from, usually the one of a socket
+     * @param maxLineLength number of bytes of a line, terminator included
+     */
+    public ProtocolInputStream(InputStream in, int maxLineLength) {
+        super(in);
+        this.buf = new byte[1 << 16];
+        this.maxLineLength = maxLineLength;
+        this.line = new byte[256];
+    }
+
+    private boolean fill() throws IOException {
+        pos = 0;
+        limit = Math.max(0, in.read(buf));
+        return limit > 0;
+    }
+
+    /**
+     * Reads a line terminated by {@code \n} (an optional {@code \r} before it is dropped)
+     *
+     * @return the line without its terminator, or null at the end of the stream
+     * @throws IOException if reading fails, {@link ProtocolException} if the line is too long
+     */
+    public String readLine() throws IOException {
+        int length = readRawLine();
+        return length < 0 ? null : new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a line like {@link ProtocolInputStream#readLine()}, but leaves it undecoded in {@link
+     * ProtocolInputStream#getRawLine()}, so that nothing is allocated per line
+     *
+     * @return number of bytes of the line without its terminator, or -1 at the end of the stream
+     * @throws IOException if reading fails, {@link ProtocolException} if the line is too long
+     */
+    public int readRawLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (pos == limit && !fill()) {
+                return length == 0 ? -1 : stripCarriageReturn(length);
+            }
+
+            int start = pos;
+            while (pos < limit && buf[pos] != '\n') {
+                pos++;
+            }
+
+            int chunk = pos - start;
+            if (length + chunk >= maxLineLength) {
+                throw new ProtocolException("Line longer than " + maxLineLength + " bytes");
+            }
+            if (length + chunk > line.length) {
+                line = Arrays.copyOf(line, Math.max(length + chunk, line.length * 2));
+            }
+            System.arraycopy(buf, start, line, length, chunk);
+            length += chunk;
+
+            if (pos < limit) {
+                pos++; // Skip '\n'
+                return stripCarriageReturn(length);
+            }
+        }
+    }
+
+    /**
+     * Waits until something can be read, without consuming it
+     *
+     * @return false at the end of the stream
+     * @throws IOException if reading fails
+     */
+    public boolean await() throws IOException {
+        return pos < limit || fill();
+    }
+
+    /**
+     * @return bytes of the last line read by {@link ProtocolInputStream#readRawLine()}, only valid
+     *     until the next read
+     */
+    public byte[] getRawLine() {
+        return line;
+    }
+
+    private int stripCarriageReturn(int length) {
+        return length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+    }
+
+    /**
+     * Copies exactly {@code length} bytes of payload to the given stream
+     *
+     * @param length number of bytes to copy
+     * @param out destination
+     * @throws IOException if reading or writing fails, {@link EOFException} if the stream ends
+     *     before the whole payload has been read
+     */
+    public void copyTo(long length, OutputStream out) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            if (pos == limit && !fill()) {
+                throw new EOFException(
+                        "Stream ended " + remaining + " bytes before end of payload");
+            }
+            int chunk = (int) Math.min(remaining, limit - pos);
+            out.write(buf, pos, chunk);
+            pos += chunk;
+            remaining -= chunk;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == limit) {
+            // Large reads go straight to the underlying stream
+            if (len >= buf.length) {
+                return in.read(b, off, len);
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int chunk = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, chunk);
+        pos += chunk;
+        return chunk;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (pos == limit) {
+            return in.skip(n);
+        }
+        int chunk = (int) Math.min(n, limit - pos);
+        pos += chunk;
+        return chunk;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + in.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
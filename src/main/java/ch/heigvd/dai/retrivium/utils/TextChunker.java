@@ -0,0 +1,108 @@
+package ch.heigvd.dai.retrivium.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Output stream that decodes the UTF-8 bytes written to it and hands the text out in chunks of at
+ * most {@code chunkSize} chars. Chunks are cut right after a whitespace whenever possible, so a
+ * word never spans two chunks unless it is longer than a whole chunk. Malformed input is replaced
+ * rather than rejected. The last chunk is handed out on {@link TextChunker#close()}.
+ */
+public class TextChunker extends OutputStream {
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes;
+    private final CharBuffer chars;
+    private final Consumer<CharSequence> consumer;
+    private boolean closed;
+
+    /**
+     * Constructs {@code TextChunker}
+     *
+     * @param chunkSize maximal number of chars per chunk
+     * @param consumer receives each chunk, the chunk is only valid during the call
+     */
+    public TextChunker(int chunkSize, Consumer<CharSequence> consumer) {
+        this.decoder =
+                StandardCharsets.UTF_8
+                        .newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocate(8192);
+        this.chars = CharBuffer.allocate(chunkSize);
+        this.consumer = consumer;
+        this.closed = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Chunker is closed");
+        }
+        while (len > 0) {
+            int n = Math.min(len, bytes.remaining());
+            bytes.put(b, off, n);
+            off += n;
+            len -= n;
+            if (!bytes.hasRemaining()) {
+                decode(false);
+            }
+        }
+    }
+
+    private void decode(boolean endOfInput) {
+        bytes.flip();
+        while (decoder.decode(bytes, chars, endOfInput).isOverflow()) {
+            emit(false);
+        }
+        if (endOfInput) {
+            while (decoder.flush(chars).isOverflow()) {
+                emit(false);
+            }
+        }
+        // An incomplete sequence at the end stays for the next write
+        bytes.compact();
+    }
+
+    private void emit(boolean last) {
+        int filled = chars.position();
+        int cut = filled;
+        if (!last) {
+            while (cut > 0 && !Character.isWhitespace(chars.get(cut - 1))) {
+                cut--;
+            }
+            if (cut == 0) {
+                // No whitespace at all, at least keep surrogate pairs together
+                cut = Character.isHighSurrogate(chars.get(filled - 1)) ? filled - 1 : filled;
+            }
+        }
+
+        if (cut > 0) {
+            consumer.accept(CharBuffer.wrap(chars.array(), 0, cut));
+        }
+        chars.flip();
+        chars.position(cut);
+        chars.compact();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        decode(true);
+        emit(true);
+    }
+}
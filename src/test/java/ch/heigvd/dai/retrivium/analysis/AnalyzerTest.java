@@ -0,0 +1,59 @@
+package ch.heigvd.dai.retrivium.analysis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class AnalyzerTest {
+
+    @Test
+    void defaultIsTheLibraryTokenizerAlone() {
+        assertEquals("bm25", Analyzer.parse(Analyzer.DEFAULT_SPEC).getSpec());
+    }
+
+    @Test
+    void canonicalSpecStartsWithItsSplitter() {
+        assertEquals("standard,lowercase,stop", Analyzer.parse(" lowercase , stop").getSpec());
+        assertEquals("standard,lowercase", Analyzer.parse("standard,lowercase").getSpec());
+        assertEquals("bm25,stem", Analyzer.parse("bm25,stem").getSpec());
+        assertEquals("standard,ngram:3-3", Analyzer.parse("ngram:3").getSpec());
+        assertEquals("standard,ngram:2-4", Analyzer.parse("ngram:2-4").getSpec());
+    }
+
+    @Test
+    void rejectsInvalidSpecs() {
+        for (String spec :
+                List.of(
+                        "unknown",
+                        "lowercase,bm25",
+                        "lowercase,standard",
+                        "lowercase:2",
+                        "ngram",
+                        "ngram:x",
+                        "ngram:2-x")) {
+            assertThrows(IllegalArgumentException.class, () -> Analyzer.parse(spec), spec);
+        }
+    }
+
+    @Test
+    void appliesStepsInOrder() {
+        Analyzer analyzer = Analyzer.parse("lowercase,stop,stem");
+        assertEquals(
+                List.of("connect", "connect"), analyzer.tokenize("The Connected, connections!"));
+        assertEquals(
+                List.of("The", "Connected", "connections"),
+                Analyzer.parse("standard").tokenize("The Connected, connections!"));
+    }
+
+    @Test
+    void onlyStandardDropsLongTerms() {
+        String longTerm = "a".repeat(Analyzer.MAX_TERM_LENGTH + 1);
+        String text = "short " + longTerm;
+
+        assertEquals(List.of("short"), Analyzer.parse("standard").tokenize(text));
+        assertEquals(
+                List.of("short", longTerm), Analyzer.parse(Analyzer.DEFAULT_SPEC).tokenize(text));
+    }
+}
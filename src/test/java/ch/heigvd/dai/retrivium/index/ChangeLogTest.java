@@ -0,0 +1,141 @@
+package ch.heigvd.dai.retrivium.index;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChangeLogTest {
+    @TempDir Path tmp;
+
+    @Test
+    void readsEntriesInOrderFromAPosition() throws InterruptedException {
+        ChangeLog log = new ChangeLog(8);
+        ChangeLog.Position start = log.position();
+        log.append("a");
+        log.append("b");
+        log.append("a");
+
+        ChangeLog.Entries entries = log.read(start.epoch(), start.seq(), 10, 1);
+        assertEquals(start.seq() + 1, entries.firstSeq());
+        assertEquals(List.of("a", "b", "a"), entries.docNames());
+        assertEquals(log.position().seq(), entries.lastSeq());
+
+        ChangeLog.Entries rest = log.read(start.epoch(), start.seq() + 1, 1, 1);
+        assertEquals(List.of("b"), rest.docNames());
+        assertEquals(start.seq() + 2, rest.firstSeq());
+
+        ChangeLog.Entries none = log.read(start.epoch(), entries.lastSeq(), 10, 1);
+        assertTrue(none.docNames().isEmpty());
+    }
+
+    @Test
+    void replicaTooFarBehindStartsFromASnapshot() throws InterruptedException {
+        ChangeLog log = new ChangeLog(4);
+        ChangeLog.Position start = log.position();
+        for (int i = 0; i < 5; i++) {
+            log.append("doc" + i);
+        }
+
+        assertNull(log.read(start.epoch(), start.seq(), 10, 1));
+        assertEquals(
+                List.of("doc1", "doc2", "doc3", "doc4"),
+                log.read(start.epoch(), start.seq() + 1, 10, 1).docNames());
+    }
+
+    @Test
+    void restartStartsANewEpoch() throws InterruptedException {
+        ChangeLog log = new ChangeLog(4);
+        log.append("doc");
+        ChangeLog.Position before = log.position();
+
+        log.restart();
+
+        ChangeLog.Position after = log.position();
+        assertNotEquals(before.epoch(), after.epoch());
+        assertEquals(before.seq(), after.seq());
+        assertNull(log.read(before.epoch(), before.seq(), 10, 1));
+        assertTrue(log.read(after.epoch(), after.seq(), 10, 1).docNames().isEmpty());
+    }
+
+    /**
+     * Applies entries the way a replica does : the current state of each document is read from the
+     * primary, its content if it is still indexed, its removal otherwise
+     */
+    private static void replay(SharedIndex primary, SharedIndex replica, List<String> docNames)
+            throws IOException {
+        for (String docName : docNames) {
+            if (primary.current().contains(docName)) {
+                byte[] content =
+                        Files.readAllBytes(primary.getTargetDir().toPath().resolve(docName));
+                try (UploadSession session = replica.beginUpload(docName)) {
+                    session.write(content, 0, content.length);
+                    session.commit();
+                }
+            } else {
+                replica.deleteFile(docName);
+            }
+        }
+    }
+
+    private static Map<String, Double> scoresOf(SharedIndex index, String query) {
+        Map<String, Double> scores = new HashMap<>();
+        for (ScoredDocument document : index.search(query, 100)) {
+            scores.put(document.getDocName(), document.getScore());
+        }
+        return scores;
+    }
+
+    private static void assertSameIndex(SharedIndex primary, SharedIndex replica) {
+        assertEquals(
+                new HashSet<>(primary.current().getDocumentNames()),
+                new HashSet<>(replica.current().getDocumentNames()));
+        for (String query : new String[] {"apple", "banana cherry", "kiwi"}) {
+            assertEquals(scoresOf(primary, query), scoresOf(replica, query));
+        }
+    }
+
+    @Test
+    void replayingTheLogInOrderReproducesThePrimary() throws IOException, InterruptedException {
+        Path primaryDir = Files.createDirectory(tmp.resolve("primary"));
+        Path replicaDir = Files.createDirectory(tmp.resolve("replica"));
+        SharedIndex primary = new SharedIndex(primaryDir.toFile(), 2);
+        SharedIndex replica = new SharedIndex(replicaDir.toFile(), 3);
+        primary.rebuild();
+        ChangeLog.Position start = primary.getChangeLog().position();
+
+        for (int i = 0; i < 10; i++) {
+            Path file = primaryDir.resolve("doc" + i + ".txt");
+            Files.writeString(file, "apple banana ".repeat(i + 1) + (i % 2 == 0 ? "cherry" : ""));
+            primary.indexFile(file.toFile());
+        }
+        Path replaced = primaryDir.resolve("doc3.txt");
+        Files.writeString(replaced, "kiwi kiwi cherry");
+        primary.indexFile(replaced.toFile());
+        primary.deleteFile("doc5.txt");
+        primary.deleteFile("doc7.txt");
+        Path recreated = primaryDir.resolve("doc7.txt");
+        Files.writeString(recreated, "kiwi apple");
+        primary.indexFile(recreated.toFile());
+
+        ChangeLog.Entries entries =
+                primary.getChangeLog().read(start.epoch(), start.seq(), 1000, 1);
+        assertEquals(14, entries.docNames().size());
+        replay(primary, replica, entries.docNames());
+        assertSameIndex(primary, replica);
+
+        // Entries only name documents, replaying them again changes nothing
+        replay(primary, replica, entries.docNames());
+        assertSameIndex(primary, replica);
+    }
+}
@@ -0,0 +1,140 @@
+package ch.heigvd.dai.retrivium.index;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IndexStoreTest {
+    private static final String ANALYZER = "bm25";
+
+    @TempDir Path tmp;
+
+    /** Index of two shards, each split in several segments, with a removed document */
+    private static ShardedIndex sampleIndex() {
+        ShardedIndex index =
+                new ShardedIndex(
+                        new SegmentedIndex[] {
+                            new SegmentedIndex(List.of(), 8), new SegmentedIndex(List.of(), 8)
+                        });
+        for (int i = 0; i < 40; i++) {
+            index.addDocument(
+                    "doc" + i,
+                    DocumentTerms.of(
+                            List.of("common", "word" + i % 7, "term" + i % 3, "word" + i)));
+        }
+        index.removeDocument("doc5");
+        return index;
+    }
+
+    private static Map<String, FileFingerprint> fingerprintsOf(ShardedIndex index) {
+        Map<String, FileFingerprint> fingerprints = new HashMap<>();
+        for (String name : index.getDocumentNames()) {
+            fingerprints.put(name, new FileFingerprint(name.hashCode(), name.length()));
+        }
+        return fingerprints;
+    }
+
+    @Test
+    void loadsWhatHasBeenSaved() throws IOException {
+        File targetDir = tmp.resolve("docs").toFile();
+        IndexStore store = new IndexStore(tmp.resolve("index").toFile());
+        ShardedIndex index = sampleIndex();
+        Map<String, FileFingerprint> fingerprints = fingerprintsOf(index);
+        assertTrue(index.getNumOfSegments() > index.getNumShards());
+
+        store.save(index, fingerprints, targetDir, ANALYZER);
+        Map<String, FileFingerprint> loadedFingerprints = new HashMap<>();
+        ShardedIndex loaded = store.load(targetDir, ANALYZER, loadedFingerprints);
+
+        assertEquals(fingerprints, loadedFingerprints);
+        assertEquals(index.getNumShards(), loaded.getNumShards());
+        assertEquals(index.getNumOfSegments(), loaded.getNumOfSegments());
+        assertEquals(index.getDocumentNames(), loaded.getDocumentNames());
+        // Every match is asked for, ties may be broken differently once tombstones are purged
+        for (List<String> query :
+                List.of(List.of("common"), List.of("word3", "term1"), List.of("word5", "word12"))) {
+            assertEquals(scoresOf(index.search(query, 100)), scoresOf(loaded.search(query, 100)));
+        }
+    }
+
+    private static Map<String, Double> scoresOf(List<ScoredDocument> ranking) {
+        Map<String, Double> scores = new HashMap<>();
+        for (ScoredDocument doc : ranking) {
+            scores.put(doc.getDocName(), doc.getScore());
+        }
+        return scores;
+    }
+
+    @Test
+    void rejectsCorruptedSegment() throws IOException {
+        File targetDir = tmp.resolve("docs").toFile();
+        IndexStore store = new IndexStore(tmp.resolve("index").toFile());
+        ShardedIndex index = sampleIndex();
+        store.save(index, fingerprintsOf(index), targetDir, ANALYZER);
+
+        try (RandomAccessFile file = new RandomAccessFile(store.getSegmentFile(), "rw")) {
+            long middle = file.length() / 2;
+            file.seek(middle);
+            int b = file.read();
+            file.seek(middle);
+            file.write(b ^ 0x40);
+        }
+
+        IOException e =
+                assertThrows(
+                        IOException.class, () -> store.load(targetDir, ANALYZER, new HashMap<>()));
+        assertEquals("Segment checksum mismatch", e.getMessage());
+    }
+
+    @Test
+    void rejectsImpossibleLengthsWithAValidChecksum() throws IOException {
+        File targetDir = tmp.resolve("docs").toFile();
+        IndexStore store = new IndexStore(tmp.resolve("index").toFile());
+        ShardedIndex index = sampleIndex();
+
+        for (int length : new int[] {-1, Integer.MAX_VALUE}) {
+            store.save(index, fingerprintsOf(index), targetDir, ANALYZER);
+            try (RandomAccessFile file = new RandomAccessFile(store.getSegmentFile(), "rw")) {
+                // Length of the directory name, right after the magic number and the version
+                file.seek(2 * Integer.BYTES);
+                file.writeInt(length);
+
+                byte[] content = new byte[(int) file.length() - Long.BYTES];
+                file.seek(0);
+                file.readFully(content);
+                CRC32 crc = new CRC32();
+                crc.update(content);
+                file.writeLong(crc.getValue());
+            }
+
+            IOException e =
+                    assertThrows(
+                            IOException.class,
+                            () -> store.load(targetDir, ANALYZER, new HashMap<>()));
+            assertEquals("Segment is malformed", e.getMessage());
+        }
+    }
+
+    @Test
+    void rejectsSegmentOfAnotherAnalyzer() throws IOException {
+        File targetDir = tmp.resolve("docs").toFile();
+        IndexStore store = new IndexStore(tmp.resolve("index").toFile());
+        ShardedIndex index = sampleIndex();
+        store.save(index, fingerprintsOf(index), targetDir, ANALYZER);
+
+        assertThrows(
+                IOException.class,
+                () -> store.load(targetDir, "standard,lowercase", new HashMap<>()));
+    }
+}
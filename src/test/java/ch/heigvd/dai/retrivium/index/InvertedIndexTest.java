@@ -0,0 +1,128 @@
+package ch.heigvd.dai.retrivium.index;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class InvertedIndexTest {
+    private static final int NUM_DOCS = 3000;
+    private static final int VOCABULARY = 400;
+
+    private final Random random = new Random(7);
+    private final List<String> docNames = new ArrayList<>();
+    private final List<List<String>> docTokens = new ArrayList<>();
+
+    /** Skewed like a natural language : a few terms are in most documents, most are rare */
+    private String randomTerm() {
+        double r = random.nextDouble();
+        return "t" + (int) (VOCABULARY * r * r * r);
+    }
+
+    /** Index of documents of various lengths, every fifth one removed */
+    private InvertedIndex sampleIndex() {
+        InvertedIndex index = new InvertedIndex();
+        for (int i = 0; i < NUM_DOCS; i++) {
+            List<String> tokens = new ArrayList<>();
+            int length = 5 + random.nextInt(i % 11 == 0 ? 400 : 60);
+            for (int j = 0; j < length; j++) {
+                tokens.add(randomTerm());
+            }
+            docNames.add("doc" + i);
+            docTokens.add(tokens);
+            index.addDocument("doc" + i, tokens);
+        }
+        for (int i = 0; i < NUM_DOCS; i += 5) {
+            index.removeDocument(docNames.get(i));
+        }
+        return index;
+    }
+
+    /** Scores every alive document, summing the weights of the terms in query order */
+    private List<ScoredDocument> exhaustiveSearch(InvertedIndex index, List<String> query, int k) {
+        CorpusStats stats = new CorpusStats(new ArrayList<>(new LinkedHashSet<>(query)));
+        index.collectStats(stats);
+        List<String> terms = stats.getTerms();
+
+        List<ScoredDocument> scored = new ArrayList<>();
+        for (int docId = 0; docId < NUM_DOCS; docId++) {
+            if (docId % 5 == 0) {
+                continue;
+            }
+            List<String> tokens = docTokens.get(docId);
+            double score = 0;
+            boolean matches = false;
+            for (int t = 0; t < terms.size(); t++) {
+                int freq = Collections.frequency(tokens, terms.get(t));
+                if (freq > 0) {
+                    matches = true;
+                    score +=
+                            stats.idf(t)
+                                    * InvertedIndex.termWeight(
+                                            freq, tokens.size(), stats.avgDocLength());
+                }
+            }
+            if (matches) {
+                scored.add(new ScoredDocument(docId, docNames.get(docId), score));
+            }
+        }
+        scored.sort(InvertedIndex.WORST_FIRST.reversed());
+        return scored.subList(0, Math.min(k, scored.size()));
+    }
+
+    private static void assertSameRanking(
+            List<ScoredDocument> expected, List<ScoredDocument> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getDocName(), actual.get(i).getDocName());
+            assertEquals(expected.get(i).getScore(), actual.get(i).getScore());
+        }
+    }
+
+    @Test
+    void maxScoreFindsTheExhaustiveTopK() {
+        InvertedIndex index = sampleIndex();
+
+        for (int queryLength : new int[] {1, 2, 3, 5, 8}) {
+            for (int q = 0; q < 20; q++) {
+                List<String> query = new ArrayList<>();
+                for (int j = 0; j < queryLength; j++) {
+                    query.add(randomTerm());
+                }
+                for (int k : new int[] {1, 10, 100}) {
+                    assertSameRanking(exhaustiveSearch(index, query, k), index.search(query, k));
+                }
+            }
+        }
+    }
+
+    @Test
+    void maxScoreKeepsEqualScoresInIndexingOrder() {
+        InvertedIndex index = new InvertedIndex();
+        for (int i = 0; i < 50; i++) {
+            index.addDocument("doc" + i, List.of("rare", "common", "filler" + i));
+        }
+
+        List<ScoredDocument> results = index.search(List.of("common", "rare"), 10);
+
+        assertEquals(10, results.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("doc" + i, results.get(i).getDocName());
+        }
+    }
+
+    @Test
+    void hugeKReturnsEveryMatchingDocument() {
+        InvertedIndex index = new InvertedIndex();
+        for (int i = 0; i < 5; i++) {
+            index.addDocument("doc" + i, List.of("word", "other" + i));
+        }
+
+        assertEquals(5, index.search(List.of("word"), Integer.MAX_VALUE).size());
+        assertEquals(1, index.search(List.of("other3"), Integer.MAX_VALUE - 1).size());
+    }
+}
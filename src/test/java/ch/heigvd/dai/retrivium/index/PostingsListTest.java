@@ -0,0 +1,126 @@
+package ch.heigvd.dai.retrivium.index;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class PostingsListTest {
+    private static final int NUM_POSTINGS = 1000;
+
+    private final int[] docIds = new int[NUM_POSTINGS];
+    private final int[] freqs = new int[NUM_POSTINGS];
+
+    /** Postings over several blocks, with gaps and frequencies taking one to three bytes */
+    private PostingsList samplePostings() {
+        Random random = new Random(42);
+        PostingsList postings = new PostingsList();
+        int docId = -1;
+        for (int i = 0; i < NUM_POSTINGS; i++) {
+            docId += 1 + random.nextInt(i % 10 == 0 ? 40_000 : 100);
+            docIds[i] = docId;
+            freqs[i] = 1 + random.nextInt(i % 7 == 0 ? 300 : 5);
+            postings.add(docId, freqs[i], 10);
+        }
+        return postings;
+    }
+
+    private void assertDecodes(PostingsList postings) {
+        PostingsList.Reader reader = postings.reader();
+        for (int i = 0; i < NUM_POSTINGS; i++) {
+            assertEquals(docIds[i], reader.nextDoc());
+            assertEquals(freqs[i], reader.freq());
+        }
+        assertEquals(Integer.MAX_VALUE, reader.nextDoc());
+    }
+
+    @Test
+    void decodesWhatHasBeenAdded() {
+        PostingsList postings = samplePostings();
+
+        assertEquals(NUM_POSTINGS, postings.size());
+        assertEquals(NUM_POSTINGS, postings.docFreq());
+        assertEquals(8, postings.numBlocks());
+        assertDecodes(postings);
+    }
+
+    @Test
+    void advanceReachesTheFirstPostingAtOrAfterTheTarget() {
+        PostingsList postings = samplePostings();
+
+        for (int step : new int[] {1, 97, 1500, 60_000}) {
+            PostingsList.Reader reader = postings.reader();
+            int next = 0;
+            for (int target = 0; target <= docIds[NUM_POSTINGS - 1]; target += step) {
+                while (docIds[next] < target) {
+                    next++;
+                }
+                assertEquals(docIds[next], reader.advance(target));
+                assertEquals(freqs[next], reader.freq());
+            }
+            assertEquals(Integer.MAX_VALUE, reader.advance(docIds[NUM_POSTINGS - 1] + 1));
+        }
+    }
+
+    @Test
+    void advanceMixesWithNextDoc() {
+        PostingsList postings = samplePostings();
+        PostingsList.Reader reader = postings.reader();
+
+        assertEquals(docIds[0], reader.nextDoc());
+        assertEquals(docIds[300], reader.advance(docIds[300]));
+        assertEquals(docIds[301], reader.nextDoc());
+        // A target behind the current posting does not move the reader
+        assertEquals(docIds[301], reader.advance(docIds[5]));
+        assertEquals(docIds[900], reader.advance(docIds[899] + 1));
+        assertEquals(freqs[900], reader.freq());
+    }
+
+    @Test
+    void readsWhatHasBeenWritten() throws IOException {
+        PostingsList postings = samplePostings();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        postings.writeTo(new DataOutputStream(bytes));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+        PostingsList loaded = PostingsList.readFrom(buffer);
+
+        assertEquals(buffer.limit(), buffer.position());
+        assertEquals(NUM_POSTINGS, loaded.size());
+        assertEquals(postings.numBlocks(), loaded.numBlocks());
+        assertDecodes(loaded);
+        assertEquals(docIds[700], loaded.reader().advance(docIds[699] + 1));
+
+        // The first update copies the postings out of the buffer
+        loaded.add(docIds[NUM_POSTINGS - 1] + 1, 3, 10);
+        assertEquals(NUM_POSTINGS + 1, loaded.size());
+        assertEquals(docIds[NUM_POSTINGS - 1] + 1, loaded.reader().advance(docIds[999] + 1));
+    }
+
+    @Test
+    void purgeDropsTheRemovedDocuments() {
+        PostingsList postings = samplePostings();
+        int[] docLengths = new int[docIds[NUM_POSTINGS - 1] + 1];
+        for (int i = 0; i < NUM_POSTINGS; i++) {
+            if (i % 3 != 0) {
+                docLengths[docIds[i]] = -1;
+                postings.markRemoved();
+            }
+        }
+        assertEquals(334, postings.docFreq());
+
+        postings.purge(docLengths);
+
+        assertEquals(334, postings.size());
+        PostingsList.Reader reader = postings.reader();
+        for (int i = 0; i < NUM_POSTINGS; i += 3) {
+            assertEquals(docIds[i], reader.nextDoc());
+            assertEquals(freqs[i], reader.freq());
+        }
+        assertEquals(Integer.MAX_VALUE, reader.nextDoc());
+    }
+}
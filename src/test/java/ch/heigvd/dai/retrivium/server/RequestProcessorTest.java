@@ -0,0 +1,193 @@
+package ch.heigvd.dai.retrivium.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ch.heigvd.dai.retrivium.index.ScoredDocument;
+import ch.heigvd.dai.retrivium.index.SharedIndex;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RequestProcessorTest {
+    @TempDir Path tmp;
+
+    private SharedIndex index;
+    private ResponseBuffer out;
+    private RequestProcessor processor;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Files.writeString(tmp.resolve("plain.txt"), "alpha beta gamma\n");
+        Files.writeString(tmp.resolve("accents.txt"), "déjà vu, à côté\n");
+        index = new SharedIndex(tmp.toFile(), 2);
+        index.rebuild();
+        out = new ResponseBuffer('\n');
+        processor =
+                new RequestProcessor(
+                        "test",
+                        index,
+                        out,
+                        new ServerMetrics(index),
+                        new Semaphore(4),
+                        ServerLimits.DEFAULTS.maxRequestBytes());
+    }
+
+    private Response handle(String request) {
+        byte[] line = request.getBytes(StandardCharsets.UTF_8);
+        return processor.handle(line, line.length);
+    }
+
+    /** Empties the output of the connection */
+    private String written() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        out.writeTo(bytes);
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void showAnnouncesTheContentLengthInBytes() throws IOException {
+        Response response = handle("SHOW accents.txt");
+
+        long size = Files.size(tmp.resolve("accents.txt"));
+        assertTrue(size > "déjà vu, à côté\n".length());
+        assertEquals(ServerMessage.CONTENT + " " + size, response.getHeader());
+        assertEquals(size, response.getFileSize());
+        try (FileChannel file = response.getFile()) {
+            ByteBuffer content = ByteBuffer.allocate((int) size + 1);
+            assertEquals(size, file.read(content));
+        }
+    }
+
+    @Test
+    void showOfAMissingDocumentSendsNoContent() {
+        Response response = handle("SHOW missing.txt");
+
+        assertEquals(ServerMessage.FILE_DOESNT_EXIST.name(), response.getHeader());
+        assertNull(response.getFile());
+    }
+
+    @Test
+    void uploadReadsExactlyTheAnnouncedBytes() throws IOException {
+        byte[] content = "delta épsilon\n".getBytes(StandardCharsets.UTF_8);
+
+        Response response = handle("UPLOAD my notes.txt " + content.length);
+
+        assertNull(response.getHeader());
+        assertEquals(content.length, response.getBodyLength());
+        BodySink sink = response.getBodySink();
+        sink.write(content, 0, content.length);
+        assertEquals(ServerMessage.UPLOADED + " my notes.txt", sink.finish().getHeader());
+        assertEquals("delta épsilon\n", Files.readString(tmp.resolve("my notes.txt")));
+        assertTrue(index.current().contains("my notes.txt"));
+    }
+
+    @Test
+    void rejectedUploadStillConsumesItsContent() throws IOException {
+        Response response = handle("UPLOAD .hidden 12");
+
+        assertEquals(12, response.getBodyLength());
+        BodySink sink = response.getBodySink();
+        sink.write(new byte[12], 0, 12);
+        assertEquals(ServerMessage.INVALID.name(), sink.finish().getHeader());
+        assertFalse(Files.exists(tmp.resolve(".hidden")));
+    }
+
+    @Test
+    void uploadWithoutLengthClosesTheConnection() {
+        Response response = handle("UPLOAD notes.txt many");
+
+        assertEquals(ServerMessage.INVALID.name(), response.getHeader());
+        assertNull(response.getBodySink());
+        assertTrue(response.isClose());
+    }
+
+    @Test
+    void pageOutOfBoundsIsInvalid() throws IOException {
+        int maxOffset = RequestProcessor.MAX_PAGE_DEPTH - RequestProcessor.MAX_PAGE_SIZE;
+        for (String request :
+                new String[] {
+                    "PAGE 0 0 alpha",
+                    "PAGE -1 10 alpha",
+                    "PAGE 0 " + (RequestProcessor.MAX_PAGE_SIZE + 1) + " alpha",
+                    "PAGE " + (maxOffset + 1) + " " + RequestProcessor.MAX_PAGE_SIZE + " alpha",
+                    "PAGE 0 10",
+                    "PAGE 0 10 ",
+                    "PAGE ten 10 alpha"
+                }) {
+            assertEquals(ServerMessage.INVALID.name(), handle(request).getHeader(), request);
+        }
+
+        Response deepest =
+                handle("PAGE " + maxOffset + " " + RequestProcessor.MAX_PAGE_SIZE + " alpha");
+        assertNull(deepest.getHeader());
+        assertEquals(ServerMessage.PAGE + " 0 END\n", written());
+    }
+
+    @Test
+    void kOutOfRangeIsInvalid() throws IOException {
+        int tooLarge = ServerLimits.MAX_K + 1;
+        for (String request :
+                new String[] {
+                    "QUERY " + tooLarge + " alpha",
+                    "QUERY " + Integer.MAX_VALUE + " alpha",
+                    "QUERY 99999999999 alpha",
+                    "SCORED " + tooLarge + " 2 6 alpha 1",
+                    "SCORED " + Integer.MAX_VALUE + " 2 6 alpha 1"
+                }) {
+            assertEquals(ServerMessage.INVALID.name(), handle(request).getHeader(), request);
+        }
+
+        // The queries of the batch are still read, so the next request is not mistaken for one
+        Response batch = handle("MQUERY " + tooLarge + " 1");
+        assertEquals(1, batch.getRequestLines());
+        byte[] query = "alpha".getBytes(StandardCharsets.UTF_8);
+        batch.getLinesSink().line(query, query.length);
+        assertEquals(ServerMessage.INVALID.name(), batch.getLinesSink().finish().getHeader());
+
+        handle("QUERY " + ServerLimits.MAX_K + " alpha");
+        assertEquals(ServerMessage.RELEVANT + " plain.txt\n", written());
+    }
+
+    @Test
+    void pagesWalkThroughTheRanking() throws IOException {
+        for (int i = 0; i < 7; i++) {
+            Path file = tmp.resolve("page" + i + ".txt");
+            Files.writeString(file, "paging ".repeat(i + 1) + "filler ".repeat(10));
+            index.indexFile(file.toFile());
+        }
+
+        List<String> names = new ArrayList<>();
+        for (String expected : new String[] {"PAGE 3 MORE", "PAGE 3 MORE", "PAGE 1 END"}) {
+            handle("PAGE " + names.size() + " 3 paging");
+            String[] lines = written().split("\n");
+            assertEquals(expected, lines[0]);
+            for (int i = 1; i < lines.length; i++) {
+                names.add(lines[i].substring(lines[i].indexOf(' ') + 1));
+            }
+        }
+
+        List<String> ranking = new ArrayList<>();
+        for (ScoredDocument document : index.search("paging", 10)) {
+            ranking.add(document.getDocName());
+        }
+        assertEquals(ranking, names);
+        assertEquals("page6.txt", names.getFirst());
+
+        handle("PAGE 20 3 paging");
+        assertEquals(ServerMessage.PAGE + " 0 END\n", written());
+        assertEquals(ServerMessage.NOTHING_RELEVANT.name(), handle("PAGE 0 3 zeta").getHeader());
+    }
+}